@@ -0,0 +1,21 @@
+#!/bin/bash
+
+# Usage: ./bench.sh <directory of JMH jars> [JMH options]
+# The directory must hold jmh-core, jmh-generator-annprocess and their
+# dependencies (jopt-simple, commons-math3). Results are written to
+# out/bench/results.json.
+
+BASEDIR=$(dirname "$0")
+
+cd "$BASEDIR" || exit
+
+JMH=$1
+shift
+
+CLASSPATH=lib/big-math-2.3.0.jar:lib/commons-math3-3.6.1/commons-math3-3.6.1.jar:`echo "$JMH"/*.jar | tr ' ' ':'`
+
+mkdir -p out/bench/class/
+
+javac -d out/bench/class/ -cp "$CLASSPATH" src/calculator/*.java bench/calculator/*.java || exit
+
+java -cp out/bench/class/:"$CLASSPATH" org.openjdk.jmh.Main -rf json -rff out/bench/results.json "$@"
@@ -0,0 +1,128 @@
+import java.awt.GraphicsEnvironment;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * StartupBenchmark measures how long a new process takes to be useful: the
+ * time from launch to the first result of {@code CalculatorCommandLine} and
+ * to the first frame of {@code Calculator}, each without and with a class
+ * data sharing archive, as started by {@code launch.sh --cds}.
+ * <pre>
+ * java StartupBenchmark jar [runs]
+ * </pre>
+ * Every process starts with an empty home directory, so no history is read.
+ * The archive is made by one run before the measured ones, and needs Java 13
+ * or later. The frame is skipped without a display.
+ */
+public class StartupBenchmark {
+
+    private static final int DEFAULT_RUNS = 10;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: java StartupBenchmark jar [runs]");
+            System.exit(2);
+        }
+        String jar = args[0];
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_RUNS;
+        Path home = Files.createTempDirectory("startup");
+        boolean cds = javaVersion() >= 13;
+        for (String target : new String[] {"cli", "ui"}) {
+            if ("ui".equals(target) && GraphicsEnvironment.isHeadless()) {
+                System.out.println("ui   skipped, no display");
+                continue;
+            }
+            report(target, "default", measure(jar, target, home, runs));
+            if (cds) {
+                Path archive = home.resolve(target + ".jsa");
+                launch(jar, target, home, "-XX:ArchiveClassesAtExit=" + archive, "-Xlog:cds=off");
+                report(target, "cds", measure(jar, target, home, runs, "-XX:SharedArchiveFile=" + archive));
+            } else {
+                System.out.println(target + " cds skipped, needs Java 13 or later");
+            }
+        }
+    }
+
+    /**
+     * @return the milliseconds to the first answer of each run, after one run
+     *         that is not measured.
+     */
+    private static double[] measure(String jar, String target, Path home, int runs, String... options)
+            throws IOException, InterruptedException {
+        launch(jar, target, home, options);
+        double[] millis = new double[runs];
+        for (int i = 0; i < runs; i++) {
+            millis[i] = launch(jar, target, home, options) / 1e6;
+        }
+        return millis;
+    }
+
+    /**
+     * Start a process and wait for it to exit.
+     *
+     * @return the nanoseconds from the start to the first answer.
+     */
+    private static long launch(String jar, String target, Path home, String... options)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.addAll(Arrays.asList(options));
+        command.add("-Duser.home=" + home);
+        boolean ui = "ui".equals(target);
+        if (ui) {
+            command.add("-Dcalculator.startup=true");
+        }
+        command.add("-cp");
+        command.add(jar);
+        command.add(ui ? "Calculator" : "CalculatorCommandLine");
+        if (!ui) {
+            command.add("-");
+        }
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        try (OutputStream in = process.getOutputStream()) {
+            if (!ui) {
+                in.write("1 + 1\n".getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        String expected = ui ? "first frame" : "2";
+        long elapsed = -1;
+        try (BufferedReader out = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = out.readLine()) != null) {
+                if (elapsed < 0 && expected.equals(line)) {
+                    elapsed = System.nanoTime() - start;
+                }
+            }
+        }
+        process.waitFor();
+        if (elapsed < 0) {
+            throw new IllegalStateException(target + " did not answer " + expected);
+        }
+        return elapsed;
+    }
+
+    private static void report(String target, String mode, double[] millis) {
+        Arrays.sort(millis);
+        System.out.println(String.format("%-4s %-8s median %7.1f ms  min %7.1f ms  max %7.1f ms",
+                target, mode, millis[millis.length / 2], millis[0], millis[millis.length - 1]));
+    }
+
+    /**
+     * @return the feature version of the running Java, 8 for 1.8.
+     */
+    private static int javaVersion() {
+        String version = System.getProperty("java.specification.version");
+        return Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+    }
+}
@@ -0,0 +1,74 @@
+package calculator;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of one {@link CalculatorProcessor} shared by as many threads as
+ * there are processors, and of batch evaluation over the common pool.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConcurrencyBenchmark {
+
+    private static final int ROWS = 10000;
+
+    private CalculatorProcessor processor;
+    private CompiledExpression batch;
+    private Map<String, BigDecimal[]> bindings;
+
+    @Setup
+    public void setup() {
+        processor = new CalculatorProcessor();
+        processor.expression("a = 2");
+        processor.expression("total = 0");
+        batch = processor.compile("exp(-x^2 / 2) / sqrt(2 * pi) + a", "x");
+        BigDecimal[] x = new BigDecimal[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            x[i] = BigDecimal.valueOf(i - ROWS / 2, 3);
+        }
+        bindings = new HashMap<>();
+        bindings.put("x", x);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String expression() {
+        return processor.expression(Inputs.LONG);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String assignment() {
+        return processor.expression("total += a");
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public String random() {
+        return processor.expression("rnorm()");
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public BigDecimal[] batch() {
+        return processor.evaluateBatch(batch, bindings);
+    }
+}
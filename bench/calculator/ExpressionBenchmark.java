@@ -0,0 +1,65 @@
+package calculator;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end latency of {@link CalculatorProcessor#expression(String)}, with
+ * and without the compiled expression cache, in both evaluation modes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ExpressionBenchmark {
+
+    @Param({"short", "long", "nested"})
+    public String input;
+
+    @Param({"EXACT", "FAST"})
+    public EvaluationMode mode;
+
+    private String text;
+    private CalculatorProcessor cached;
+    private CalculatorProcessor uncached;
+    private CompiledExpression compiled;
+
+    @Setup
+    public void setup() {
+        text = Inputs.of(input);
+        cached = new CalculatorProcessor();
+        uncached = new CalculatorProcessor(0);
+        for (CalculatorProcessor processor : new CalculatorProcessor[] {cached, uncached}) {
+            processor.expression("a = 2");
+            processor.setEvaluationMode(mode);
+        }
+        compiled = cached.compile(text);
+    }
+
+    @Benchmark
+    public String expression() {
+        return cached.expression(text);
+    }
+
+    @Benchmark
+    public String expressionUncached() {
+        return uncached.expression(text);
+    }
+
+    @Benchmark
+    public String compiled() {
+        return cached.expression(compiled);
+    }
+}
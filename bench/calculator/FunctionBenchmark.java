@@ -0,0 +1,157 @@
+package calculator;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of every entry of {@link Functions} at several precisions, called
+ * directly with arguments inside its domain, in BigDecimal and in double.
+ * Functions without a double precision version are measured in BigDecimal
+ * only, their fast benchmark measures the fallback check.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FunctionBenchmark {
+
+    private static final Map<String, String> ARGUMENTS = new HashMap<>();
+
+    static {
+        ARGUMENTS.put("sqrt", "2");
+        ARGUMENTS.put("log", "2");
+        ARGUMENTS.put("log10", "2");
+        ARGUMENTS.put("log2", "3");
+        ARGUMENTS.put("floor", "-2.5");
+        ARGUMENTS.put("exp", "1.5");
+        ARGUMENTS.put("sin", "0.7");
+        ARGUMENTS.put("cos", "0.7");
+        ARGUMENTS.put("tan", "0.7");
+        ARGUMENTS.put("asin", "0.5");
+        ARGUMENTS.put("acos", "0.5");
+        ARGUMENTS.put("atan", "0.5");
+        ARGUMENTS.put("sinh", "0.7");
+        ARGUMENTS.put("cosh", "0.7");
+        ARGUMENTS.put("tanh", "0.7");
+        ARGUMENTS.put("gamma", "4.5");
+        ARGUMENTS.put("factorial", "20");
+        ARGUMENTS.put("root", "2, 3");
+        ARGUMENTS.put("pow", "2, 0.5");
+        ARGUMENTS.put("beta", "2.5, 1.5");
+        ARGUMENTS.put("sigmoid", "0.7");
+        ARGUMENTS.put("sum", "1.5, 2.25, -3, 4.125, 5, 6.5, 7, 8.75");
+        ARGUMENTS.put("mean", "1.5, 2.25, -3, 4.125, 5, 6.5, 7, 8.75");
+        ARGUMENTS.put("var", "1.5, 2.25, -3, 4.125, 5, 6.5, 7, 8.75");
+        ARGUMENTS.put("sd", "1.5, 2.25, -3, 4.125, 5, 6.5, 7, 8.75");
+        ARGUMENTS.put("min", "1.5, 2.25, -3, 4.125, 5, 6.5, 7, 8.75");
+        ARGUMENTS.put("max", "1.5, 2.25, -3, 4.125, 5, 6.5, 7, 8.75");
+        ARGUMENTS.put("median", "1.5, 2.25, -3, 4.125, 5, 6.5, 7, 8.75");
+        ARGUMENTS.put("quantile", "0.3, 1.5, 2.25, -3, 4.125, 5, 6.5, 7, 8.75");
+        ARGUMENTS.put("pbeta", "0.3, 2, 5");
+        ARGUMENTS.put("dbeta", "0.3, 2, 5");
+        ARGUMENTS.put("qbeta", "0.3, 2, 5");
+        ARGUMENTS.put("rbeta", "2, 5");
+        ARGUMENTS.put("pgamma", "1.5, 2, 1");
+        ARGUMENTS.put("dgamma", "1.5, 2, 1");
+        ARGUMENTS.put("qgamma", "0.3, 2, 1");
+        ARGUMENTS.put("rgamma", "2, 1");
+        ARGUMENTS.put("pnorm", "0.5");
+        ARGUMENTS.put("dnorm", "0.5");
+        ARGUMENTS.put("qnorm", "0.3");
+        ARGUMENTS.put("rnorm", "");
+        ARGUMENTS.put("pbinom", "3, 10, 0.4");
+        ARGUMENTS.put("dbinom", "3, 10, 0.4");
+        ARGUMENTS.put("qbinom", "0.3, 10, 0.4");
+        ARGUMENTS.put("rbinom", "10, 0.4");
+        ARGUMENTS.put("pt", "0.5, 5");
+        ARGUMENTS.put("dt", "0.5, 5");
+        ARGUMENTS.put("qt", "0.3, 5");
+        ARGUMENTS.put("rt", "5");
+        ARGUMENTS.put("pchisq", "1.5, 3");
+        ARGUMENTS.put("dchisq", "1.5, 3");
+        ARGUMENTS.put("qchisq", "0.3, 3");
+        ARGUMENTS.put("rchisq", "3");
+        ARGUMENTS.put("pcauchy", "0.5");
+        ARGUMENTS.put("dcauchy", "0.5");
+        ARGUMENTS.put("qcauchy", "0.3");
+        ARGUMENTS.put("rcauchy", "");
+        ARGUMENTS.put("pexp", "0.5");
+        ARGUMENTS.put("dexp", "0.5");
+        ARGUMENTS.put("qexp", "0.3");
+        ARGUMENTS.put("rexp", "");
+        ARGUMENTS.put("pf", "1.5, 5, 10");
+        ARGUMENTS.put("df", "1.5, 5, 10");
+        ARGUMENTS.put("qf", "0.3, 5, 10");
+        ARGUMENTS.put("rf", "5, 10");
+        ARGUMENTS.put("phyper", "3, 50, 10, 20");
+        ARGUMENTS.put("dhyper", "3, 50, 10, 20");
+        ARGUMENTS.put("qhyper", "0.3, 50, 10, 20");
+        ARGUMENTS.put("rhyper", "50, 10, 20");
+        ARGUMENTS.put("runif", "");
+        ARGUMENTS.put("seed", "42");
+    }
+
+    @Param({"sqrt", "log", "log10", "log2", "floor", "exp", "sin", "cos", "tan", "asin", "acos", "atan",
+            "sinh", "cosh", "tanh", "gamma", "factorial", "root", "pow", "beta", "sigmoid",
+            "sum", "mean", "var", "sd", "min", "max", "median", "quantile",
+            "pbeta", "dbeta", "qbeta", "rbeta", "pgamma", "dgamma", "qgamma", "rgamma",
+            "pnorm", "dnorm", "qnorm", "rnorm", "pbinom", "dbinom", "qbinom", "rbinom",
+            "pt", "dt", "qt", "rt", "pchisq", "dchisq", "qchisq", "rchisq",
+            "pcauchy", "dcauchy", "qcauchy", "rcauchy", "pexp", "dexp", "qexp", "rexp",
+            "pf", "df", "qf", "rf", "phyper", "dhyper", "qhyper", "rhyper", "runif", "seed"})
+    public String function;
+
+    @Param({"16", "34", "100"})
+    public int precision;
+
+    private Functions f;
+    private MathContextWithMin context;
+    private BigDecimal[] arguments;
+    private double[] fastArguments;
+
+    @Setup
+    public void setup() {
+        f = Functions.of(function);
+        context = MathContextWithMin.of(precision, new RandomStreams());
+        String list = ARGUMENTS.get(function);
+        if (list == null) {
+            throw new IllegalStateException("no arguments for " + function);
+        }
+        String[] values = list.isEmpty() ? new String[0] : list.split(",");
+        arguments = new BigDecimal[values.length];
+        fastArguments = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            arguments[i] = new BigDecimal(values[i].trim());
+            fastArguments[i] = arguments[i].doubleValue();
+        }
+    }
+
+    @Benchmark
+    public BigDecimal exact() {
+        return f.call(arguments, 0, arguments.length, context);
+    }
+
+    @Benchmark
+    public double fast() {
+        try {
+            return f.fastCall(fastArguments, 0, fastArguments.length, context);
+        } catch (UnsupportedOperationException e) {
+            return Double.NaN;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package calculator;
+
+/**
+ * Inputs shared by the benchmarks.
+ */
+final class Inputs {
+
+    static final String SHORT = "1 + 2 * 3";
+
+    static final String LONG = "2 ^ root(a^3 + 19, 1 + 2 * cos(0)) * 5 + log(pow(e, log(e) + 4))"
+            + " - sqrt(a * 16) / (a + 1) % 7 + !(a > 3 & a <= 8 | a == 2) * exp(-a^2 / 2)"
+            + " + sin(pi / a) * cos(pi / a) - tan(a / 10) + gamma(a + 0.5) - factorial(a + 3)";
+
+    static final String NESTED = nested(64);
+
+    private Inputs() {
+    }
+
+    /**
+     * @return "1 + (1 + (1 + ... )))" nested depth times.
+     */
+    static String nested(int depth) {
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            input.append("1 + (");
+        }
+        input.append("a");
+        for (int i = 0; i < depth; i++) {
+            input.append(')');
+        }
+        return input.toString();
+    }
+
+    static String of(String name) {
+        switch (name) {
+            case "short":
+                return SHORT;
+            case "long":
+                return LONG;
+            case "nested":
+                return NESTED;
+            default:
+                throw new IllegalArgumentException("unknown input " + name);
+        }
+    }
+}
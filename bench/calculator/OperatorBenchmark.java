@@ -0,0 +1,65 @@
+package calculator;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of each of the {@link BinaryOperators} in BigDecimal and in double.
+ * <p>
+ * JMH generates its code in another package, so parameters and results are
+ * public types.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OperatorBenchmark {
+
+    @Param({"OR", "AND", "NOT_EQUAL", "EQUAL", "GREATER", "LESS", "LESS_EQUAL", "GREATER_EQUAL",
+            "PLUS", "MINUS", "MULTIPLY", "DIVIDE", "REMAINDER", "POWER"})
+    public String operator;
+
+    @Param({"34"})
+    public int precision;
+
+    private BinaryOperators o;
+    private MathContextWithMin context;
+    private BigDecimal left;
+    private BigDecimal right;
+    private double fastLeft;
+    private double fastRight;
+
+    @Setup
+    public void setup() {
+        o = BinaryOperators.valueOf(operator);
+        context = MathContextWithMin.of(precision, new RandomStreams());
+        left = new BigDecimal("1.2345678901234567890123456789", context.getMathContext());
+        right = new BigDecimal("3.1415926535897932384626433832", context.getMathContext());
+        fastLeft = left.doubleValue();
+        fastRight = right.doubleValue();
+    }
+
+    @Benchmark
+    public BigDecimal exact() {
+        return o.call(left, right, context);
+    }
+
+    @Benchmark
+    public double fast() {
+        return o.fastCall(fastLeft, fastRight, context);
+    }
+}
@@ -0,0 +1,68 @@
+package calculator;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of tokenizing, parsing and compiling short, long and deeply
+ * nested inputs, without the compiled expression cache.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParseBenchmark {
+
+    @Param({"short", "long", "nested"})
+    public String input;
+
+    private String text;
+    private Variables variables;
+    private MathContextWithMin context;
+    private CalculatorProcessor processor;
+
+    @Setup
+    public void setup() {
+        text = Inputs.of(input);
+        context = MathContextWithMin.of(34, new RandomStreams());
+        variables = Variables.empty()
+                .withPredefined(Constants.E, Constants.E.get(context.getMathContext()))
+                .withPredefined(Constants.PI, Constants.PI.get(context.getMathContext()))
+                .with("a", java.math.BigDecimal.valueOf(2));
+        processor = new CalculatorProcessor(0);
+        processor.expression("a = 2");
+    }
+
+    @Benchmark
+    public void tokenize(Blackhole blackhole) {
+        Lexer lexer = new Lexer(text);
+        while (lexer.next() != Lexer.Token.END) {
+            blackhole.consume(lexer.getToken());
+        }
+    }
+
+    @Benchmark
+    public void parse(Blackhole blackhole) {
+        Parser parser = new Parser(text, variables, context);
+        parser.parse();
+        blackhole.consume(parser.getExpression());
+    }
+
+    @Benchmark
+    public CompiledExpression compile() {
+        return processor.compile(text);
+    }
+}
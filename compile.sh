@@ -4,7 +4,8 @@ BASEDIR=$(dirname "$0")
 
 cd "$BASEDIR" || exit
 
-export JAVA_HOME=`/usr/libexec/java_home -v1.8`
+# the Flight Recorder events need the jdk.jfr API of JDK 11 or later
+export JAVA_HOME=`/usr/libexec/java_home -v 11+`
 
 javac -d out/class/ -sourcepath lib/big-math-2.3.0-sources.jar:lib/commons-math3-3.6.1/commons-math3-3.6.1-sources.jar:src/ src/*.java src/**/*.java
 
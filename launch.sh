@@ -0,0 +1,39 @@
+#!/bin/bash
+
+# Usage: ./launch.sh [--cds] (ui | cli | server) [arguments]
+# Runs out/calculator.jar, built by compile.sh. With --cds the classes loaded
+# by the first run are archived in out/<ui|cli|server>.jsa when it exits, and
+# later runs map them from the archive instead of loading and verifying them
+# again. Class data sharing archives need Java 13 or later, and are rebuilt
+# after the jar changes.
+
+BASEDIR=$(dirname "$0")
+
+JAR="$BASEDIR/out/calculator.jar"
+
+CDS=
+if [ "$1" = "--cds" ]; then
+    CDS=1
+    shift
+fi
+
+case "$1" in
+    ui) MAIN=Calculator ;;
+    cli) MAIN=CalculatorCommandLine ;;
+    server) MAIN=CalculatorServer ;;
+    *) echo "Usage: ./launch.sh [--cds] (ui | cli | server) [arguments]" >&2; exit 2 ;;
+esac
+ARCHIVE="$BASEDIR/out/$1.jsa"
+shift
+
+OPTIONS=
+if [ -n "$CDS" ]; then
+    if [ -f "$ARCHIVE" ] && [ "$ARCHIVE" -nt "$JAR" ]; then
+        OPTIONS="-XX:SharedArchiveFile=$ARCHIVE"
+    else
+        rm -f "$ARCHIVE"
+        OPTIONS="-XX:ArchiveClassesAtExit=$ARCHIVE -Xlog:cds=off"
+    fi
+fi
+
+exec java $OPTIONS -cp "$JAR" $MAIN "$@"
@@ -1,5 +1,9 @@
 public class Calculator {
     public static void main(String[] args) {
-        new CalculatorUI();
+        if (args.length == 2 && "--max-rows".equals(args[0])) {
+            new CalculatorUI(Integer.parseInt(args[1]));
+        } else {
+            new CalculatorUI();
+        }
     }
 }
@@ -1,13 +1,51 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Scanner;
-import calculator.PreservedKeywordException;
 import calculator.CalculatorProcessor;
 
 /**
  * The command-lines version is used for debugging purpose only.
+ * <p>
+ * Given arguments, it runs headless instead: it reads expressions from the
+ * files named, or from standard input for {@code -}, and writes exactly one
+ * line for each line read, the result, the error message, or an empty line
+ * for blank lines and assignments. Option {@code --stop-on-error} stops at
+ * the first error, otherwise every line is evaluated. The exit status is 1 if
+ * any line failed and 2 if a file could not be read.
+ * </p>
+ * <p>
+ * {@code /save file} saves the variables, functions, formulas, precision and
+ * the inputs of the session, and {@code /load file} restores them.
+ * {@code /search text} shows the last inputs containing text. Interactive
+ * inputs are kept across runs in {@code ~/.calculator_history}.
+ * </p>
+ * <pre>
+ * java CalculatorCommandLine [--stop-on-error] (file | -)...
+ * </pre>
  */
 public class CalculatorCommandLine {
 
+    private static final int BUFFER_SIZE = 1 << 16;
+    /** The number of inputs saved with a session. */
+    private static final int MAX_HISTORY = 10000;
+    /** The number of matches {@code /search} shows. */
+    private static final int MAX_MATCHES = 10;
+
     public static void main(String[] args) {
+        if (args.length > 0) {
+            System.exit(script(args));
+        }
         System.out.println("=================================================");
         System.out.println("    This is a calculator program.\n" +
                            "    Enter /help for help.\n" +
@@ -15,12 +53,24 @@ public class CalculatorCommandLine {
         System.out.println("=================================================");
         Scanner scanner = new Scanner(System.in);
         CalculatorProcessor calculator = new CalculatorProcessor();
+        HistoryStore history;
+        try {
+            history = HistoryStore.open(HistoryStore.defaultFile(), HistoryStore.DEFAULT_CAPACITY);
+        } catch (IOException e) {
+            System.out.println("I/O error: the history is not saved: " + e.getMessage());
+            history = new HistoryStore(HistoryStore.DEFAULT_CAPACITY);
+        }
         while (true) {
             System.out.print(">> ");
             String nextLine = scanner.nextLine();
             if ("/exit".equals(nextLine)) {
                 System.out.println("Bye!");
                 scanner.close();
+                try {
+                    history.close();
+                } catch (IOException e) {
+                    System.out.println("I/O error: " + e.getMessage());
+                }
                 return;
             }
             if ("".equals(nextLine)) {
@@ -40,10 +90,15 @@ public class CalculatorCommandLine {
                                    "+, - (logical_not, unary positive, unary negative), ^ (power) *, /, %\n" +
                                    "(multiply, divide, remainder), +, - (plus, minus), > < >= <= (greater, less,\n" +
                                    "greater equal, less equal), ==, != (equals, not equals), & (logical_and), |\n" +
-                                   "logical_or.\n" +
+                                   "logical_or. & and | skip their right operand when the left one decides the\n" +
+                                   "result, and if(c, a, b) evaluates only the branch c selects.\n" +
                                    "\n" +
                                    "Supported assignments: =, +=, -=, *=, /=, %= assignments\n" +
                                    "\n" +
+                                   "/save file saves the variables, functions, precision and inputs of the\n" +
+                                   "session, /load file restores them. /search text shows the last inputs\n" +
+                                   "containing text, from this and earlier runs.\n" +
+                                   "\n" +
                                    "Supported functions: sqrt() (square root), exp() (exponent), log() (natural\n" +
                                    "logarithm), log10() (logarithm base 10),\n" +
                                    "\n" +
@@ -52,17 +107,171 @@ public class CalculatorCommandLine {
                 continue;
             }
             if (nextLine.charAt(0) == '/') {
-                System.out.println("Unknown command");
+                try {
+                    String answer = command(calculator, nextLine, history);
+                    System.out.println(answer == null ? "Unknown command" : answer);
+                } catch (IOException e) {
+                    System.out.println("I/O error: " + e.getMessage());
+                } catch (RuntimeException | StackOverflowError e) {
+                    System.out.println(message(e));
+                }
                 continue;
             }
+            remember(history, nextLine);
             try {
                 String result = calculator.expression(nextLine);
                 if (result != null) {
                     System.out.println(result);
                 }
-            } catch (IllegalArgumentException | PreservedKeywordException | ArithmeticException e) {
-                System.out.println(e.getMessage());
+            } catch (RuntimeException | StackOverflowError e) {
+                System.out.println(message(e));
+            }
+        }
+    }
+
+    /**
+     * Stream every line of the scripts through one calculator.
+     *
+     * @return the exit status
+     */
+    private static int script(String[] args) {
+        boolean stopOnError = false;
+        List<String> scripts = new ArrayList<>();
+        for (String arg : args) {
+            if ("--stop-on-error".equals(arg)) {
+                stopOnError = true;
+            } else if (arg.startsWith("--")) {
+                System.err.println("Unknown option " + arg);
+                return 2;
+            } else {
+                scripts.add(arg);
+            }
+        }
+        if (scripts.isEmpty()) {
+            scripts.add("-");
+        }
+        CalculatorProcessor calculator = new CalculatorProcessor();
+        HistoryStore history = new HistoryStore(MAX_HISTORY);
+        boolean failed = false;
+        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), BUFFER_SIZE);
+        try {
+            for (String script : scripts) {
+                try (BufferedReader in = "-".equals(script)
+                        ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8), BUFFER_SIZE)
+                        : Files.newBufferedReader(Paths.get(script), StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        String result;
+                        boolean error = false;
+                        if (line.trim().isEmpty()) {
+                            result = null;
+                        } else if (line.charAt(0) == '/') {
+                            try {
+                                result = command(calculator, line, history);
+                                if (result == null) {
+                                    result = "Unknown command";
+                                    error = true;
+                                } else {
+                                    result = result.replace('\n', ' ');
+                                }
+                            } catch (IOException e) {
+                                result = "I/O error: " + e.getMessage();
+                                error = true;
+                            } catch (RuntimeException | StackOverflowError e) {
+                                result = message(e);
+                                error = true;
+                            }
+                        } else {
+                            remember(history, line);
+                            try {
+                                result = calculator.expression(line);
+                            } catch (RuntimeException | StackOverflowError e) {
+                                result = message(e);
+                                error = true;
+                            }
+                        }
+                        if (result != null) {
+                            out.write(result);
+                        }
+                        out.newLine();
+                        failed |= error;
+                        if (error && stopOnError) {
+                            return 1;
+                        }
+                        // answer an interactive writer before blocking on its next line
+                        if (!in.ready()) {
+                            out.flush();
+                        }
+                    }
+                }
             }
+            return failed ? 1 : 0;
+        } catch (IOException e) {
+            System.err.println("I/O error: " + e.getMessage());
+            return 2;
+        } finally {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Run {@code /save file}, {@code /load file} or {@code /search text}.
+     *
+     * @return the answer, or null if line is no known command.
+     * @throws IOException if the session file cannot be written or read.
+     */
+    private static String command(CalculatorProcessor calculator, String line, HistoryStore history)
+            throws IOException {
+        if (line.startsWith("/save ")) {
+            String file = line.substring("/save ".length()).trim();
+            calculator.save(Paths.get(file), history.session(MAX_HISTORY));
+            return "Session saved to " + file;
+        }
+        if (line.startsWith("/load ")) {
+            String file = line.substring("/load ".length()).trim();
+            List<String> loaded = calculator.load(Paths.get(file));
+            history.startSession();
+            for (String input : loaded) {
+                history.recall(input);
+            }
+            return "Session loaded from " + file;
+        }
+        if (line.startsWith("/search ")) {
+            String query = line.substring("/search ".length());
+            List<String> matches = new ArrayList<>();
+            for (int id = history.search(query, history.end());
+                 id >= 0 && matches.size() < MAX_MATCHES; id = history.search(query, id)) {
+                matches.add(history.get(id));
+            }
+            if (matches.isEmpty()) {
+                return "No match";
+            }
+            Collections.reverse(matches);
+            return String.join("\n", matches);
+        }
+        return null;
+    }
+
+    /**
+     * @return the message of a failure, or its type if it has none.
+     */
+    private static String message(Throwable e) {
+        return e.getMessage() != null ? e.getMessage().replace('\n', ' ') : e.getClass().getSimpleName();
+    }
+
+    /**
+     * Add an input to the history, reporting a failure to write it.
+     */
+    private static void remember(HistoryStore history, String input) {
+        try {
+            history.add(input);
+        } catch (IOException e) {
+            System.err.println("I/O error: the history is not saved: " + e.getMessage());
         }
     }
 }
@@ -0,0 +1,307 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLongArray;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import calculator.CalculatorProcessor;
+import calculator.EvaluationBudget;
+
+/**
+ * The server evaluates expressions for local clients, each connection on its
+ * own virtual thread where the JVM has them, and on a cached thread pool
+ * otherwise.
+ * <ul>
+ * <li>TCP: every line sent is answered by exactly one line, the result, the
+ * error message, or an empty line for blank lines and assignments. Lines can
+ * be pipelined, answers come back in order. Each connection is a session with
+ * its own variables. {@code /stats} answers the latency percentiles and
+ * {@code /exit} closes the connection.</li>
+ * <li>HTTP: {@code POST /evaluate} answers the lines of the body the same
+ * way. Requests with the same {@code ?session=name} share variables, the
+ * others get a new session each. {@code GET /stats} answers the latency
+ * percentiles.</li>
+ * </ul>
+ * <pre>
+ * java CalculatorServer [--tcp port] [--http port] [--bind address] [--timeout ms]
+ * </pre>
+ * Port 0 disables a protocol. Both listen on the loopback address only, the
+ * service is unauthenticated; {@code --bind} names another address, such as
+ * {@code 0.0.0.0} for every interface, to let remote clients in.
+ * <p>
+ * Every evaluation is held to a budget, so that one client cannot keep a
+ * thread busy: {@value #DEFAULT_TIMEOUT_MILLIS} ms, results of at most
+ * {@value #MAX_DIGITS} integer digits, and {@value #MAX_OPERATIONS}
+ * operations.
+ */
+public class CalculatorServer {
+
+    private static final int DEFAULT_TCP_PORT = 7000;
+    private static final int DEFAULT_HTTP_PORT = 7001;
+    private static final int BACKLOG = 1024;
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_SESSIONS = 10000;
+    private static final long DEFAULT_TIMEOUT_MILLIS = 2000;
+    private static final int MAX_DIGITS = 1000000;
+    private static final long MAX_OPERATIONS = 1000000;
+
+    private final ExecutorService executor = newThreadPerTaskExecutor();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final EvaluationBudget budget;
+    private final Map<String, CalculatorProcessor> sessions =
+            new LinkedHashMap<String, CalculatorProcessor>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CalculatorProcessor> eldest) {
+                    return size() > MAX_SESSIONS;
+                }
+            };
+
+    CalculatorServer(long timeoutMillis) {
+        budget = new EvaluationBudget(timeoutMillis, MAX_DIGITS, MAX_OPERATIONS);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int tcpPort = DEFAULT_TCP_PORT;
+        int httpPort = DEFAULT_HTTP_PORT;
+        InetAddress address = InetAddress.getLoopbackAddress();
+        long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+        for (int i = 0; i < args.length; i++) {
+            if ("--tcp".equals(args[i]) && i + 1 < args.length) {
+                tcpPort = Integer.parseInt(args[++i]);
+            } else if ("--http".equals(args[i]) && i + 1 < args.length) {
+                httpPort = Integer.parseInt(args[++i]);
+            } else if ("--bind".equals(args[i]) && i + 1 < args.length) {
+                address = InetAddress.getByName(args[++i]);
+            } else if ("--timeout".equals(args[i]) && i + 1 < args.length) {
+                timeoutMillis = Long.parseLong(args[++i]);
+            } else {
+                System.err.println("Usage: java CalculatorServer [--tcp port] [--http port] [--bind address] [--timeout ms]");
+                System.exit(2);
+            }
+        }
+        CalculatorServer server = new CalculatorServer(timeoutMillis);
+        if (httpPort != 0) {
+            server.startHttp(address, httpPort);
+            System.out.println("HTTP on " + address.getHostAddress() + " port " + httpPort);
+        }
+        if (tcpPort != 0) {
+            System.out.println("TCP on " + address.getHostAddress() + " port " + tcpPort);
+            server.serveTcp(address, tcpPort);
+        }
+    }
+
+    /**
+     * Accept connections until the server socket fails.
+     */
+    void serveTcp(InetAddress address, int port) throws IOException {
+        try (ServerSocket server = new ServerSocket()) {
+            server.setReuseAddress(true);
+            server.bind(new InetSocketAddress(address, port), BACKLOG);
+            while (true) {
+                final Socket socket = server.accept();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            }
+        }
+    }
+
+    void startHttp(InetAddress address, int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(address, port), BACKLOG);
+        server.setExecutor(executor);
+        server.createContext("/evaluate", exchange -> {
+            try {
+                if (!"POST".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                CalculatorProcessor calculator = session(exchange);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, 0);
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8), BUFFER_SIZE);
+                BufferedWriter out = new BufferedWriter(
+                        new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), BUFFER_SIZE);
+                String line;
+                while ((line = in.readLine()) != null) {
+                    out.write(evaluate(calculator, line));
+                    out.newLine();
+                }
+                out.flush();
+            } finally {
+                exchange.close();
+            }
+        });
+        server.createContext("/stats", exchange -> {
+            try {
+                byte[] stats = (latency + "\n").getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, stats.length);
+                exchange.getResponseBody().write(stats);
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Answer the lines of one connection in order until it is closed.
+     */
+    private void serve(Socket socket) {
+        CalculatorProcessor calculator = newSession();
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8), BUFFER_SIZE);
+             BufferedWriter out = new BufferedWriter(
+                     new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            String line;
+            while ((line = in.readLine()) != null && !"/exit".equals(line)) {
+                out.write("/stats".equals(line) ? latency.toString() : evaluate(calculator, line));
+                out.newLine();
+                // pipelined lines are answered together, the last one at once
+                if (!in.ready()) {
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            // the client went away
+        }
+    }
+
+    /**
+     * @return the answer line to one request line.
+     */
+    private String evaluate(CalculatorProcessor calculator, String line) {
+        if (line.trim().isEmpty()) {
+            return "";
+        }
+        long start = System.nanoTime();
+        String result;
+        try {
+            result = line.charAt(0) == '/' ? "Unknown command" : calculator.expression(line);
+        } catch (RuntimeException | StackOverflowError e) {
+            // answer even an overflow, rather than drop the connection or cut
+            // an HTTP body short
+            result = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+        }
+        latency.record(System.nanoTime() - start);
+        return result == null ? "" : result.replace('\n', ' ');
+    }
+
+    private CalculatorProcessor session(HttpExchange exchange) {
+        String query = exchange.getRequestURI().getQuery();
+        if (query == null || !query.startsWith("session=")) {
+            return newSession();
+        }
+        String name = query.substring("session=".length());
+        synchronized (sessions) {
+            CalculatorProcessor calculator = sessions.get(name);
+            if (calculator == null) {
+                calculator = newSession();
+                sessions.put(name, calculator);
+            }
+            return calculator;
+        }
+    }
+
+    private CalculatorProcessor newSession() {
+        CalculatorProcessor calculator = new CalculatorProcessor();
+        calculator.setEvaluationBudget(budget);
+        return calculator;
+    }
+
+    /**
+     * @return a virtual thread per task executor on Java 21 and later,
+     *         otherwise a cached thread pool.
+     */
+    private static ExecutorService newThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * LatencyHistogram counts durations in buckets of a power of two split in
+     * eight, so percentiles are within 12.5% while recording is one atomic
+     * increment.
+     */
+    static final class LatencyHistogram {
+
+        private static final int SUB_BUCKETS = 8;
+        private static final int SHIFT = 3;
+
+        private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS * 62);
+
+        void record(long nanos) {
+            counts.incrementAndGet(index(Math.max(0, nanos)));
+        }
+
+        /**
+         * @return the duration in nanoseconds q of the recorded durations are
+         *         at most, or 0 if none were recorded.
+         */
+        long percentile(double q) {
+            long total = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                total += counts.get(i);
+            }
+            long target = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= target && seen > 0) {
+                    return upperBound(i);
+                }
+            }
+            return 0;
+        }
+
+        long count() {
+            long total = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                total += counts.get(i);
+            }
+            return total;
+        }
+
+        private static int index(long nanos) {
+            if (nanos < SUB_BUCKETS) {
+                return (int) nanos;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(nanos) - SHIFT;
+            return SUB_BUCKETS * (exponent + 1) + (int) (nanos >>> exponent) - SUB_BUCKETS;
+        }
+
+        private static long upperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int exponent = index / SUB_BUCKETS - 1;
+            long mantissa = index % SUB_BUCKETS + SUB_BUCKETS;
+            return ((mantissa + 1) << exponent) - 1;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("requests=%d p50=%.1fus p99=%.1fus",
+                    count(), percentile(0.5) / 1e3, percentile(0.99) / 1e3);
+        }
+    }
+}
@@ -1,52 +1,93 @@
 import javax.swing.*;
+import javax.swing.border.Border;
 import java.awt.*;
 import java.awt.event.*;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import calculator.CalculatorProcessor;
 import calculator.PreservedKeywordException;
 
 // TODO: add variable list printer
-// TODO: add save and load function
+/**
+ * The calculator window. Inputs are evaluated one after the other on a
+ * background thread, and their results are added to the history in order as
+ * they complete. ESC or CANCEL interrupts the running input and drops the
+ * ones waiting. {@code /save file} and {@code /load file} save and restore
+ * the session with its inputs.
+ * <p>
+ * Inputs are kept across runs in a {@link HistoryStore}. UP and DOWN go
+ * through the earlier inputs starting with the text typed, and CTRL-R through
+ * the ones containing it.
+ * </p>
+ */
 public class CalculatorUI extends JFrame {
 
+    /** The number of history rows kept by default. */
+    public static final int DEFAULT_MAX_ROWS = 10000;
+    /** Set to true to print a line and exit once the window is shown. */
+    public static final String STARTUP_PROPERTY = "calculator.startup";
+
     private final SpringLayout frameLayout;
-    private final SpringLayout mainPanelLayout;
-    private final JPanel mainPanel;
+    private final HistoryModel historyModel;
+    private final JList<HistoryRow> history;
     private final JScrollPane scrollPane;
     private final CalculatorProcessor calculator;
     private final KeyListener globalKeyListener;
-    private JTextField inputField;
-    private JTextArea inputGuide;
-    private HistoryNode current;
+    private final JTextField inputField;
+    private final JTextArea inputGuide;
     private final int[] round;
-    private final JComponent[] previousLine;
+    private final int maxRows;
     private final JButton helpButton;
     private final JButton backButton;
-    private final JScrollPane helpMenu;
-
-    private static class HistoryNode {
-        int index;
-        HistoryNode previous;
-        HistoryNode next;
-        String input;
-    }
+    private final JButton cancelButton;
+    private ExecutorService evaluation = newEvaluationExecutor();
+    /** The inputs entered and not completed yet, only used on the event thread. */
+    private int pending;
+    /** Counts cancellations, results of inputs entered before one are dropped. */
+    private int generation;
+    /** Created when first shown, as it is slow to render. */
+    private JScrollPane helpMenu;
+    private final HistoryStore inputs;
+    /** The input shown, inputs.end() for the text typed. */
+    private int browsed;
+    /** The text typed before going through the inputs. */
+    private String draft = "";
+    /** The inputs UP went through, so that DOWN goes back through them. */
+    private final Deque<Integer> trail = new ArrayDeque<>();
+    /** The text CTRL-R searches for, or null while not searching. */
+    private String query;
 
-    private HistoryNode lastInput;
-
-    private void addHistory(String input, int index) {
-        HistoryNode oldLast = lastInput;
-        lastInput = new HistoryNode();
-        if (oldLast != null) {
-            oldLast.next = lastInput;
-        }
-        lastInput.input = input;
-        lastInput.previous = oldLast;
-        lastInput.next = null;
-        lastInput.index = index;
+    public CalculatorUI() {
+        this(DEFAULT_MAX_ROWS);
     }
 
-    public CalculatorUI() {
+    /**
+     * @param maxRows the number of history rows kept, older rows are dropped
+     */
+    public CalculatorUI(int maxRows) {
         super("Calculator");
+        if (maxRows < 1) {
+            throw new IllegalArgumentException("maxRows must be positive");
+        }
+        this.maxRows = maxRows;
         calculator = new CalculatorProcessor();
+        HistoryStore store;
+        String storeFailure = null;
+        try {
+            store = HistoryStore.open(HistoryStore.defaultFile(), HistoryStore.DEFAULT_CAPACITY);
+        } catch (IOException e) {
+            store = new HistoryStore(HistoryStore.DEFAULT_CAPACITY);
+            storeFailure = "I/O error: the history is not saved: " + e.getMessage();
+        }
+        inputs = store;
+        browsed = inputs.end();
         setSize(640, 480);
         setLocationRelativeTo(null);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -64,29 +105,30 @@ public class CalculatorUI extends JFrame {
                 if (d.height < minD.height)
                     d.height = minD.height;
                 setSize(d);
-                mainPanel.doLayout();
             }
         });
 
-        mainPanelLayout = new SpringLayout();
         frameLayout = new SpringLayout();
         getContentPane().setLayout(frameLayout);
-        mainPanel = new JPanel();
-        mainPanel.setBorder(BorderFactory.createEmptyBorder());
-        mainPanel.setLayout(mainPanelLayout);
-        mainPanel.setBackground(Color.WHITE);
-        mainPanel.setForeground(Color.WHITE);
-        scrollPane = new JScrollPane(mainPanel);
+        historyModel = new HistoryModel(maxRows);
+        history = new JList<>(historyModel);
+        history.setCellRenderer(new HistoryRenderer());
+        history.setBackground(Color.WHITE);
+        // fixed cell sizes let the list lay out without measuring every row
+        history.setPrototypeCellValue(new HistoryRow("In[1]:", true));
+        scrollPane = new JScrollPane(history);
         scrollPane.setBackground(Color.WHITE);
         scrollPane.setForeground(Color.WHITE);
 
         helpButton = new JButton("HELP");
         backButton = new JButton("BACK");
-        helpMenu = HelpMenu.createHelp();
         displayScrollPane(scrollPane, null);
         displayButton(helpButton, null);
 
         helpButton.addActionListener(e -> {
+            if (helpMenu == null) {
+                helpMenu = HelpMenu.createHelp();
+            }
             displayScrollPane(helpMenu, scrollPane);
             displayButton(backButton, helpButton);
         });
@@ -108,97 +150,303 @@ public class CalculatorUI extends JFrame {
 
             @Override
             public void keyPressed(KeyEvent e) {
+                if (e.getKeyCode() == KeyEvent.VK_R && e.isControlDown()) {
+                    search();
+                    inputField.requestFocus();
+                    return;
+                }
+                if (query != null && e.getKeyCode() != KeyEvent.VK_CONTROL) {
+                    endSearch();
+                }
                 switch (e.getKeyCode()) {
                     case KeyEvent.VK_ENTER:
-                        if (lastInput != null) {
-                            lastInput.input = inputField.getText();
-                        }
-                        mainOperation(round, previousLine, inputField.getText());
+                        mainOperation(round, inputField.getText());
                         inputField.requestFocus();
                         break;
                     case KeyEvent.VK_UP:
-                        current.input = inputField.getText();
-                        if (current.previous != null) {
-                            current = current.previous;
+                        if (browsed == inputs.end()) {
+                            draft = inputField.getText();
+                        }
+                        int previous = inputs.searchPrefix(draft, browsed);
+                        if (previous >= 0) {
+                            trail.push(browsed);
+                            browsed = previous;
+                            inputField.setText(inputs.get(browsed));
                         }
-                        inputGuide.setText(String.format("In[%d]:", current.index));
-                        inputField.setText(current.input);
                         inputField.requestFocus();
                         break;
                     case KeyEvent.VK_DOWN:
-                        current.input = inputField.getText();
-                        if (current.next != null) {
-                            current = current.next;
+                        if (!trail.isEmpty()) {
+                            browsed = trail.pop();
+                            inputField.setText(browsed == inputs.end() ? draft : inputs.get(browsed));
                         }
-                        inputGuide.setText(String.format("In[%d]:", current.index));
-                        inputField.setText(current.input);
                         inputField.requestFocus();
                         break;
+                    case KeyEvent.VK_ESCAPE:
+                        cancel();
+                        break;
                     default:
                         break;
                 }
             }
         };
 
-        previousLine = new JComponent[] {null};
         round = new int[] {1};
         inputGuide = printNewString(String.format("In[%d]:", round[0]), Color.BLACK, Color.LIGHT_GRAY);
-        addComponentToNewLine(inputGuide, previousLine[0]);
         inputField = newInput();
-        addHistory(inputField.getText(), round[0]);
-        current = lastInput;
-        appendComponentToLine(inputField, inputGuide);
-        previousLine[0] = inputField;
+        JPanel inputLine = new JPanel(new BorderLayout());
+        inputLine.setBackground(Color.WHITE);
+        inputLine.add(inputGuide, BorderLayout.WEST);
+        inputLine.add(inputField, BorderLayout.CENTER);
+        add(inputLine);
+        frameLayout.putConstraint(SpringLayout.SOUTH, inputLine, -4, SpringLayout.SOUTH, getContentPane());
+        frameLayout.putConstraint(SpringLayout.WEST, inputLine, 10, SpringLayout.WEST, getContentPane());
+        frameLayout.putConstraint(SpringLayout.EAST, inputLine, -10, SpringLayout.EAST, getContentPane());
         inputGuide.addKeyListener(globalKeyListener);
         addKeyListener(globalKeyListener);
 
+        cancelButton = new JButton("CANCEL");
+        cancelButton.setVisible(false);
+        add(cancelButton);
+        frameLayout.putConstraint(SpringLayout.NORTH, cancelButton, 2, SpringLayout.NORTH, getContentPane());
+        frameLayout.putConstraint(SpringLayout.EAST, cancelButton, -2, SpringLayout.EAST, getContentPane());
+        cancelButton.addActionListener(e -> {
+            cancel();
+            inputField.requestFocus();
+        });
+
+        if (storeFailure != null) {
+            addRows(storeFailure, false);
+        }
+        if (Boolean.getBoolean(STARTUP_PROPERTY)) {
+            // the startup benchmark measures the time until this line
+            addWindowListener(new WindowAdapter() {
+                @Override
+                public void windowOpened(WindowEvent e) {
+                    System.out.println("first frame");
+                    System.exit(0);
+                }
+            });
+        }
         setVisible(true);
         inputField.requestFocus();
     }
 
-    private final void mainOperation(int[] round, JComponent[] previousLine, String inputString) {
+    private final void mainOperation(int[] round, String inputString) {
         if (!inputString.trim().matches("[\\s;]*")) {
-            inputField.setEditable(false);
-            inputGuide.setText(String.format("In[%d]:", round[0]));
+            String echo = String.format("In[%d]: %s", round[0], inputString);
             round[0]++;
-            StringBuilder stringBuilder = new StringBuilder();
-            for (char c : inputString.toCharArray()) {
-                if (c == ';') {
-                    addNewResult(previousLine, stringBuilder.toString());
-                    stringBuilder.setLength(0);
-                } else {
-                    stringBuilder.append(c);
+            List<String> statements = new ArrayList<>();
+            List<String> entered = null;
+            if (inputString.trim().startsWith("/")) {
+                statements.add(inputString.trim());
+                entered = inputs.session(maxRows);
+            } else {
+                remember(inputString);
+                StringBuilder stringBuilder = new StringBuilder();
+                for (char c : inputString.toCharArray()) {
+                    if (c == ';') {
+                        statements.add(stringBuilder.toString());
+                        stringBuilder.setLength(0);
+                    } else {
+                        stringBuilder.append(c);
+                    }
                 }
+                statements.add(stringBuilder.toString());
             }
-            addNewResult(previousLine, stringBuilder.toString());
-            inputGuide = printNewString(String.format("In[%d]:", round[0]), Color.BLACK, Color.LIGHT_GRAY);
-            inputGuide.addKeyListener(globalKeyListener);
-            inputField = newInput();
-            addHistory(inputField.getText(), round[0]);
-            current = lastInput;
-            addComponentToNewLine(inputGuide, previousLine[0]);
-            appendComponentToLine(inputField, inputGuide);
-            previousLine[0] = inputField;
+            List<String> saved = entered;
+            inputGuide.setText(String.format("In[%d]:", round[0]));
+            inputField.setText("");
+            browsed = inputs.end();
+            trail.clear();
+            int submitted = generation;
+            pending++;
+            showRunning();
+            evaluation.execute(() -> {
+                try {
+                    deliver(submitted, echo, true);
+                    for (String statement : statements) {
+                        String output = statement.startsWith("/")
+                                ? command(statement, saved) : evaluate(statement);
+                        if (Thread.currentThread().isInterrupted()) {
+                            return;
+                        }
+                        if (output != null) {
+                            deliver(submitted, output, false);
+                        }
+                    }
+                } finally {
+                    SwingUtilities.invokeLater(() -> {
+                        if (submitted == generation) {
+                            pending--;
+                            showRunning();
+                        }
+                    });
+                }
+            });
         }
-        revalidate();
-        JScrollBar vScrollBar = scrollPane.getVerticalScrollBar();
-        vScrollBar.setValue(vScrollBar.getModel().getMaximum() - vScrollBar.getModel().getExtent());
     }
 
-    private final void addNewResult(JComponent[] previousLine, String inputString) {
+    /**
+     * Evaluate one statement on the evaluation thread.
+     *
+     * @return the text to add to the history, or null.
+     */
+    private String evaluate(String inputString) {
         if (!"".equals(inputString.trim())) {
-            String output;
             try {
-                output = calculator.expression(inputString);
+                return calculator.expression(inputString);
             } catch (IllegalArgumentException | PreservedKeywordException | ArithmeticException e) {
-                output = e.getMessage();
+                return e.getMessage();
+            } catch (CancellationException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Run {@code /save file} or {@code /load file} on the evaluation thread.
+     *
+     * @param saved the inputs of the session entered before the command
+     * @return the text to add to the history.
+     */
+    private String command(String command, List<String> saved) {
+        try {
+            if (command.startsWith("/save ")) {
+                String file = command.substring("/save ".length()).trim();
+                calculator.save(Paths.get(file), saved);
+                return "Session saved to " + file;
             }
-            if (output != null) {
-                JTextArea newText = printNewString(output, Color.BLACK, Color.WHITE);
-                newText.addKeyListener(globalKeyListener);
-                addComponentToNewLine(newText, previousLine[0]);
-                previousLine[0] = newText;
+            if (command.startsWith("/load ")) {
+                String file = command.substring("/load ".length()).trim();
+                List<String> loaded = calculator.load(Paths.get(file));
+                SwingUtilities.invokeLater(() -> {
+                    inputs.startSession();
+                    for (String input : loaded) {
+                        inputs.recall(input);
+                    }
+                    browsed = inputs.end();
+                    trail.clear();
+                });
+                return "Session loaded from " + file;
             }
+            return "Unknown command";
+        } catch (IOException e) {
+            return "I/O error: " + e.getMessage();
+        } catch (IllegalArgumentException | PreservedKeywordException | ArithmeticException e) {
+            return e.getMessage();
+        } catch (CancellationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Add an input to the inputs kept across runs.
+     */
+    private void remember(String input) {
+        try {
+            inputs.add(input);
+        } catch (IOException e) {
+            addRows("I/O error: the history is not saved: " + e.getMessage(), false);
+        }
+    }
+
+    /**
+     * Show the previous input containing the text typed when CTRL-R was first
+     * pressed, with that text selected.
+     */
+    private void search() {
+        if (query == null) {
+            query = inputField.getText();
+            draft = query;
+            trail.clear();
+            browsed = inputs.end();
+            inputGuide.setText("Find:");
+            showRunning();
+        }
+        int found = inputs.search(query, browsed);
+        if (found < 0) {
+            Toolkit.getDefaultToolkit().beep();
+            return;
+        }
+        if (trail.isEmpty()) {
+            trail.push(browsed);
+        }
+        browsed = found;
+        String input = inputs.get(found);
+        inputField.setText(input);
+        int at = input.indexOf(query);
+        inputField.select(at, at + query.length());
+    }
+
+    private void endSearch() {
+        query = null;
+        inputGuide.setText(String.format("In[%d]:", round[0]));
+        showRunning();
+    }
+
+    /**
+     * Add text to the history on the event thread, unless the input it
+     * belongs to was cancelled meanwhile.
+     */
+    private void deliver(int submitted, String text, boolean input) {
+        SwingUtilities.invokeLater(() -> {
+            if (submitted == generation) {
+                addRows(text, input);
+                history.ensureIndexIsVisible(historyModel.getSize() - 1);
+            }
+        });
+    }
+
+    /**
+     * Interrupt the running input and drop the waiting ones. A function that
+     * does not check for interruption finishes on its abandoned thread while
+     * the next inputs run on a new one.
+     */
+    private void cancel() {
+        if (pending == 0) {
+            return;
+        }
+        generation++;
+        pending = 0;
+        evaluation.shutdownNow();
+        evaluation = newEvaluationExecutor();
+        addRows("Cancelled", false);
+        history.ensureIndexIsVisible(historyModel.getSize() - 1);
+        showRunning();
+    }
+
+    private void showRunning() {
+        cancelButton.setVisible(pending > 0);
+        inputGuide.setBackground(query != null ? Color.CYAN : pending > 0 ? Color.ORANGE : Color.LIGHT_GRAY);
+    }
+
+    /**
+     * @return a single thread executor, so that inputs are evaluated in the
+     *         order they are entered.
+     */
+    private static ExecutorService newEvaluationExecutor() {
+        return Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "evaluation");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Append text to the history, one row per line, widening the rows if
+     * it is the widest text so far.
+     */
+    private void addRows(String text, boolean input) {
+        for (String line : text.split("\n", -1)) {
+            HistoryRow row = new HistoryRow(line, input);
+            int width = history.getCellRenderer()
+                    .getListCellRendererComponent(history, row, 0, false, false).getPreferredSize().width;
+            if (width > history.getFixedCellWidth()) {
+                history.setFixedCellWidth(width);
+            }
+            historyModel.add(row);
         }
     }
 
@@ -214,7 +462,7 @@ public class CalculatorUI extends JFrame {
         };
     }
 
-    private JTextArea printNewString(String s, Color foreground, Color background) {
+    private static JTextArea printNewString(String s, Color foreground, Color background) {
         return new JTextArea() {
             private static final long serialVersionUID = -5370026524180441819L;
             {
@@ -229,37 +477,6 @@ public class CalculatorUI extends JFrame {
         };
     }
 
-    private void addComponentToNewLine(JComponent newLine, JComponent previousLine) {
-        mainPanel.add(newLine);
-        mainPanelLayout.putConstraint(SpringLayout.WEST, newLine, 10, SpringLayout.WEST, mainPanel);
-        if (previousLine == null) {
-            mainPanelLayout.putConstraint(SpringLayout.NORTH, newLine, 10, SpringLayout.NORTH, mainPanel);
-        } else {
-            mainPanelLayout.putConstraint(SpringLayout.NORTH, newLine, 10, SpringLayout.SOUTH, previousLine);
-        }
-        mainPanelLayout.removeLayoutComponent(mainPanel);
-        mainPanelLayout.putConstraint(SpringLayout.SOUTH, mainPanel, 10, SpringLayout.SOUTH, newLine);
-        mainPanel.setMinimumSize(mainPanelLayout.minimumLayoutSize(mainPanel));
-        mainPanel.setPreferredSize(mainPanelLayout.minimumLayoutSize(mainPanel));
-        mainPanel.setMaximumSize(mainPanelLayout.minimumLayoutSize(mainPanel));
-    }
-
-    private void appendComponentToLine(JComponent newComponent, JComponent leftComponent) {
-        mainPanel.add(newComponent);
-        if (leftComponent == null) {
-            throw new IllegalArgumentException("null left component");
-        } else {
-            mainPanelLayout.putConstraint(SpringLayout.WEST, newComponent, 0, SpringLayout.EAST, leftComponent);
-            mainPanelLayout.putConstraint(SpringLayout.VERTICAL_CENTER, newComponent, 0, SpringLayout.VERTICAL_CENTER, leftComponent);
-            mainPanelLayout.putConstraint(SpringLayout.EAST, newComponent, -10, SpringLayout.EAST, mainPanel);
-        }
-        mainPanelLayout.removeLayoutComponent(mainPanel);
-        mainPanelLayout.putConstraint(SpringLayout.SOUTH, mainPanel, 10, SpringLayout.SOUTH, newComponent);
-        mainPanel.setMinimumSize(mainPanelLayout.minimumLayoutSize(mainPanel));
-        mainPanel.setPreferredSize(mainPanelLayout.minimumLayoutSize(mainPanel));
-        mainPanel.setMaximumSize(mainPanelLayout.minimumLayoutSize(mainPanel));
-    }
-
     private void displayScrollPane(JScrollPane s, JScrollPane old) {
         if (old != null) {
             remove(old);
@@ -286,6 +503,90 @@ public class CalculatorUI extends JFrame {
         repaint();
     }
 
+    /**
+     * A line of the history, either an input or a line of its output.
+     */
+    private static final class HistoryRow {
+
+        final String text;
+        final boolean input;
+
+        HistoryRow(String text, boolean input) {
+            this.text = text;
+            this.input = input;
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    /**
+     * HistoryModel keeps the last rows in a ring buffer, so that adding a row
+     * takes constant time and the oldest rows are dropped beyond the cap.
+     */
+    private static final class HistoryModel extends AbstractListModel<HistoryRow> {
+
+        private static final long serialVersionUID = 2493075133625315547L;
+
+        private final HistoryRow[] rows;
+        private int first;
+        private int size;
+
+        HistoryModel(int capacity) {
+            rows = new HistoryRow[capacity];
+        }
+
+        void add(HistoryRow row) {
+            if (size == rows.length) {
+                rows[first] = null;
+                first = (first + 1) % rows.length;
+                size--;
+                fireIntervalRemoved(this, 0, 0);
+            }
+            rows[(first + size) % rows.length] = row;
+            size++;
+            fireIntervalAdded(this, size - 1, size - 1);
+        }
+
+        @Override
+        public int getSize() {
+            return size;
+        }
+
+        @Override
+        public HistoryRow getElementAt(int index) {
+            return rows[(first + index) % rows.length];
+        }
+    }
+
+    /**
+     * Renders only the visible rows, inputs on gray like the input line.
+     */
+    private static final class HistoryRenderer extends DefaultListCellRenderer {
+
+        private static final long serialVersionUID = -6829340195726354122L;
+        private static final Border PADDING = BorderFactory.createEmptyBorder(2, 10, 2, 10);
+
+        HistoryRenderer() {
+            // inputs are shown as typed, not as HTML
+            putClientProperty("html.disable", Boolean.TRUE);
+        }
+
+        @Override
+        public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                                                      boolean isSelected, boolean cellHasFocus) {
+            super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
+            if (!isSelected) {
+                setBackground(((HistoryRow) value).input ? Color.LIGHT_GRAY : Color.WHITE);
+                setForeground(Color.BLACK);
+            }
+            setBorder(PADDING);
+            return this;
+        }
+    }
+
     private static final long serialVersionUID = 8477203213070754493L;
 
 }
@@ -1,29 +1,49 @@
 import javax.swing.*;
 import java.awt.*;
-import java.util.Scanner;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 
 public class HelpMenu {
 
-    private static final JTextPane helpText = new JTextPane() {
-        private static final long serialVersionUID = 8773823648370901685L;
-        {
-            Scanner scanner = new Scanner(getClass().getResourceAsStream("resource/HelpMenu.html"));
-            StringBuilder stringBuilder = new StringBuilder();
-            setBackground(Color.WHITE);
-            setForeground(Color.BLACK);
-            setContentType("text/html");
-            while(scanner.hasNext()) {
-                stringBuilder.append(scanner.nextLine());
+    /**
+     * Holds the help text, read and rendered on first use only, as loading
+     * the HTML renderer costs more than showing the window.
+     */
+    private static final class Holder {
+
+        private static final JTextPane helpText = new JTextPane() {
+            private static final long serialVersionUID = 8773823648370901685L;
+            {
+                setBackground(Color.WHITE);
+                setForeground(Color.BLACK);
+                setContentType("text/html");
+                setText(readHelp());
+                setEditable(false);
             }
-            setText(stringBuilder.toString());
-            setEditable(false);
-        }
-    };
+        };
+    }
 
     static JScrollPane createHelp() {
-        JScrollPane help = new JScrollPane(helpText);
+        JScrollPane help = new JScrollPane(Holder.helpText);
         help.setBackground(Color.WHITE);
         help.setForeground(Color.BLACK);
         return help;
     }
+
+    private static String readHelp() {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                HelpMenu.class.getResourceAsStream("resource/HelpMenu.html"), StandardCharsets.UTF_8))) {
+            StringBuilder stringBuilder = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null) {
+                stringBuilder.append(line).append('\n');
+            }
+            return stringBuilder.toString();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 }
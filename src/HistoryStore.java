@@ -0,0 +1,410 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The inputs entered, kept across runs in an append-only file with one input
+ * per line, of which the last entries stay in memory for recall and search.
+ * <p>
+ * Entries are numbered in the order they are added, from 0 for the oldest
+ * one in memory when the store was opened. Searches run from the newest entry
+ * back through a trigram index: every three consecutive characters of an
+ * entry map to the ascending numbers of the entries holding them, and only
+ * entries holding the rarest trigram of the query are compared. The index is
+ * built by the first search. Queries of fewer than three characters go
+ * through a signature of the characters of each entry, a word of 64 bits, and
+ * compare only the entries holding all their characters.
+ * </p>
+ * <p>
+ * The file is rewritten to the entries in memory when it is opened with more
+ * than twice as many lines. A HistoryStore is used by one thread.
+ * </p>
+ * <p>
+ * The entries of the current session, those added since the store was
+ * opened or {@link #startSession()} was last called, are what a saved
+ * session keeps. Entries restored with a session are recalled into memory
+ * without being written to the file again.
+ * </p>
+ */
+final class HistoryStore implements Closeable {
+
+    /** The number of entries kept in memory by default. */
+    static final int DEFAULT_CAPACITY = 100000;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final String[] entries;
+    /** The character signature of each entry. */
+    private final long[] signatures;
+    /** Null until the first search. */
+    private TrigramIndex index;
+    private BufferedWriter out;
+    /** The number of the next entry. */
+    private int end;
+    /** The entries dropped from memory since the index was built. */
+    private int dropped;
+    /** The number of the first entry of the current session. */
+    private int sessionStart;
+
+    /**
+     * A store kept in memory only.
+     *
+     * @param capacity the number of entries kept, older ones are dropped
+     */
+    HistoryStore(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        entries = new String[capacity];
+        signatures = new long[capacity];
+    }
+
+    /**
+     * @return the store of the history file, with its last capacity entries
+     *         in memory.
+     * @throws IOException if the file cannot be read or written.
+     */
+    static HistoryStore open(Path file, int capacity) throws IOException {
+        HistoryStore store = new HistoryStore(capacity);
+        int lines = 0;
+        if (Files.exists(file)) {
+            try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (!line.isEmpty()) {
+                        store.put(line);
+                        lines++;
+                    }
+                }
+            }
+        }
+        if (lines > 2 * capacity) {
+            store.rewrite(file);
+        }
+        store.sessionStart = store.end;
+        store.out = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        return store;
+    }
+
+    /**
+     * @return ~/.calculator_history
+     */
+    static Path defaultFile() {
+        return Paths.get(System.getProperty("user.home"), ".calculator_history");
+    }
+
+    /**
+     * Add an input as the newest entry, and append it to the file. Blank
+     * inputs are ignored. If writing fails, the entry is kept in memory and
+     * no later entry is written.
+     *
+     * @throws IOException if the entry cannot be written.
+     */
+    void add(String input) throws IOException {
+        if (input.trim().isEmpty()) {
+            return;
+        }
+        String entry = input.replace('\n', ' ');
+        put(entry);
+        if (out != null) {
+            try {
+                out.write(entry);
+                out.newLine();
+                out.flush();
+            } catch (IOException e) {
+                closeQuietly();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Add an input as the newest entry in memory only, like an input of a
+     * session loaded from a file, which the history file holds already.
+     */
+    void recall(String input) {
+        if (!input.trim().isEmpty()) {
+            put(input.replace('\n', ' '));
+        }
+    }
+
+    /**
+     * Start a new session at the next entry, when a saved session replaces
+     * the current one.
+     */
+    void startSession() {
+        sessionStart = end;
+    }
+
+    /**
+     * @return the last count entries of the current session or fewer, oldest
+     *         first.
+     */
+    List<String> session(int count) {
+        return recent(Math.min(count, end - sessionStart));
+    }
+
+    /**
+     * @return the number of the oldest entry in memory.
+     */
+    int start() {
+        return Math.max(0, end - entries.length);
+    }
+
+    /**
+     * @return the number the next entry will have.
+     */
+    int end() {
+        return end;
+    }
+
+    /**
+     * @param id a number from {@link #start()} to {@link #end()} exclusive
+     */
+    String get(int id) {
+        if (id < start() || id >= end) {
+            throw new IndexOutOfBoundsException("no history entry " + id);
+        }
+        return entries[id % entries.length];
+    }
+
+    /**
+     * @return the last count entries or fewer, oldest first.
+     */
+    List<String> recent(int count) {
+        List<String> recent = new ArrayList<>();
+        for (int id = Math.max(start(), end - count); id < end; id++) {
+            recent.add(get(id));
+        }
+        return recent;
+    }
+
+    /**
+     * @return the number of the newest entry before the entry numbered before
+     *         that contains query, or -1 if there is none.
+     */
+    int search(String query, int before) {
+        return find(query, before, false);
+    }
+
+    /**
+     * @return the number of the newest entry before the entry numbered before
+     *         that starts with prefix, or -1 if there is none.
+     */
+    int searchPrefix(String prefix, int before) {
+        return find(prefix, before, true);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (out != null) {
+            BufferedWriter writer = out;
+            out = null;
+            writer.close();
+        }
+    }
+
+    private int find(String query, int before, boolean prefix) {
+        int start = start();
+        before = Math.min(before, end);
+        if (query.length() < 3) {
+            long signature = signature(query);
+            for (int id = before - 1, slot = id % entries.length; id >= start; id--, slot--) {
+                if (slot < 0) {
+                    slot = entries.length - 1;
+                }
+                if ((signatures[slot] & signature) == signature && matches(entries[slot], query, prefix)) {
+                    return id;
+                }
+            }
+            return -1;
+        }
+        if (index == null) {
+            buildIndex();
+        }
+        Postings rarest = null;
+        for (int i = 0; i + 3 <= query.length(); i++) {
+            Postings postings = index.get(trigram(query, i));
+            if (postings == null) {
+                return -1;
+            }
+            if (rarest == null || postings.size < rarest.size) {
+                rarest = postings;
+            }
+        }
+        int[] ids = rarest.ids;
+        // the first posting from the newest end that is before the position
+        int i = Arrays.binarySearch(ids, 0, rarest.size, before);
+        for (i = (i < 0 ? -i - 1 : i) - 1; i >= 0 && ids[i] >= start; i--) {
+            if (matches(get(ids[i]), query, prefix)) {
+                return ids[i];
+            }
+        }
+        return -1;
+    }
+
+    private static boolean matches(String entry, String query, boolean prefix) {
+        return prefix ? entry.startsWith(query) : entry.contains(query);
+    }
+
+    /**
+     * Keep an entry in memory and in the index, dropping the oldest one if
+     * full. The index is dropped, to be built again by the next search, once
+     * as many entries were dropped as are kept, so that dropped entries cost
+     * no more than the kept ones.
+     */
+    private void put(String entry) {
+        if (end >= entries.length && ++dropped > entries.length) {
+            index = null;
+        }
+        entries[end % entries.length] = entry;
+        signatures[end % entries.length] = signature(entry);
+        if (index != null) {
+            addToIndex(entry, end);
+        }
+        end++;
+    }
+
+    private void buildIndex() {
+        index = new TrigramIndex();
+        dropped = 0;
+        for (int id = start(); id < end; id++) {
+            addToIndex(get(id), id);
+        }
+    }
+
+    private void addToIndex(String entry, int id) {
+        for (int i = 0; i + 3 <= entry.length(); i++) {
+            index.postings(trigram(entry, i)).add(id);
+        }
+    }
+
+    /**
+     * @return a word with the bit of each character of s set, which holds the
+     *         bits of every substring of s.
+     */
+    private static long signature(String s) {
+        long signature = 0;
+        for (int i = 0; i < s.length(); i++) {
+            // 7 is odd, so consecutive characters fall on distinct bits
+            signature |= 1L << s.charAt(i) * 7;
+        }
+        return signature;
+    }
+
+    private static long trigram(String s, int i) {
+        return (long) s.charAt(i) << 32 | (long) s.charAt(i + 1) << 16 | s.charAt(i + 2);
+    }
+
+    /**
+     * Replace the file by the entries in memory.
+     */
+    private void rewrite(Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(Files.newBufferedWriter(temporary, StandardCharsets.UTF_8),
+                BUFFER_SIZE)) {
+            for (int id = start(); id < end; id++) {
+                writer.write(get(id));
+                writer.newLine();
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException e) {
+            // already failing
+        }
+    }
+
+    /**
+     * Open addressing from trigrams to their postings, without boxing the
+     * millions of trigrams added while building.
+     */
+    private static final class TrigramIndex {
+
+        private long[] keys = new long[1 << 12];
+        private Postings[] values = new Postings[1 << 12];
+        private int size;
+
+        Postings get(long key) {
+            for (int slot = slot(key); values[slot] != null; slot = slot + 1 & keys.length - 1) {
+                if (keys[slot] == key) {
+                    return values[slot];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return the postings of key, added if missing.
+         */
+        Postings postings(long key) {
+            Postings postings = get(key);
+            if (postings != null) {
+                return postings;
+            }
+            if (2 * ++size > keys.length) {
+                grow();
+            }
+            int slot = slot(key);
+            while (values[slot] != null) {
+                slot = slot + 1 & keys.length - 1;
+            }
+            keys[slot] = key;
+            return values[slot] = new Postings();
+        }
+
+        private int slot(long key) {
+            return (int) (key * 0x9E3779B97F4A7C15L >>> 32) & keys.length - 1;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            Postings[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new Postings[oldValues.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != null) {
+                    int slot = slot(oldKeys[i]);
+                    while (values[slot] != null) {
+                        slot = slot + 1 & keys.length - 1;
+                    }
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * The ascending numbers of the entries holding one trigram.
+     */
+    private static final class Postings {
+
+        int[] ids = new int[4];
+        int size;
+
+        void add(int id) {
+            if (size > 0 && ids[size - 1] == id) {
+                return;
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package calculator;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * BatchEvaluation evaluates a {@link Program} for a range of rows of
+ * parameter columns, splitting the range in halves down to a threshold so
+ * that fork/join workers can share the rows. Each leaf uses its own
+ * {@link Evaluator}, and reads the same immutable snapshot of the session
+ * variables. Each row is evaluated within its own budget, if any.
+ * <p>
+ * A row whose evaluation fails, like {@code log(x)} for a negative x, gives
+ * a null result. A row over budget stops the whole batch, and so does an
+ * interrupt of the thread that started it: the leaves stop before their next
+ * row, and the exception is thrown to that thread.
+ * </p>
+ * <p>
+ * Results of the double fast path are rounded to the precision of the
+ * context, and to at most {@value #FAST_DIGITS} digits, so that they do not
+ * carry the binary rounding errors of doubles, like 0.30000000000000004 for
+ * {@code x + 0.2} at x = 0.1, and read like the exact results.
+ * </p>
+ */
+final class BatchEvaluation extends RecursiveAction {
+
+    private static final long serialVersionUID = 6180338717702155276L;
+    /** The significant digits a double keeps through a decimal round trip. */
+    private static final int FAST_DIGITS = 15;
+
+    private final Program program;
+    private final BigDecimal[][] variables;
+    private final double[][] fastVariables;
+    private final BigDecimal[][] columns;
+    private final BigDecimal[] results;
+    private final MathContextWithMin context;
+    private final FunctionMemo memo;
+    private final EvaluationBudget budget;
+    private final boolean fast;
+    private final int threshold;
+    /** The thread that started the batch, whose interrupt cancels it. */
+    private final Thread caller;
+    /** Set once a leaf stopped the batch. */
+    private final AtomicBoolean stopped;
+    private final int from;
+    private final int to;
+
+    /**
+     * @param program       the program to run
+     * @param variables     the chunks of variable values
+     * @param fastVariables the chunks of variable values as doubles, or null
+     *                      if the program is evaluated exactly
+     * @param columns       the values of each parameter, indexed by row
+     * @param results       the array results are stored to by row
+     * @param context       the math context
+     * @param memo          the memo to call pure functions through, or null
+     * @param budget        the budget of each row, or null
+     * @param threshold     the number of rows evaluated without splitting
+     */
+    BatchEvaluation(Program program, BigDecimal[][] variables, double[][] fastVariables, BigDecimal[][] columns,
+                    BigDecimal[] results, MathContextWithMin context, FunctionMemo memo, EvaluationBudget budget,
+                    int threshold) {
+        this(program, variables, fastVariables, columns, results, context, memo, budget, threshold,
+                Thread.currentThread(), new AtomicBoolean(), 0, results.length);
+    }
+
+    private BatchEvaluation(Program program, BigDecimal[][] variables, double[][] fastVariables, BigDecimal[][] columns,
+                            BigDecimal[] results, MathContextWithMin context, FunctionMemo memo,
+                            EvaluationBudget budget, int threshold, Thread caller, AtomicBoolean stopped,
+                            int from, int to) {
+        this.program = program;
+        this.variables = variables;
+        this.fastVariables = fastVariables;
+        this.fast = fastVariables != null;
+        this.columns = columns;
+        this.results = results;
+        this.context = context;
+        this.memo = memo;
+        this.budget = budget;
+        this.threshold = threshold;
+        this.caller = caller;
+        this.stopped = stopped;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from > threshold) {
+            int middle = (from + to) >>> 1;
+            invokeAll(new BatchEvaluation(program, variables, fastVariables, columns, results, context, memo, budget,
+                            threshold, caller, stopped, from, middle),
+                    new BatchEvaluation(program, variables, fastVariables, columns, results, context, memo, budget,
+                            threshold, caller, stopped, middle, to));
+            return;
+        }
+        Evaluator evaluator = new Evaluator();
+        BigDecimal[] parameters = new BigDecimal[columns.length];
+        double[] fastParameters = new double[columns.length];
+        MathContext mathContext = context.getMathContext();
+        MathContext fastContext = new MathContext(Math.min(mathContext.getPrecision(), FAST_DIGITS),
+                mathContext.getRoundingMode());
+        for (int row = from; row < to; row++) {
+            if (stopped.get()) {
+                return;
+            }
+            if (caller.isInterrupted()) {
+                stopped.set(true);
+                throw new CancellationException("Evaluation cancelled");
+            }
+            for (int i = 0; i < columns.length; i++) {
+                parameters[i] = columns[i][row];
+                if (fast) {
+                    fastParameters[i] = parameters[i].doubleValue();
+                }
+            }
+            try {
+                MathContextWithMin context = this.context.withBudget(budget);
+                double result = fast ? evaluator.evaluateFast(program, fastVariables, fastParameters, context) : Double.NaN;
+                results[row] = Double.isNaN(result)
+                        ? evaluator.evaluate(program, variables, parameters, context, memo, null)
+                        : round(result, fastContext);
+            } catch (CancellationException | EvaluationBudget.ExceededException e) {
+                stopped.set(true);
+                throw e;
+            } catch (RuntimeException e) {
+                results[row] = null;
+            }
+        }
+    }
+
+    /**
+     * @return result rounded to context, without the trailing zeros of its
+     *         fraction.
+     */
+    private static BigDecimal round(double result, MathContext context) {
+        BigDecimal rounded = BigDecimal.valueOf(result).round(context);
+        if (rounded.scale() <= 0) {
+            return rounded;
+        }
+        rounded = rounded.stripTrailingZeros();
+        return rounded.scale() < 0 ? rounded.setScale(0) : rounded;
+    }
+}
@@ -14,71 +14,127 @@ enum BinaryOperators {
         public BigDecimal call(BigDecimal left, BigDecimal right, MathContextWithMin context) {
             return left.compareTo(BigDecimal.ZERO) == 0 && right.compareTo(BigDecimal.ZERO) == 0 ? BigDecimal.ZERO : BigDecimal.ONE;
         }
+        @Override
+        public double fastCall(double left, double right, MathContextWithMin context) {
+            return left == 0 && right == 0 ? 0 : 1;
+        }
     }), AND("&", -7, new Function() {
         @Override
         public BigDecimal call(BigDecimal left, BigDecimal right, MathContextWithMin context) {
             return left.compareTo(BigDecimal.ZERO) == 0 || right.compareTo(BigDecimal.ZERO) == 0 ? BigDecimal.ZERO : BigDecimal.ONE;
         }
+        @Override
+        public double fastCall(double left, double right, MathContextWithMin context) {
+            return left == 0 || right == 0 ? 0 : 1;
+        }
     }), NOT_EQUAL("!=", -6, new Function() {
         @Override
         public BigDecimal call(BigDecimal left, BigDecimal right, MathContextWithMin context) {
             return right.subtract(left).abs().compareTo(context.getMinimum()) >= 0 ? BigDecimal.ONE: BigDecimal.ZERO;
         }
+        @Override
+        public double fastCall(double left, double right, MathContextWithMin context) {
+            return Math.abs(right - left) >= context.getFastMinimum() ? 1 : 0;
+        }
     }), EQUAL("==", -6, new Function() {
         @Override
         public BigDecimal call(BigDecimal left, BigDecimal right, MathContextWithMin context) {
             return right.subtract(left).abs().compareTo(context.getMinimum()) < 0 ? BigDecimal.ONE : BigDecimal.ZERO;
         }
+        @Override
+        public double fastCall(double left, double right, MathContextWithMin context) {
+            return Math.abs(right - left) < context.getFastMinimum() ? 1 : 0;
+        }
     }), GREATER(">", -4, new Function() {
         @Override
         public BigDecimal call(BigDecimal left, BigDecimal right, MathContextWithMin context) {
             return left.subtract(right).compareTo(context.getMinimum()) > 0 ? BigDecimal.ONE : BigDecimal.ZERO;
         }
+        @Override
+        public double fastCall(double left, double right, MathContextWithMin context) {
+            return left - right > context.getFastMinimum() ? 1 : 0;
+        }
     }), LESS("<", -4, new Function() {
         @Override
         public BigDecimal call(BigDecimal left, BigDecimal right, MathContextWithMin context) {
             return right.subtract(left).compareTo(context.getMinimum()) > 0 ? BigDecimal.ONE : BigDecimal.ZERO;
         }
+        @Override
+        public double fastCall(double left, double right, MathContextWithMin context) {
+            return right - left > context.getFastMinimum() ? 1 : 0;
+        }
     }), LESS_EQUAL("<=", -4, new Function() {
         @Override
         public BigDecimal call(BigDecimal left, BigDecimal right, MathContextWithMin context) {
             return left.subtract(right).compareTo(context.getMinimum()) < 0 ? BigDecimal.ONE : BigDecimal.ZERO;
         }
+        @Override
+        public double fastCall(double left, double right, MathContextWithMin context) {
+            return left - right < context.getFastMinimum() ? 1 : 0;
+        }
     }), GREATER_EQUAL(">=", -4, new Function() {
         @Override
         public BigDecimal call(BigDecimal left, BigDecimal right, MathContextWithMin context) {
             return right.subtract(left).compareTo(context.getMinimum()) < 0 ? BigDecimal.ONE : BigDecimal.ZERO;
         }
+        @Override
+        public double fastCall(double left, double right, MathContextWithMin context) {
+            return right - left < context.getFastMinimum() ? 1 : 0;
+        }
     }), PLUS("+", -3, new Function() {
         @Override
         public BigDecimal call(BigDecimal left, BigDecimal right, MathContextWithMin context) {
             return left.add(right, context.getMathContext());
         }
+        @Override
+        public double fastCall(double left, double right, MathContextWithMin context) {
+            return left + right;
+        }
     }), MINUS("-", -3, new Function() {
         @Override
         public BigDecimal call(BigDecimal left, BigDecimal right, MathContextWithMin context) {
             return left.subtract(right, context.getMathContext());
         }
+        @Override
+        public double fastCall(double left, double right, MathContextWithMin context) {
+            return left - right;
+        }
     }), MULTIPLY("*", -2, new Function() {
         @Override
         public BigDecimal call(BigDecimal left, BigDecimal right, MathContextWithMin context) {
             return left.multiply(right, context.getMathContext());
         }
+        @Override
+        public double fastCall(double left, double right, MathContextWithMin context) {
+            return left * right;
+        }
     }), DIVIDE("/", -2, new Function() {
         @Override
         public BigDecimal call(BigDecimal left, BigDecimal right, MathContextWithMin context) {
             return left.divide(right, context.getMathContext());
         }
+        @Override
+        public double fastCall(double left, double right, MathContextWithMin context) {
+            return left / right;
+        }
     }), REMAINDER("%", -2, new Function() {
         @Override
         public BigDecimal call(BigDecimal left, BigDecimal right, MathContextWithMin context) {
             return left.remainder(right, context.getMathContext());
         }
+        @Override
+        public double fastCall(double left, double right, MathContextWithMin context) {
+            return left % right;
+        }
     }), POWER("^", -1, new Function() {
         @Override
         public BigDecimal call(BigDecimal left, BigDecimal right, MathContextWithMin context) {
             return BigDecimalMath.pow(left, right, context.getMathContext());
         }
+        @Override
+        public double fastCall(double left, double right, MathContextWithMin context) {
+            return Math.pow(left, right);
+        }
     });
 
     private final String name;
@@ -107,6 +163,14 @@ enum BinaryOperators {
         return binaryOperators.get(c);
     }
 
+    final String getName() {
+        return name;
+    }
+
+    final int getPriority() {
+        return priority;
+    }
+
     public final int comparePriority(BinaryOperators o) {
         return this.priority - o.priority;
     }
@@ -115,4 +179,8 @@ enum BinaryOperators {
         return function.call(l, r, m);
     }
 
+    final double fastCall(double l, double r, MathContextWithMin m) {
+        return function.fastCall(l, r, m);
+    }
+
 }
@@ -1,15 +1,16 @@
 package calculator;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
-import java.util.LinkedList;
-import java.util.HashMap;
-import java.util.NoSuchElementException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
 import java.math.BigDecimal;
-import java.math.MathContext;
-import ch.obermuhlner.math.big.BigDecimalMath;
 
 /**
  * The Calculator class allows simple calculations and variable assignments.
@@ -30,39 +31,115 @@ import ch.obermuhlner.math.big.BigDecimalMath;
  * Supported <em>assignments</em>: {@code =, +=, -=, *=, /=, %=, ^=} assignments
  * </p>
  * <p>
+ * <em>Formula bindings</em> like {@code total := a * rate + fee} assign the
+ * formula rather than its value: whenever a variable it reads changes, the
+ * formulas depending on it are computed again, in dependency order. Formulas
+ * also read the variables of the user functions they call, and are computed
+ * again when such a function is defined again. Circular formulas are
+ * rejected. Assigning a bound variable with another operator
+ * turns it back into a plain variable.
+ * </p>
+ * <p>
  * Supported <em>functions</em>: defined in {@link calculator#Functions}.
  * </p>
  * <p>
+ * <em>User functions</em> are defined like {@code f(x, y) = x^2 + sin(y)},
+ * compiled once, and may call themselves up to 256 calls deep. Defining a
+ * function again changes it for every caller. Functions share the namespace
+ * of variables, and cannot be named after a built-in function.
+ * </p>
+ * <p>
  * Predefined <em>variables</em>: {@code e} and {@code pi}, which can be
  * reassigned if needed.
  * </p>
+ * <p>
+ * Calculations use 34 significant digits unless another session precision is
+ * given, and an expression prefixed with {@code @prec N}, like
+ * {@code @prec 100 pi * 2}, is computed with N digits. Results show about half
+ * of the digits, 16 at the default precision, as the last digits may carry
+ * rounding errors.
+ * </p>
+ * <p>
+ * A CalculatorProcessor can be shared by any number of threads. Every
+ * evaluation reads one consistent snapshot of the variables without locking.
+ * Compound assignments like {@code a += 1} are atomic read-modify-write
+ * operations on their variable, while {@code a = a + 1} reads {@code a} from
+ * the snapshot and may overwrite a concurrent update. An assignment that
+ * returned in one thread is visible to every evaluation started afterwards in
+ * any thread, and so are the precision, the evaluation mode, the function
+ * memo, the evaluation budget and the trace listener once their setter
+ * returned. The trace listener may be called from several threads at once.
+ * </p>
  */
 public class CalculatorProcessor {
 
-    private static final String VARIABLE = "[a-zA-Z][a-zA-Z0-9_]*";
-    private static final String NUMBER = "(([1-9]\\d*|0)(\\.\\d*)?)|(\\.\\d+)";
-    private static final String PARENTHESIS = "[()]";
-    private static final String PERIOD = ",";
-    private static final String OPERATORS = "(\\||&|%|!=|==|>=|<=|[!+\\-*/^><])";
-    private static final String COMBINED_REGEX = "(?<variable>" + VARIABLE + ")\\s*|" +
-                                                 "(?<number>" + NUMBER + ")\\s*|" +
-                                                 "(?<parenthesis>" + PARENTHESIS + ")\\s*|" +
-                                                 "(?<period>" + PERIOD + ")\\s*|" +
-                                                 "(?<operator>" + OPERATORS + ")\\s*";
-    private static final String EVALUATION = "(\\||&|%|!=|==|>=|<=|[a-zA-Z0-9_.!+\\-*/^()>< ,])*";
-    private static final String ASSIGNMENT = "^\\s*(?<variable>" + VARIABLE + ")\\s*" +
-                                                  "(?<assignment>[+\\-*/%^]?)=\\s*" +
-                                                  "(?<evaluation>" + EVALUATION + ")\\s*$";
-    private static final Pattern VARIABLE_PATTERN = Pattern.compile("^(?<negate>-)?(?<variable>" + VARIABLE + ")$");
-    private static final Pattern EVALUATION_PATTERN = Pattern.compile(EVALUATION);
-    private static final Pattern ASSIGNMENT_PATTERN = Pattern.compile(ASSIGNMENT);
-    private static final Pattern MAIN_PATTERN = Pattern.compile(COMBINED_REGEX);
-    private static final MathContextWithMin MATH_CONTEXT_WITH_MIN = new MathContextWithMin(MathContext.DECIMAL128, BigDecimal.ONE.movePointLeft(15));
-    private final HashMap<String, BigDecimal> variables = new HashMap<>();
+    private static final int DEFAULT_CACHE_CAPACITY = 256;
+    private static final int DEFAULT_PRECISION = 34;
+    /** Doubles carry about 16 significant digits. */
+    private static final int FAST_DISPLAY_DIGITS = 16;
+    private static final BigDecimal[] NO_PARAMETERS = new BigDecimal[0];
+    private static final double[] NO_FAST_PARAMETERS = new double[0];
+    private static final String[] NO_NAMES = new String[0];
+    /** Batch rows are split into about this many tasks per worker thread. */
+    private static final int BATCH_TASKS_PER_THREAD = 8;
+    /** Evaluators hold no session state and are reused by each thread. */
+    private static final ThreadLocal<Evaluator> EVALUATOR = new ThreadLocal<Evaluator>() {
+        @Override
+        protected Evaluator initialValue() {
+            return new Evaluator();
+        }
+    };
+    private final VariableStore variables = new VariableStore();
+    /** Guarded by itself. */
+    private final Formulas formulas = new Formulas();
+    private final int cacheCapacity;
+    /** Guarded by itself. */
+    private final Map<String, CompiledExpression> cache;
+    private volatile MathContextWithMin context;
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private volatile EvaluationTraceListener traceListener;
+    private volatile EvaluationMode evaluationMode = EvaluationMode.EXACT;
+    private volatile FunctionMemo functionMemo;
+    private volatile EvaluationBudget evaluationBudget;
 
     public CalculatorProcessor() {
-        variables.put("e", BigDecimalMath.e(MATH_CONTEXT_WITH_MIN.getMathContext()));
-        variables.put("pi", BigDecimalMath.pi(MATH_CONTEXT_WITH_MIN.getMathContext()));
+        this(DEFAULT_CACHE_CAPACITY);
+    }
+
+    /**
+     * @param cacheCapacity the maximum number of compiled expressions kept in
+     *                      the least-recently-used cache, 0 disables caching.
+     */
+    public CalculatorProcessor(int cacheCapacity) {
+        this(cacheCapacity, DEFAULT_PRECISION);
+    }
+
+    /**
+     * @param cacheCapacity the maximum number of compiled expressions kept in
+     *                      the least-recently-used cache, 0 disables caching.
+     * @param precision     the number of significant digits of the session.
+     * @throws IllegalArgumentException if precision is not between 1 and 10000.
+     */
+    public CalculatorProcessor(int cacheCapacity, int precision) {
+        if (cacheCapacity < 0) {
+            throw new IllegalArgumentException("cache capacity must not be negative");
+        }
+        this.cacheCapacity = cacheCapacity;
+        this.cache = new LinkedHashMap<String, CompiledExpression>(16, 0.75f, true) {
+            private static final long serialVersionUID = -4403418934720853612L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledExpression> eldest) {
+                return size() > CalculatorProcessor.this.cacheCapacity;
+            }
+        };
+        this.context = MathContextWithMin.of(precision, new RandomStreams());
+        for (Constants constant : Constants.values()) {
+            if (constant.getVariableName() != null) {
+                variables.putPredefined(constant, constant.get(context.getMathContext()));
+            }
+        }
     }
 
     /**
@@ -74,306 +151,599 @@ public class CalculatorProcessor {
      *         Force to use plain output if the absolute value of the result is
      *         between 10^17 and 10^-10.
      * @throws IllegalArgumentException if the expression is invalid.
+     * @throws java.util.concurrent.CancellationException if the thread is
+     *         interrupted while evaluating.
      */
     public String expression(String input) {
-        Matcher isAssignment = ASSIGNMENT_PATTERN.matcher(input);
-        if (isAssignment.find()) {
-            String LHS = isAssignment.group("variable").replaceAll("\\s*", "");
-            if (Functions.isFunctionName(LHS)) {
-                throw new PreservedKeywordException(String.format("%s is preserved", LHS));
+        return expression(compile(input));
+    }
+
+    /**
+     * Evaluate an expression compiled by {@link #compile(String)} against the
+     * current variables.
+     *
+     * @param compiled the compiled expression
+     * @return null if it is an assignment or a definition, or return the
+     *         result as String.
+     * @throws IllegalArgumentException if the expression is invalid or has
+     *                                  parameters.
+     */
+    public String expression(CompiledExpression compiled) {
+        if (compiled.getParameterCount() > 0) {
+            throw new IllegalArgumentException("Invalid expression: parameters can only be bound by evaluateBatch");
+        }
+        MathContextWithMin sessionContext = this.context;
+        if (!compiled.isValid(variables.snapshot(), sessionContext)) {
+            compiled = compile(compiled.getInput());
+        }
+        if (compiled.isDefinition()) {
+            define(compiled.getDefinition(), compiled.getBody());
+            return null;
+        }
+        MathContextWithMin context = compiled.getContext() != null ? compiled.getContext() : sessionContext;
+        EvaluationTraceListener traceListener = this.traceListener;
+        EvaluateEvent event = new EvaluateEvent();
+        event.begin();
+        BigDecimal result = execute(compiled, context, traceListener, event);
+        event.end();
+        if (event.shouldCommit()) {
+            event.input = compiled.getInput();
+            event.precision = context.getMathContext().getPrecision();
+            event.commit();
+        }
+        if (traceListener != null) {
+            traceListener.evaluated(compiled.getInput(), result);
+        }
+        if (compiled.isAssignment()) {
+            return null;
+        }
+        if (context.getMinimum().compareTo(result.abs()) > 0) {
+            return "0";
+        }
+        BigDecimal plainDisplayUpper = BigDecimal.ONE.movePointRight(15);
+        BigDecimal plainDisplayLower = BigDecimal.ONE.movePointLeft(10);
+        if (plainDisplayUpper.compareTo(result.abs()) > 0 && plainDisplayLower.compareTo(result.abs()) < 0) {
+            return result.round(context.getDisplayContext()).stripTrailingZeros().toPlainString();
+        }
+        return result.round(context.getDisplayContext()).stripTrailingZeros().toString();
+    }
+
+    /**
+     * Parse an input line once, so it can be evaluated many times with
+     * {@link #expression(CompiledExpression)}. Compiled inputs are kept in a
+     * bounded least-recently-used cache keyed by the input text.
+     *
+     * @param input the input expression or assignment
+     * @return the compiled expression
+     * @throws IllegalArgumentException if the expression is invalid.
+     */
+    public CompiledExpression compile(String input) {
+        CompiledExpression compiled;
+        synchronized (cache) {
+            compiled = cache.get(input);
+        }
+        if (compiled != null && compiled.isValid(variables.snapshot(), context)) {
+            cacheHits.increment();
+            return compiled;
+        }
+        cacheMisses.increment();
+        compiled = parse(input, NO_NAMES);
+        if (cacheCapacity > 0) {
+            synchronized (cache) {
+                cache.put(input, compiled);
             }
-            String assignment = isAssignment.group("assignment");
-            String RHS = isAssignment.group("evaluation");
-            switch (assignment) {
-                case "+": case "-": case "*": case "/": case "%": case "^":
-                    if (variables.containsKey(LHS)) {
-                        variables.put(LHS, BinaryOperators.of(assignment).call(variables.get(LHS), evaluate(RHS), MATH_CONTEXT_WITH_MIN));
-                    } else {
-                        throw new IllegalArgumentException(
-                                String.format("Invalid expression: unknown variable %s", LHS));
-                    }
-                    break;
-                default:
-                    variables.put(LHS, evaluate(RHS));
-                    break;
+        }
+        return compiled;
+    }
+
+    /**
+     * Compile an expression whose parameters are bound for each evaluation by
+     * {@link #evaluateBatch(CompiledExpression, Map)}. Parameters hide
+     * variables of the same name. Expressions with parameters are not cached.
+     *
+     * @param input      the input expression
+     * @param parameters the parameter names
+     * @return the compiled expression
+     * @throws IllegalArgumentException  if the expression or a parameter name
+     *                                   is invalid.
+     * @throws PreservedKeywordException if a parameter is named after a
+     *                                   function or {@code if}.
+     */
+    public CompiledExpression compile(String input, String... parameters) {
+        if (parameters.length == 0) {
+            return compile(input);
+        }
+        Set<String> names = new HashSet<>();
+        for (String parameter : parameters) {
+            if (Parser.isPreserved(parameter)) {
+                throw new PreservedKeywordException(String.format("%s is preserved", parameter));
             }
-        } else {
-            Matcher isLegal = EVALUATION_PATTERN.matcher(input);
-            if (!isLegal.matches()) {
-                throw new IllegalArgumentException("Invalid expression: illegal operators or input");
+            if (parameter == null || !parameter.matches("[a-zA-Z][a-zA-Z0-9_]*") || !names.add(parameter)) {
+                throw new IllegalArgumentException(String.format("Invalid parameter name %s", parameter));
             }
-            BigDecimal result = evaluate(input);
-            if (MATH_CONTEXT_WITH_MIN.getMinimum().compareTo(result.abs()) > 0) {
-                return "0";
+        }
+        return parse(input, parameters.clone());
+    }
+
+    /**
+     * Evaluate an expression for every row of a set of parameter columns, in
+     * parallel on the common fork/join pool. Variables that are not
+     * parameters keep the values they have when the batch starts.
+     *
+     * @param compiled the expression, compiled with
+     *                 {@link #compile(String, String...)}
+     * @param bindings the values of each parameter by name, all of the same
+     *                 length, the number of rows
+     * @return the result of each row, or null for the rows whose evaluation
+     *         failed
+     * @throws IllegalArgumentException if the expression is an assignment, or
+     *                                  a parameter is not bound, or the
+     *                                  columns differ in length.
+     * @throws EvaluationBudget.ExceededException if a row is over the
+     *         evaluation budget, which stops the remaining rows.
+     * @throws java.util.concurrent.CancellationException if the thread is
+     *         interrupted while evaluating.
+     */
+    public BigDecimal[] evaluateBatch(CompiledExpression compiled, Map<String, BigDecimal[]> bindings) {
+        if (compiled.isAssignment() || compiled.isDefinition()) {
+            throw new IllegalArgumentException("Invalid expression: assignments cannot be evaluated in batch");
+        }
+        Variables snapshot = variables.snapshot();
+        MathContextWithMin sessionContext = this.context;
+        if (!compiled.isValid(snapshot, sessionContext)) {
+            compiled = compile(compiled.getInput(), compiled.getParameters());
+        }
+        String[] parameters = compiled.getParameters();
+        BigDecimal[][] columns = new BigDecimal[parameters.length][];
+        int rows = -1;
+        for (int i = 0; i < parameters.length; i++) {
+            columns[i] = bindings.get(parameters[i]);
+            if (columns[i] == null) {
+                throw new IllegalArgumentException(String.format("parameter %s is not bound", parameters[i]));
             }
-            BigDecimal plainDisplayUpper = BigDecimal.ONE.movePointRight(15);
-            BigDecimal plainDisplayLower = BigDecimal.ONE.movePointLeft(10);
-            if (plainDisplayUpper.compareTo(result.abs()) > 0 && plainDisplayLower.compareTo(result.abs()) < 0) {
-                return result.round(MathContext.DECIMAL64).stripTrailingZeros().toPlainString();
+            if (rows >= 0 && columns[i].length != rows) {
+                throw new IllegalArgumentException("parameter columns must have the same length");
             }
-            return result.round(MathContext.DECIMAL64).stripTrailingZeros().toString();
-        }
-        return null;
-    }
-
-    private BigDecimal evaluate(String input) {
-        Deque<String> postFix = toPosFix(input);
-        Deque<BigDecimal> cache = new LinkedList<>();
-        System.out.println(">>>>eval:\n");
-        while (!postFix.isEmpty()) {
-            String temp = postFix.pollLast();
-            if (Functions.isFunctionName(temp)) {
-                Functions f = Functions.of(temp);
-                assert f != null;
-                Deque<BigDecimal> parameters = new ArrayDeque<>(4);
-                int paramCount = cache.pop().intValue();
-                if (paramCount > 20) {
-                    throw new IllegalArgumentException("Invalid expression: too many parameters");
-                }
-                for (int i = 0; i < paramCount; i++) {
-                    parameters.push(cache.pop());
-                }
-                try {
-                    cache.push(f.call(parameters, MATH_CONTEXT_WITH_MIN));
-                } catch (UnsupportedOperationException e) {
-                    throw new IllegalArgumentException("Invalid expression: invalid number of parameters");
-                }
-            } else if (BinaryOperators.isBinaryOperator(temp)) {
-                BinaryOperators o = BinaryOperators.of(temp);
-                assert o != null;
-                try {
-                    BigDecimal RHS = cache.pop();
-                    BigDecimal LHS = cache.pop();
-                    cache.push(o.call(LHS, RHS, MATH_CONTEXT_WITH_MIN));
-                } catch (NoSuchElementException e) {
-                    throw new IllegalArgumentException("Invalid expression: fail to evaluate operator");
-                }
-            } else {
-                Matcher isVariable = VARIABLE_PATTERN.matcher(temp);
-                if(isVariable.matches()) {
-                    BigDecimal number = variables.get(isVariable.group("variable"));
-                    if (isVariable.group("negate") != null) {
-                        cache.push(number.negate());
-                    } else {
-                        cache.push(number);
-                    }
-                } else {
-                    cache.push(new BigDecimal(temp, MATH_CONTEXT_WITH_MIN.getMathContext()));
-                }
+            rows = columns[i].length;
+        }
+        if (rows < 0) {
+            rows = 1;
+        }
+        MathContextWithMin context = compiled.getContext() != null ? compiled.getContext() : sessionContext;
+        BigDecimal[] results = new BigDecimal[rows];
+        int threshold = Math.max(1, rows / (ForkJoinPool.getCommonPoolParallelism() * BATCH_TASKS_PER_THREAD));
+        new BatchEvaluation(compiled.getProgram(), snapshot.values(),
+                isFast(context) ? snapshot.fastValues() : null, columns, results, context, functionMemo,
+                evaluationBudget, threshold).invoke();
+        return results;
+    }
+
+    /**
+     * Evaluate a probability, density or quantile function at many points in
+     * one call, like {@code evaluateDistribution("pnorm", points, 0, 2)} for
+     * {@code pnorm(q, 0, 2)} at every q in points, with one distribution.
+     *
+     * @param function   the name of the distribution function
+     * @param points     the points, the first argument of the function
+     * @param parameters the parameters of the distribution
+     * @return the value at each point
+     * @throws IllegalArgumentException if function is not a distribution
+     *                                  function, or does not take that many
+     *                                  parameters.
+     * @throws ArithmeticException      if a parameter is out of range.
+     */
+    public double[] evaluateDistribution(String function, double[] points, double... parameters) {
+        Functions f = Functions.of(function);
+        if (f == null) {
+            throw new IllegalArgumentException(String.format("unknown function %s", function));
+        }
+        try {
+            return f.apply(points, parameters);
+        } catch (UnsupportedOperationException e) {
+            throw new IllegalArgumentException(e.getMessage() != null
+                    ? e.getMessage() : "Invalid expression: invalid number of parameters");
+        }
+    }
+
+    /**
+     * Draw many samples of a random function in one call, like
+     * {@code sample("rnorm", 1000, 0, 2)} for {@code rnorm(0, 2)}, without
+     * creating a distribution or a {@code BigDecimal} per sample.
+     *
+     * @param function   the name of the random function
+     * @param n          the number of samples
+     * @param parameters the parameters of the function
+     * @return the samples
+     * @throws IllegalArgumentException if function is not a random function,
+     *                                  or does not take that many parameters.
+     * @throws ArithmeticException      if a parameter is out of range.
+     */
+    public double[] sample(String function, int n, double... parameters) {
+        Functions f = Functions.of(function);
+        if (f == null) {
+            throw new IllegalArgumentException(String.format("unknown function %s", function));
+        }
+        if (n < 0) {
+            throw new IllegalArgumentException("number of samples must not be negative");
+        }
+        try {
+            return f.sample(n, parameters, context);
+        } catch (UnsupportedOperationException e) {
+            throw new IllegalArgumentException(e.getMessage() != null
+                    ? e.getMessage() : "Invalid expression: invalid number of parameters");
+        }
+    }
+
+    /**
+     * Compute an aggregate function over any number of values, like
+     * {@code aggregate("median", values)}, or
+     * {@code aggregate("quantile", p, x1, x2, ...)} with the probability first.
+     *
+     * @param function  the name of the aggregate function
+     * @param arguments the arguments of the function
+     * @return the result, with the session precision
+     * @throws IllegalArgumentException if function is not an aggregate
+     *                                  function, or there are too few values.
+     * @throws ArithmeticException      if an argument is out of range.
+     */
+    public BigDecimal aggregate(String function, BigDecimal... arguments) {
+        Functions f = aggregateFunction(function);
+        try {
+            return f.call(arguments, 0, arguments.length, context);
+        } catch (UnsupportedOperationException e) {
+            throw new IllegalArgumentException("Invalid expression: invalid number of parameters");
+        }
+    }
+
+    /**
+     * Compute an aggregate function over any number of values in double
+     * precision, see {@link #aggregate(String, BigDecimal...)}.
+     */
+    public double aggregate(String function, double[] arguments) {
+        Functions f = aggregateFunction(function);
+        try {
+            return f.fastCall(arguments, 0, arguments.length, context);
+        } catch (UnsupportedOperationException e) {
+            throw new IllegalArgumentException("Invalid expression: invalid number of parameters");
+        }
+    }
+
+    private static Functions aggregateFunction(String function) {
+        Functions f = Functions.of(function);
+        if (f == null || !f.isVariadic()) {
+            throw new IllegalArgumentException(String.format("%s is not an aggregate function", function));
+        }
+        return f;
+    }
+
+    /**
+     * @return the number of {@link #compile(String)} calls served from the cache.
+     */
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    /**
+     * @return the number of {@link #compile(String)} calls that had to parse.
+     */
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    /**
+     * @return the number of compiled expressions currently cached.
+     */
+    public int getCacheSize() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public int getCacheCapacity() {
+        return cacheCapacity;
+    }
+
+    /**
+     * Change the number of significant digits of the session. The predefined
+     * constants are set to the new precision unless they have been reassigned,
+     * and expressions compiled before are compiled again when evaluated, as
+     * literals are rounded to the precision when compiled.
+     *
+     * @param precision the number of significant digits, 34 by default
+     * @throws IllegalArgumentException if precision is not between 1 and 10000.
+     */
+    public synchronized void setPrecision(int precision) {
+        MathContextWithMin context = this.context.withPrecision(precision);
+        for (Constants constant : Constants.values()) {
+            if (constant.getVariableName() != null) {
+                variables.resetPredefined(constant, constant.get(context.getMathContext()));
             }
-            System.out.println("postFix" + postFix);
-            System.out.println("deCache" + cache);
-            System.out.println();
-        }
-        if (cache.size() != 1) {
-            throw new IllegalArgumentException("Invalid expression: error");
-        }
-        System.out.println(">>>>>>> END");
-        System.out.println();
-        return cache.pop();
-    }
-
-    private Deque<String> toPosFix(String input) {
-        Deque<String> postFix = new ArrayDeque<>();
-        Deque<String> cache = new ArrayDeque<>();
-        Deque<Integer> functionParameterCount = new ArrayDeque<>();
-        Matcher mainMatcher = MAIN_PATTERN.matcher(input);
-        String previousInput = null;
-        boolean negativeSign = false;
-        boolean logicalNot = false;
-        loop: while (!mainMatcher.hitEnd()) {
-            if (mainMatcher.find()) {
-                String capturedParenthesis = mainMatcher.group("parenthesis");
-                String capturedOperator = mainMatcher.group("operator");
-                String capturedPeriod = mainMatcher.group("period");
-                String capturedVariableOrFunction = mainMatcher.group("variable");
-                String capturedNumber = mainMatcher.group("number");
-
-                if (capturedOperator != null) {
-                    if (Functions.isFunctionName(previousInput)) {
-                        throw new IllegalArgumentException("Invalid expression: invalid function call");
-                    }
-                    if ("!".equals(capturedOperator)) {
-                        if ("operand".equals(previousInput) || ")".equals(previousInput)) {
-                            throw new IllegalArgumentException("Invalid expression: misplaced logical_not");
-                        }
-                    }
-                    if ("operator".equals(previousInput) || "(".equals(previousInput)
-                            || "f(".equals(previousInput) || previousInput == null) {
-                        switch (capturedOperator) {
-                            case "!":
-                                logicalNot = !logicalNot;
-                                continue loop;
-                            case "-":
-                                negativeSign = !negativeSign;
-                            case "+":
-                                continue loop;
-                            default:
-                                throw new IllegalArgumentException(String.format("Invalid expression: no operand preceding %s", capturedOperator));
-                        }
-                    }
-                    if (!cache.isEmpty() && !"(".equals(cache.peek()) && !"f(".equals(cache.peek())) {
-                        BinaryOperators thisO = BinaryOperators.of(capturedOperator);
-                        assert thisO != null;
-                        BinaryOperators previousO = BinaryOperators.of(cache.peek());
-                        assert previousO != null;
-                        if (thisO.comparePriority(previousO) <= 0) {
-                            while (true) {
-                                postFix.push(cache.pop());
-                                if (cache.isEmpty() || "(".equals(cache.peek()) || "f(".equals(cache.peek())) {
-                                    break;
-                                }
-                                BinaryOperators o0 = BinaryOperators.of(cache.peek());
-                                assert o0 != null;
-                                if (thisO.comparePriority(o0) > 0) {
-                                    break;
-                                }
-                            }
-                        }
-                    }
-                    cache.push(capturedOperator);
-                    previousInput = "operator";
-                    System.out.println("Operator: " + capturedOperator);
-                }
+        }
+        this.context = context;
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
 
-                if ("(".equals(capturedParenthesis)) {
-                    if ("operand".equals(previousInput) || ")".equals(previousInput)) {
-                        throw new IllegalArgumentException("Invalid expression: incomplete expression");
-                    }
-                    if (Functions.isFunctionName(previousInput)) {
-                        if (logicalNot) {
-                            cache.push("!");
-                            logicalNot = false;
-                        } else if (negativeSign) {
-                            cache.push("b-");
-                            negativeSign = false;
-                        }
-                    functionParameterCount.push(0);
-                    cache.push(previousInput);
-                    cache.push("f(");
-                    previousInput = "f(";
-                    } else {
-                        cache.push("(");
-                        previousInput = "(";
-                    }
-                    System.out.println("Parenthesis: " + capturedParenthesis);
-                }
+    public int getPrecision() {
+        return context.getMathContext().getPrecision();
+    }
 
-                if (")".equals(capturedParenthesis)) {
-                    if (Functions.isFunctionName(previousInput) || "operator".equals(previousInput) || "(".equals(previousInput) || ",".equals(previousInput)) {
-                        throw new IllegalArgumentException("Invalid expression: incomplete expression");
-                    }
-                    if (cache.isEmpty()) {
-                        throw new IllegalArgumentException("Invalid expression: cannot find matching left parenthesis");
-                    }
-                    while (true) {
-                        String temp = cache.pop();
-                        if ("(".equals(temp)) {
-                            break;
-                        }
-                        if ("f(".equals(temp)) {
-                            postFix.push(functionParameterCount.pop().toString());
-                            postFix.push(cache.pop());
-                            break;
-                        }
-                        if (cache.isEmpty()) {
-                            throw new IllegalArgumentException("Invalid expression: cannot find matching left parenthesis");
-                        }
-                        postFix.push(temp);
-                    }
-                    previousInput = ")";
-                    System.out.println("Parenthesis: " + capturedParenthesis);
-                }
+    /**
+     * Select between exact {@code BigDecimal} evaluation and double precision
+     * evaluation with automatic {@code BigDecimal} fallback. Evaluation is
+     * always exact while a trace listener is registered, or when results
+     * show more digits than a double holds.
+     *
+     * @param evaluationMode the mode, {@link EvaluationMode#EXACT} by default
+     */
+    public void setEvaluationMode(EvaluationMode evaluationMode) {
+        if (evaluationMode == null) {
+            throw new IllegalArgumentException("evaluation mode must not be null");
+        }
+        this.evaluationMode = evaluationMode;
+    }
 
-                if (capturedPeriod != null) {
-                    if (cache.isEmpty() || ",".equals(previousInput) || "operator".equals(previousInput) || "(".equals(previousInput)
-                            || "f(".equals(previousInput) || Functions.isFunctionName(previousInput)) {
-                        throw new IllegalArgumentException("Invalid Expression: invalid period ',' position");
-                    }
-                    while (true) {
-                        String temp = cache.pop();
-                        if ("(".equals(temp) || cache.isEmpty()) {
-                            throw new IllegalArgumentException("Invalid Expression: period ',' only allowed function");
-                        }
-                        if ("f(".equals(temp)) {
-                            cache.push("f(");
-                            break;
-                        }
-                        postFix.push(temp);
-                    }
-                    functionParameterCount.push(functionParameterCount.pop() + 1);
-                    previousInput = ",";
-                    System.out.println("Period: " + capturedPeriod);
-                }
+    public EvaluationMode getEvaluationMode() {
+        return evaluationMode;
+    }
 
-                if (capturedVariableOrFunction != null) {
-                    if (Functions.isFunctionName(previousInput) || "operand".equals(previousInput) || ")".equals(previousInput)) {
-                        throw new IllegalArgumentException("Invalid expression: misplaced function or variable name");
-                    }
-                    if (!functionParameterCount.isEmpty() && functionParameterCount.peek() == 0) {
-                        functionParameterCount.pop();
-                        functionParameterCount.push(1);
-                    }
-                    if (Functions.isFunctionName(capturedVariableOrFunction)) {
-                        previousInput = capturedVariableOrFunction;
-                    } else if (variables.containsKey(capturedVariableOrFunction)) {
-                        if (logicalNot) {
-                            postFix.push(variables.get(capturedVariableOrFunction).compareTo(BigDecimal.ZERO) == 0 ? "1" : "0");
-                            logicalNot = false;
-                        } else if (negativeSign) {
-                            postFix.push("-" + capturedVariableOrFunction);
-                            negativeSign = false;
-                        } else {
-                            postFix.push(capturedVariableOrFunction);
-                        }
-                        previousInput = "operand";
+    /**
+     * Register a listener to trace parsing and evaluation, or remove it with
+     * null. Tracing costs nothing while no listener is registered.
+     *
+     * @param traceListener the listener, or null
+     */
+    public void setTraceListener(EvaluationTraceListener traceListener) {
+        this.traceListener = traceListener;
+    }
+
+    public EvaluationTraceListener getTraceListener() {
+        return traceListener;
+    }
+
+    /**
+     * Remember the results of pure functions, like
+     * {@code setFunctionMemo(new FunctionMemo(4096, EvictionPolicy.LRU))}, or
+     * stop with null. A memo may be shared by several processors. Functions
+     * evaluated in double precision are not remembered.
+     *
+     * @param functionMemo the memo, or null
+     */
+    public void setFunctionMemo(FunctionMemo functionMemo) {
+        this.functionMemo = functionMemo;
+    }
+
+    public FunctionMemo getFunctionMemo() {
+        return functionMemo;
+    }
+
+    /**
+     * Limit the cost of each evaluation, like
+     * {@code setEvaluationBudget(new EvaluationBudget(1000, 100000, 1000000))},
+     * or lift the limits with null. Constants computed ahead at compile time
+     * are held to the same budget, or left to the evaluation.
+     *
+     * @param evaluationBudget the budget, or null
+     */
+    public void setEvaluationBudget(EvaluationBudget evaluationBudget) {
+        this.evaluationBudget = evaluationBudget;
+    }
+
+    public EvaluationBudget getEvaluationBudget() {
+        return evaluationBudget;
+    }
+
+    /**
+     * Save the session to a binary file: the precision, the variables with
+     * their exact values, the user functions, the formula bindings, and the
+     * history given, which {@link #load(Path)} returns.
+     *
+     * @param history the inputs to keep with the session
+     * @throws IOException if the file cannot be written.
+     */
+    public void save(Path file, List<String> history) throws IOException {
+        List<String> bindings = new ArrayList<>();
+        SessionSnapshot snapshot;
+        synchronized (formulas) {
+            for (CompiledExpression formula : formulas.all()) {
+                bindings.add(formula.getInput());
+            }
+            snapshot = SessionSnapshot.of(getPrecision(), variables.snapshot(), bindings, history);
+        }
+        snapshot.write(file);
+    }
+
+    /**
+     * Replace the session by one saved with {@link #save(Path, List)}. Values
+     * are restored as saved, and functions and formulas are compiled again.
+     *
+     * @return the history saved with the session.
+     * @throws IOException if the file cannot be read or is not a session
+     *                     file.
+     */
+    public synchronized List<String> load(Path file) throws IOException {
+        SessionSnapshot snapshot = SessionSnapshot.read(file);
+        MathContextWithMin context = this.context.withPrecision(snapshot.precision);
+        synchronized (formulas) {
+            formulas.clear();
+            variables.replace(Variables.of(snapshot.names, snapshot.values, snapshot.fastValues, snapshot.predefined));
+            this.context = context;
+            synchronized (cache) {
+                cache.clear();
+            }
+            // declared first, so that bodies may call functions defined after them
+            for (SessionSnapshot.Declaration function : snapshot.functions) {
+                variables.define(new UserFunction(function.name),
+                        new UserFunction.Definition(function.input, function.parameters,
+                                new Program.Builder().build(), NO_NAMES, new UserFunction[0]));
+            }
+            for (SessionSnapshot.Declaration function : snapshot.functions) {
+                expression(function.input);
+            }
+            for (String formula : snapshot.formulas) {
+                expression(formula);
+            }
+        }
+        return snapshot.history;
+    }
+
+    /**
+     * @return the assigned value for assignments, or the result.
+     */
+    private BigDecimal execute(CompiledExpression compiled, MathContextWithMin context,
+                               EvaluationTraceListener traceListener, EvaluateEvent event) {
+        Variables snapshot = variables.snapshot();
+        if (!compiled.isAssignment()) {
+            return evaluate(compiled.getProgram(), snapshot, context, traceListener, event);
+        }
+        String LHS = compiled.getTarget();
+        if (compiled.isBinding()) {
+            synchronized (formulas) {
+                // bound before the inputs are read, so that an assignment
+                // published after the snapshot sees the formula and waits
+                // to compute it again
+                CompiledExpression previous = formulas.get(LHS);
+                formulas.bind(LHS, compiled);
+                BigDecimal value;
+                try {
+                    value = evaluate(compiled.getProgram(), variables.snapshot(), context, traceListener, event);
+                } catch (RuntimeException | StackOverflowError e) {
+                    if (previous != null) {
+                        formulas.bind(LHS, previous);
                     } else {
-                        throw new IllegalArgumentException(
-                                String.format("Invalid expression: unknown variable %s", capturedVariableOrFunction));
+                        formulas.unbind(LHS);
                     }
-                    System.out.println("VariableOrFunction: " + capturedVariableOrFunction);
+                    throw e;
                 }
+                variables.put(LHS, value);
+                recompute(LHS, traceListener);
+                return value;
+            }
+        }
+        BinaryOperators assignment = compiled.getAssignment();
+        if (assignment != null && !snapshot.contains(LHS)) {
+            throw new IllegalArgumentException(
+                    String.format("Invalid expression: unknown variable %s", LHS));
+        }
+        BigDecimal value = evaluate(compiled.getProgram(), snapshot, context, traceListener, event);
+        if (assignment == null) {
+            variables.put(LHS, value);
+        } else {
+            value = variables.update(LHS, assignment, value, context);
+        }
+        if (!formulas.isEmpty()) {
+            synchronized (formulas) {
+                formulas.unbind(LHS);
+                recompute(LHS, traceListener);
+            }
+        }
+        return value;
+    }
 
-                if (capturedNumber != null) {
-                    if (Functions.isFunctionName(previousInput)) {
-                        throw new IllegalArgumentException(
-                                String.format("Invalid expression: missing ( after %s", capturedVariableOrFunction));
-                    }
-                    if (!functionParameterCount.isEmpty() && functionParameterCount.peek() == 0) {
-                        functionParameterCount.pop();
-                        functionParameterCount.push(1);
-                    }
-                    if (logicalNot) {
-                        postFix.push("0".equals(capturedNumber) ? "1" : "0");
-                        logicalNot = false;
-                    } else if (negativeSign) {
-                        postFix.push("-" + capturedNumber);
-                        negativeSign = false;
-                    } else {
-                        postFix.push(capturedNumber);
+    /**
+     * Install a definition, and compute again the formulas calling the
+     * function, directly or through other functions.
+     *
+     * @throws IllegalArgumentException if a variable has the name of the
+     *                                  function, or a formula would read
+     *                                  itself through it, in which case the
+     *                                  previous definition is kept.
+     */
+    private void define(UserFunction function, UserFunction.Definition body) {
+        UserFunction.Definition previous = function.getDefinition();
+        variables.define(function, body);
+        if (!formulas.isEmpty()) {
+            synchronized (formulas) {
+                try {
+                    formulas.redefine(function.getName());
+                } catch (IllegalArgumentException e) {
+                    if (previous != null) {
+                        function.define(previous);
                     }
-                    previousInput = "operand";
-                    System.out.println("Number: " + capturedNumber);
+                    throw e;
                 }
+                recompute(function.getName(), traceListener);
+            }
+        }
+    }
 
-            } else {
-                throw new IllegalArgumentException("Invalid expression: empty expression");
+    /**
+     * Compute again the formulas reading variable or function, directly or
+     * through other formulas, in topological order. A formula that fails
+     * keeps its value, and the first failure is thrown once the others are
+     * computed. Must hold the lock of formulas.
+     */
+    private void recompute(String variable, EvaluationTraceListener traceListener) {
+        RuntimeException failure = null;
+        for (String target : formulas.downstream(variable)) {
+            try {
+                CompiledExpression formula = formulas.get(target);
+                MathContextWithMin sessionContext = this.context;
+                if (!formula.isValid(variables.snapshot(), sessionContext)) {
+                    formula = parse(formula.getInput(), NO_NAMES);
+                    formulas.replace(target, formula);
+                }
+                MathContextWithMin context = formula.getContext() != null ? formula.getContext() : sessionContext;
+                variables.put(target, evaluate(formula.getProgram(), variables.snapshot(), context, traceListener,
+                        new EvaluateEvent()));
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                }
             }
-            System.out.println();
-            System.out.println("cache: " + cache);
-            System.out.println("postFix: " + postFix);
-            System.out.println();
-        }
-        while (!cache.isEmpty()) {
-            String temp = cache.pop();
-            if ("(".equals(temp) || "f(".equals(temp)) {
-                throw new IllegalArgumentException("Invalid expression: cannot find matching right parenthesis - missing )?");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private CompiledExpression parse(String input, String[] parameters) {
+        ParseEvent event = new ParseEvent();
+        event.begin();
+        MathContextWithMin sessionContext = this.context;
+        Parser parser = new Parser(input, variables.snapshot(), sessionContext, parameters);
+        parser.parse();
+        MathContextWithMin context = parser.getContext() != null ? parser.getContext() : sessionContext;
+        Program.Builder builder = new Program.Builder();
+        Node expression = new Optimizer(context.withBudget(evaluationBudget)).optimize(parser.getExpression());
+        expression.compile(builder);
+        Program program = builder.build();
+        UserFunction definition = parser.getDefinition();
+        UserFunction.Definition body = definition == null ? null
+                : new UserFunction.Definition(input, parser.getDefinitionParameters(), program,
+                        parser.getDependencies(), parser.getFunctions());
+        event.end();
+        if (event.shouldCommit()) {
+            event.input = input;
+            event.instructions = program.code.length;
+            event.commit();
+        }
+        EvaluationTraceListener traceListener = this.traceListener;
+        if (traceListener != null) {
+            traceListener.parsed(input, program.toString());
+        }
+        return new CompiledExpression(input, parser.getTarget(), parser.getAssignment(), parser.isBinding(),
+                parser.getDependencies(), program, definition, body, parser.getFunctions(), parser.getContext(),
+                sessionContext, parser.getConstantSlots(), parameters);
+    }
+
+    private BigDecimal evaluate(Program program, Variables snapshot, MathContextWithMin context,
+                                EvaluationTraceListener traceListener, EvaluateEvent event) {
+        Evaluator evaluator = EVALUATOR.get();
+        context = context.withBudget(evaluationBudget);
+        if (isFast(context) && traceListener == null) {
+            double result = evaluator.evaluateFast(program, snapshot.fastValues(), NO_FAST_PARAMETERS, context);
+            if (!Double.isNaN(result)) {
+                event.fast = true;
+                return BigDecimal.valueOf(result);
             }
-            postFix.push(temp);
         }
-        System.out.println();
-        System.out.println("postFIX>>>>>>>");
-        System.out.println("postFix: " + postFix);
-        return postFix;
+        return evaluator.evaluate(program, snapshot.values(), NO_PARAMETERS, context, functionMemo, traceListener);
+    }
+
+    private boolean isFast(MathContextWithMin context) {
+        return evaluationMode == EvaluationMode.FAST
+                && context.getDisplayContext().getPrecision() <= FAST_DISPLAY_DIGITS;
     }
 }
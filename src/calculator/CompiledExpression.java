@@ -0,0 +1,167 @@
+package calculator;
+
+/**
+ * CompiledExpression holds the parsed form of one input line, so that it can
+ * be evaluated many times against the current variables of a
+ * {@link CalculatorProcessor} without being parsed again.
+ * <p>
+ * Obtain instances from {@link CalculatorProcessor#compile(String)}. Compiled
+ * expressions are immutable and can be shared between threads.
+ * </p>
+ */
+public final class CompiledExpression {
+
+    private final String input;
+    private final String target;
+    private final BinaryOperators assignment;
+    private final boolean binding;
+    private final String[] dependencies;
+    private final Program program;
+    private final UserFunction definition;
+    private final UserFunction.Definition body;
+    private final UserFunction[] functions;
+    private final MathContextWithMin context;
+    private final MathContextWithMin sessionContext;
+    private final int[] constantSlots;
+    private final String[] parameters;
+
+    CompiledExpression(String input, String target, BinaryOperators assignment, boolean binding,
+                       String[] dependencies, Program program, UserFunction definition, UserFunction.Definition body,
+                       UserFunction[] functions,
+                       MathContextWithMin context, MathContextWithMin sessionContext, int[] constantSlots,
+                       String[] parameters) {
+        this.input = input;
+        this.target = target;
+        this.assignment = assignment;
+        this.binding = binding;
+        this.dependencies = dependencies;
+        this.program = program;
+        this.definition = definition;
+        this.body = body;
+        this.functions = functions;
+        this.context = context;
+        this.sessionContext = sessionContext;
+        this.constantSlots = constantSlots;
+        this.parameters = parameters;
+    }
+
+    /**
+     * @return the input text this expression was compiled from.
+     */
+    public String getInput() {
+        return input;
+    }
+
+    /**
+     * @return the assigned variable, or null if this is not an assignment.
+     */
+    public String getTarget() {
+        return target;
+    }
+
+    public boolean isAssignment() {
+        return target != null;
+    }
+
+    /**
+     * @return true if this is a formula binding like {@code total := a * rate},
+     *         whose target is computed again whenever a variable it reads
+     *         changes.
+     */
+    public boolean isBinding() {
+        return binding;
+    }
+
+    /**
+     * @return true if this defines a function like {@code f(x, y) = x^2 + y}.
+     */
+    public boolean isDefinition() {
+        return definition != null;
+    }
+
+    /**
+     * @return the names of the parameters bound for each evaluation, empty
+     *         unless compiled by
+     *         {@link CalculatorProcessor#compile(String, String...)}.
+     */
+    public String[] getParameters() {
+        return parameters.clone();
+    }
+
+    int getParameterCount() {
+        return parameters.length;
+    }
+
+    /**
+     * @return the operator of a compound assignment, or null.
+     */
+    BinaryOperators getAssignment() {
+        return assignment;
+    }
+
+    /**
+     * @return the names of the variables read.
+     */
+    String[] getDependencies() {
+        return dependencies;
+    }
+
+    /**
+     * @return the user functions called, besides the one defined.
+     */
+    UserFunction[] getFunctions() {
+        return functions;
+    }
+
+    /**
+     * @return the program of an expression, or the body of a definition.
+     */
+    Program getProgram() {
+        return program;
+    }
+
+    /**
+     * @return the function defined, or null.
+     */
+    UserFunction getDefinition() {
+        return definition;
+    }
+
+    /**
+     * @return the definition installed by a definition, or null.
+     */
+    UserFunction.Definition getBody() {
+        return body;
+    }
+
+    /**
+     * @return the context of a {@code @prec} expression, or null if it is
+     *         evaluated with the session context.
+     */
+    MathContextWithMin getContext() {
+        return context;
+    }
+
+    /**
+     * @return false if the session precision has changed since this expression
+     *         was compiled, a predefined constant it read as a literal has
+     *         been reassigned, or a user function it calls is not the one
+     *         defined under its name.
+     */
+    boolean isValid(Variables variables, MathContextWithMin sessionContext) {
+        if (sessionContext != this.sessionContext) {
+            return false;
+        }
+        for (int slot : constantSlots) {
+            if (variables.predefined(slot) == null) {
+                return false;
+            }
+        }
+        for (UserFunction function : functions) {
+            if (variables.function(function.getName()) != function) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,84 @@
+package calculator;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import ch.obermuhlner.math.big.BigDecimalMath;
+
+/**
+ * Define mathematical constants shared by all calculator sessions here.
+ * <p>
+ * Every constant is computed once per precision for the whole process. A
+ * request for a lower precision than one already computed is rounded from it
+ * instead of being computed again. The cache can be read concurrently
+ * without locking.
+ * </p>
+ * <p>
+ * The first {@value #KNOWN_DIGITS} digits of every constant are known ahead,
+ * so that sessions up to that precision, the default one included, start
+ * without computing any series.
+ * </p>
+ */
+enum Constants {
+
+    E("e", "2.718281828459045235360287471352662497757247093699959574966967627724076630353547594571382178525166427") {
+        @Override
+        BigDecimal compute(MathContext mathContext) {
+            return BigDecimalMath.e(mathContext);
+        }
+    }, PI("pi", "3.141592653589793238462643383279502884197169399375105820974944592307816406286208998628034825342117068") {
+        @Override
+        BigDecimal compute(MathContext mathContext) {
+            return BigDecimalMath.pi(mathContext);
+        }
+    }, LN2(null, "0.6931471805599453094172321214581765680755001343602552541206800094933936219696947156058633269964186875") {
+        @Override
+        BigDecimal compute(MathContext mathContext) {
+            return BigDecimalMath.log(BigDecimal.valueOf(2), mathContext);
+        }
+    }, LN10(null, "2.302585092994045684017991454684364207601101488628772976033327900967572609677352480235997205089598298") {
+        @Override
+        BigDecimal compute(MathContext mathContext) {
+            return BigDecimalMath.log(BigDecimal.TEN, mathContext);
+        }
+    };
+
+    /** The number of significant digits of the known values. */
+    private static final int KNOWN_DIGITS = 100;
+
+    private final String variableName;
+    private final ConcurrentSkipListMap<Integer, BigDecimal> values = new ConcurrentSkipListMap<>();
+
+    /**
+     * @param known the constant to {@value #KNOWN_DIGITS} significant digits
+     */
+    private Constants(String variableName, String known) {
+        this.variableName = variableName;
+        values.put(KNOWN_DIGITS, new BigDecimal(known));
+    }
+
+    abstract BigDecimal compute(MathContext mathContext);
+
+    /**
+     * @return the name of the predefined variable holding this constant, or
+     *         null if it is not predefined.
+     */
+    final String getVariableName() {
+        return variableName;
+    }
+
+    /**
+     * @return the constant rounded to the precision of mathContext.
+     */
+    final BigDecimal get(MathContext mathContext) {
+        int precision = mathContext.getPrecision();
+        Map.Entry<Integer, BigDecimal> cached = values.ceilingEntry(precision);
+        if (cached != null && cached.getKey() == precision) {
+            return cached.getValue();
+        }
+        BigDecimal value = cached != null ? cached.getValue().round(mathContext) : compute(mathContext);
+        BigDecimal previous = values.putIfAbsent(precision, value);
+        return previous != null ? previous : value;
+    }
+}
@@ -0,0 +1,289 @@
+package calculator;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.math3.distribution.BetaDistribution;
+import org.apache.commons.math3.distribution.BinomialDistribution;
+import org.apache.commons.math3.distribution.CauchyDistribution;
+import org.apache.commons.math3.distribution.ChiSquaredDistribution;
+import org.apache.commons.math3.distribution.ExponentialDistribution;
+import org.apache.commons.math3.distribution.FDistribution;
+import org.apache.commons.math3.distribution.GammaDistribution;
+import org.apache.commons.math3.distribution.HypergeometricDistribution;
+import org.apache.commons.math3.distribution.IntegerDistribution;
+import org.apache.commons.math3.distribution.NormalDistribution;
+import org.apache.commons.math3.distribution.RealDistribution;
+import org.apache.commons.math3.distribution.TDistribution;
+import org.apache.commons.math3.random.RandomGenerator;
+
+/**
+ * Define the probability distributions behind the distribution functions
+ * here.
+ * <p>
+ * Distributions used for probabilities, densities and quantiles are kept in a
+ * bounded cache shared by all threads, keyed by distribution and parameters,
+ * so the distribution and its normalization constants are computed once for
+ * each set of parameters in use. Distributions used for sampling are created
+ * with the random generator of the calling thread and not cached.
+ * </p>
+ *
+ * @throws UnsupportedOperationException if the number of parameters is wrong.
+ * @throws ArithmeticException if an integer parameter has a fractional part.
+ */
+enum Distributions {
+
+    BETA(2, null) {
+        @Override
+        RealDistribution real(RandomGenerator random, double[] params) {
+            return new BetaDistribution(random, params[0], params[1], ACCURACY);
+        }
+    }, GAMMA(2, null) {
+        @Override
+        RealDistribution real(RandomGenerator random, double[] params) {
+            return new GammaDistribution(random, params[0], params[1], ACCURACY);
+        }
+    }, NORMAL(2, new double[] {0.0, 1.0}) {
+        @Override
+        RealDistribution real(RandomGenerator random, double[] params) {
+            return new NormalDistribution(random, params[0], params[1], ACCURACY);
+        }
+    }, BINOMIAL(2, null) {
+        @Override
+        IntegerDistribution integer(RandomGenerator random, double[] params) {
+            return new BinomialDistribution(random, exactInt(params[0]), params[1]);
+        }
+    }, T(1, null) {
+        @Override
+        RealDistribution real(RandomGenerator random, double[] params) {
+            return new TDistribution(random, exactInt(params[0]), ACCURACY);
+        }
+    }, CHI_SQUARED(1, null) {
+        @Override
+        RealDistribution real(RandomGenerator random, double[] params) {
+            return new ChiSquaredDistribution(random, exactInt(params[0]), ACCURACY);
+        }
+    }, CAUCHY(2, new double[] {0.0, 1.0}) {
+        @Override
+        RealDistribution real(RandomGenerator random, double[] params) {
+            return new CauchyDistribution(random, params[0], params[1], ACCURACY);
+        }
+    }, EXPONENTIAL(1, new double[] {1.0}) {
+        @Override
+        RealDistribution real(RandomGenerator random, double[] params) {
+            return new ExponentialDistribution(random, params[0], ACCURACY);
+        }
+    }, F(2, null) {
+        @Override
+        RealDistribution real(RandomGenerator random, double[] params) {
+            return new FDistribution(random, params[0], params[1], ACCURACY);
+        }
+    }, HYPER_GEOMETRIC(3, null) {
+        @Override
+        IntegerDistribution integer(RandomGenerator random, double[] params) {
+            return new HypergeometricDistribution(random, exactInt(params[0]), exactInt(params[1]),
+                    exactInt(params[2]));
+        }
+    };
+
+    private static final double ACCURACY = 1e-16;
+    private static final int CACHE_CAPACITY = 1024;
+    private static final ConcurrentHashMap<Key, Instance> CACHE = new ConcurrentHashMap<>();
+
+    private final int parameters;
+    private final double[] defaults;
+
+    /**
+     * @param parameters the number of parameters
+     * @param defaults   the parameters used when none are given, or null if
+     *                   they are required
+     */
+    private Distributions(int parameters, double[] defaults) {
+        this.parameters = parameters;
+        this.defaults = defaults;
+    }
+
+    /**
+     * @return the distribution, or null if it is discrete.
+     */
+    RealDistribution real(RandomGenerator random, double[] params) {
+        return null;
+    }
+
+    /**
+     * @return the discrete distribution, or null if it is continuous.
+     */
+    IntegerDistribution integer(RandomGenerator random, double[] params) {
+        return null;
+    }
+
+    /**
+     * @return the cached distribution for params. Once the cache is full, an
+     *         arbitrary entry is evicted for each new one, whichever the
+     *         iteration of the map yields first, not the eldest.
+     */
+    final Instance get(double... params) {
+        Key key = new Key(this, params);
+        Instance instance = CACHE.get(key);
+        if (instance == null) {
+            instance = create(null, params);
+            if (CACHE.size() >= CACHE_CAPACITY) {
+                Iterator<Key> any = CACHE.keySet().iterator();
+                if (any.hasNext()) {
+                    CACHE.remove(any.next());
+                }
+            }
+            CACHE.putIfAbsent(key, instance);
+        }
+        return instance;
+    }
+
+    /**
+     * @return n samples drawn with random.
+     */
+    final double[] sample(RandomGenerator random, int n, double... params) {
+        return create(random, params).sample(n);
+    }
+
+    private Instance create(RandomGenerator random, double[] params) {
+        if (params.length == 0 && defaults != null) {
+            params = defaults;
+        }
+        if (params.length != parameters) {
+            throw new UnsupportedOperationException();
+        }
+        RealDistribution real = real(random, params);
+        return real != null ? new Continuous(real) : new Discrete(integer(random, params));
+    }
+
+    /**
+     * The double precision counterpart of {@code BigDecimal.intValueExact()}.
+     *
+     * @throws ArithmeticException if x has a fractional part or does not fit
+     *                             in an int.
+     */
+    private static int exactInt(double x) {
+        if (x != Math.rint(x)) {
+            throw new ArithmeticException("Rounding necessary");
+        }
+        if (x < Integer.MIN_VALUE || x > Integer.MAX_VALUE) {
+            throw new ArithmeticException("Overflow");
+        }
+        return (int) x;
+    }
+
+    /**
+     * @return x without its fractional part, rounded towards zero.
+     */
+    private static double truncate(double x) {
+        return x < 0 ? Math.ceil(x) : Math.floor(x);
+    }
+
+    /**
+     * A distribution of either kind. Probabilities, densities and quantiles
+     * do not modify it and may be computed by several threads at once.
+     */
+    abstract static class Instance {
+
+        abstract double cumulativeProbability(double q);
+
+        abstract double density(double x);
+
+        abstract double inverseCumulativeProbability(double p);
+
+        abstract double[] sample(int n);
+    }
+
+    private static final class Continuous extends Instance {
+
+        private final RealDistribution distribution;
+
+        Continuous(RealDistribution distribution) {
+            this.distribution = distribution;
+        }
+
+        @Override
+        double cumulativeProbability(double q) {
+            return distribution.cumulativeProbability(q);
+        }
+
+        @Override
+        double density(double x) {
+            return distribution.density(x);
+        }
+
+        @Override
+        double inverseCumulativeProbability(double p) {
+            return distribution.inverseCumulativeProbability(p);
+        }
+
+        @Override
+        double[] sample(int n) {
+            return distribution.sample(n);
+        }
+    }
+
+    /**
+     * A discrete distribution, whose probabilities are taken at integers.
+     */
+    private static final class Discrete extends Instance {
+
+        private final IntegerDistribution distribution;
+
+        Discrete(IntegerDistribution distribution) {
+            this.distribution = distribution;
+        }
+
+        @Override
+        double cumulativeProbability(double q) {
+            return distribution.cumulativeProbability(exactInt(truncate(q)));
+        }
+
+        @Override
+        double density(double x) {
+            return distribution.probability(exactInt(x));
+        }
+
+        @Override
+        double inverseCumulativeProbability(double p) {
+            return distribution.inverseCumulativeProbability(p);
+        }
+
+        @Override
+        double[] sample(int n) {
+            int[] samples = distribution.sample(n);
+            double[] values = new double[n];
+            for (int i = 0; i < n; i++) {
+                values[i] = samples[i];
+            }
+            return values;
+        }
+    }
+
+    private static final class Key {
+
+        private final Distributions distribution;
+        private final double[] params;
+        private final int hash;
+
+        Key(Distributions distribution, double[] params) {
+            this.distribution = distribution;
+            this.params = params.clone();
+            this.hash = 31 * distribution.hashCode() + Arrays.hashCode(params);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return distribution == k.distribution && Arrays.equals(params, k.params);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
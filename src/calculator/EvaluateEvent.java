@@ -0,0 +1,27 @@
+package calculator;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event for evaluating one compiled input line.
+ */
+@Name("calculator.Evaluate")
+@Label("Evaluate")
+@Category("Calculator")
+@Description("Evaluating a compiled expression or assignment")
+class EvaluateEvent extends Event {
+
+    @Label("Input")
+    String input;
+
+    @Label("Precision")
+    int precision;
+
+    @Label("Fast")
+    @Description("Whether the result was computed in double precision")
+    boolean fast;
+}
@@ -0,0 +1,129 @@
+package calculator;
+
+/**
+ * EvaluationBudget limits what one evaluation may cost, so that a single
+ * input like {@code factorial(10^7)} cannot hold a thread for minutes. Set it
+ * with {@link CalculatorProcessor#setEvaluationBudget(EvaluationBudget)}.
+ * <ul>
+ * <li>The timeout bounds the wall time of an evaluation.</li>
+ * <li>The maximum digits bound the number of integer digits of every result,
+ * like the 301029996 digits of {@code 2^(10^9)}.</li>
+ * <li>The maximum operations bound the number of operators and functions
+ * evaluated, including the calls of user functions.</li>
+ * </ul>
+ * The budget is checked before every operation and on every result. Functions
+ * whose cost grows with their argument, {@code factorial}, {@code gamma} and
+ * {@code root}, estimate the digits and the steps they need before they start,
+ * as they cannot be stopped once running. An evaluation over budget fails
+ * with an {@link ExceededException}.
+ * <p>
+ * An EvaluationBudget is immutable and can be shared by any number of
+ * processors.
+ * </p>
+ */
+public final class EvaluationBudget {
+
+    private final long timeoutMillis;
+    private final int maxDigits;
+    private final long maxOperations;
+
+    /**
+     * @param timeoutMillis the wall time an evaluation may take
+     * @param maxDigits     the number of integer digits a result may have
+     * @param maxOperations the number of operations an evaluation may run
+     * @throws IllegalArgumentException if a limit is not positive.
+     */
+    public EvaluationBudget(long timeoutMillis, int maxDigits, long maxOperations) {
+        if (timeoutMillis <= 0 || maxDigits <= 0 || maxOperations <= 0) {
+            throw new IllegalArgumentException("budget limits must be positive");
+        }
+        this.timeoutMillis = timeoutMillis;
+        this.maxDigits = maxDigits;
+        this.maxOperations = maxOperations;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public int getMaxDigits() {
+        return maxDigits;
+    }
+
+    public long getMaxOperations() {
+        return maxOperations;
+    }
+
+    /**
+     * @return a meter for one evaluation, whose time starts now.
+     */
+    Meter start() {
+        return new Meter(this);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("EvaluationBudget[timeout=%dms, digits=%d, operations=%d]",
+                timeoutMillis, maxDigits, maxOperations);
+    }
+
+    /**
+     * ExceededException is thrown when an evaluation goes over its budget.
+     */
+    public static final class ExceededException extends ArithmeticException {
+
+        private static final long serialVersionUID = 3050184796384523372L;
+
+        ExceededException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Meter accounts the cost of one evaluation against a budget. A meter is
+     * used by one thread.
+     */
+    static final class Meter {
+
+        private final EvaluationBudget budget;
+        private final long start = System.nanoTime();
+        private final long timeoutNanos;
+        private long operations;
+
+        Meter(EvaluationBudget budget) {
+            this.budget = budget;
+            this.timeoutNanos = budget.timeoutMillis >= Long.MAX_VALUE / 1000000
+                    ? Long.MAX_VALUE : budget.timeoutMillis * 1000000;
+        }
+
+        /**
+         * Account for count operations, and check the time.
+         *
+         * @throws ExceededException if the budget is exceeded.
+         */
+        void charge(double count) {
+            if (count > 0) {
+                operations = count >= budget.maxOperations ? Long.MAX_VALUE : operations + (long) count;
+            }
+            if (operations > budget.maxOperations) {
+                throw new ExceededException(String.format(
+                        "Evaluation budget exceeded: more than %d operations", budget.maxOperations));
+            }
+            if (System.nanoTime() - start > timeoutNanos) {
+                throw new ExceededException(String.format(
+                        "Evaluation budget exceeded: more than %d ms", budget.timeoutMillis));
+            }
+        }
+
+        /**
+         * @throws ExceededException if a result of that many integer digits
+         *                           is over budget.
+         */
+        void checkDigits(double digits) {
+            if (digits > budget.maxDigits) {
+                throw new ExceededException(String.format(
+                        "Evaluation budget exceeded: result of more than %d digits", budget.maxDigits));
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package calculator;
+
+/**
+ * EvaluationMode selects how a {@link CalculatorProcessor} computes results.
+ */
+public enum EvaluationMode {
+
+    /**
+     * Compute every operator and function on {@code BigDecimal}.
+     */
+    EXACT,
+
+    /**
+     * Compute on primitive {@code double}, which is good for about 15
+     * significant digits, and fall back to {@code BigDecimal} whenever a
+     * result overflows, is not a number, reaches the magnitude where doubles
+     * stop representing integers exactly, or a function has no double
+     * precision version.
+     */
+    FAST
+}
@@ -0,0 +1,42 @@
+package calculator;
+
+import java.math.BigDecimal;
+
+/**
+ * EvaluationTraceListener receives the steps of parsing and evaluation of a
+ * {@link CalculatorProcessor} it is registered to with
+ * {@link CalculatorProcessor#setTraceListener(EvaluationTraceListener)}.
+ * <p>
+ * Tracing costs nothing while no listener is registered.
+ * </p>
+ */
+public interface EvaluationTraceListener {
+
+    /**
+     * Called after an input line is parsed and compiled.
+     *
+     * @param input   the input line
+     * @param program a readable listing of the compiled instructions
+     */
+    default void parsed(String input, String program) {
+    }
+
+    /**
+     * Called after each instruction of an evaluation.
+     *
+     * @param instruction the instruction, like {@code CALL sin 1}
+     * @param top         the value on top of the stack after the instruction,
+     *                    or null if a jump left the stack empty
+     */
+    default void step(String instruction, BigDecimal top) {
+    }
+
+    /**
+     * Called after an input line is evaluated.
+     *
+     * @param input  the input line
+     * @param result the result, or the assigned value
+     */
+    default void evaluated(String input, BigDecimal result) {
+    }
+}
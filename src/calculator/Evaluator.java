@@ -0,0 +1,433 @@
+package calculator;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Evaluator runs a {@link Program} on an operand stack that is allocated once
+ * and reused, so evaluation allocates nothing besides the arithmetic results.
+ * <p>
+ * Programs can also be evaluated in double precision by
+ * {@link #evaluateFast(Program, double[][], double[], MathContextWithMin)},
+ * which gives up as soon as a result leaves the range where doubles are exact
+ * integers, or an addition or subtraction cancels the leading digits of its
+ * operands and leaves their rounding errors in the displayed digits. Programs
+ * drawing random numbers are left to BigDecimal from the start.
+ * </p>
+ * <p>
+ * Calls of user functions run their body on a callee Evaluator, created at
+ * the first call and kept, so that nested calls do not allocate either.
+ * </p>
+ * <p>
+ * An evaluation stops at the next function call once its thread is
+ * interrupted, so that long computations can be cancelled. Operations are
+ * accounted to the {@link EvaluationBudget} the context carries, if any.
+ * </p>
+ * <p>
+ * An Evaluator is not thread-safe.
+ * </p>
+ */
+final class Evaluator {
+
+    private static final BinaryOperators[] OPERATORS = BinaryOperators.values();
+    private static final Functions[] FUNCTIONS = Functions.values();
+
+    /**
+     * Doubles represent every integer below 2^53 exactly, results at or above
+     * it are left to BigDecimal.
+     */
+    private static final double EXACT_LIMIT = 0x1p53;
+    /**
+     * The number of leading bits a sum may lose to cancellation before its
+     * rounding errors show in the displayed digits.
+     */
+    private static final int MAX_CANCELLED_BITS = 1;
+
+    private BigDecimal[] stack = new BigDecimal[16];
+    private double[] fastStack = new double[16];
+    private BigDecimal[] temps = new BigDecimal[4];
+    private double[] fastTemps = new double[4];
+    private BigDecimal[] arguments = new BigDecimal[4];
+    private double[] fastArguments = new double[4];
+    /** The number of user function calls this Evaluator is nested in. */
+    private final int depth;
+    private Evaluator callee;
+
+    Evaluator() {
+        this(0);
+    }
+
+    private Evaluator(int depth) {
+        this.depth = depth;
+    }
+
+    /**
+     * @param program    the program to run
+     * @param variables  the chunks of variable values, see {@link Variables}
+     * @param parameters the parameter values
+     * @param context    the math context
+     * @param memo       the memo to call pure functions through, or null
+     * @param listener   the listener to trace each instruction to, or null
+     * @return the value left on the stack
+     * @throws IllegalArgumentException if a function is called with the wrong
+     *                                  number of parameters, or user functions
+     *                                  are nested too deep.
+     * @throws CancellationException    if the thread is interrupted.
+     * @throws ArithmeticException      if the evaluation is over budget.
+     */
+    BigDecimal evaluate(Program program, BigDecimal[][] variables, BigDecimal[] parameters,
+                        MathContextWithMin context, FunctionMemo memo, EvaluationTraceListener listener) {
+        if (stack.length < program.maxStack) {
+            stack = new BigDecimal[Math.max(program.maxStack, stack.length * 2)];
+        }
+        if (temps.length < program.temps) {
+            temps = new BigDecimal[Math.max(program.temps, temps.length * 2)];
+        }
+        final BigDecimal[] stack = this.stack;
+        final BigDecimal[] temps = this.temps;
+        final int[] code = program.code;
+        int top = -1;
+        int pc = 0;
+        try {
+            while (pc < code.length) {
+                int instruction = pc;
+                switch (code[pc]) {
+                    case Program.CONSTANT:
+                        stack[++top] = program.constants[code[pc + 1]];
+                        pc += 2;
+                        break;
+                    case Program.LOAD:
+                        int slot = code[pc + 1];
+                        stack[++top] = variables[slot >>> Variables.CHUNK_BITS][slot & Variables.CHUNK_MASK];
+                        pc += 2;
+                        break;
+                    case Program.NEGATE:
+                        stack[top] = stack[top].negate();
+                        pc += 1;
+                        break;
+                    case Program.NOT:
+                        stack[top] = stack[top].compareTo(BigDecimal.ZERO) == 0 ? BigDecimal.ONE : BigDecimal.ZERO;
+                        pc += 1;
+                        break;
+                    case Program.BINARY:
+                        context.checkpoint();
+                        top--;
+                        stack[top] = context.checkResult(
+                                OPERATORS[code[pc + 1]].call(stack[top], stack[top + 1], context));
+                        pc += 2;
+                        break;
+                    case Program.CALL:
+                        Functions f = FUNCTIONS[code[pc + 1]];
+                        int count = code[pc + 2];
+                        top -= count - 1;
+                        context.checkpoint();
+                        FunctionCallEvent event = new FunctionCallEvent();
+                        // the result overwrites the first argument
+                        int argumentPrecision = event.isEnabled() ? maxPrecision(stack, top, count) : 0;
+                        event.begin();
+                        try {
+                            stack[top] = memo != null
+                                    ? memo.call(f, stack, top, count, context)
+                                    : f.call(stack, top, count, context);
+                        } catch (UnsupportedOperationException e) {
+                            throw new IllegalArgumentException("Invalid expression: invalid number of parameters");
+                        }
+                        context.checkResult(stack[top]);
+                        event.end();
+                        if (event.shouldCommit()) {
+                            event.function = f.getName();
+                            event.arguments = count;
+                            event.argumentPrecision = argumentPrecision;
+                            event.precision = context.getMathContext().getPrecision();
+                            event.commit();
+                        }
+                        checkInterrupted();
+                        pc += 3;
+                        break;
+                    case Program.STORE_TEMP:
+                        temps[code[pc + 1]] = stack[top];
+                        pc += 2;
+                        break;
+                    case Program.LOAD_PARAM:
+                        stack[++top] = parameters[code[pc + 1]];
+                        pc += 2;
+                        break;
+                    case Program.LOAD_TEMP:
+                        stack[++top] = temps[code[pc + 1]];
+                        pc += 2;
+                        break;
+                    case Program.CALL_USER:
+                        context.checkpoint();
+                        int n = code[pc + 2];
+                        top -= n - 1;
+                        stack[top] = callee().call(program.functions[code[pc + 1]], stack, top, n, variables,
+                                context, memo, listener);
+                        checkInterrupted();
+                        pc += 3;
+                        break;
+                    case Program.JUMP:
+                        pc = code[pc + 1];
+                        break;
+                    case Program.JUMP_IF_ZERO:
+                        pc = stack[top--].compareTo(BigDecimal.ZERO) == 0 ? code[pc + 1] : pc + 2;
+                        break;
+                    case Program.AND_JUMP:
+                        if (stack[top].compareTo(BigDecimal.ZERO) == 0) {
+                            stack[top] = BigDecimal.ZERO;
+                            pc = code[pc + 1];
+                        } else {
+                            top--;
+                            pc += 2;
+                        }
+                        break;
+                    case Program.OR_JUMP:
+                        if (stack[top].compareTo(BigDecimal.ZERO) != 0) {
+                            stack[top] = BigDecimal.ONE;
+                            pc = code[pc + 1];
+                        } else {
+                            top--;
+                            pc += 2;
+                        }
+                        break;
+                    case Program.TRUTH:
+                        stack[top] = stack[top].compareTo(BigDecimal.ZERO) == 0 ? BigDecimal.ZERO : BigDecimal.ONE;
+                        pc += 1;
+                        break;
+                    default:
+                        throw new IllegalStateException("unknown opcode " + code[pc]);
+                }
+                if (listener != null) {
+                    listener.step(program.describe(instruction), top >= 0 ? stack[top] : null);
+                }
+            }
+            return stack[0];
+        } finally {
+            Arrays.fill(stack, 0, program.maxStack, null);
+            Arrays.fill(temps, 0, program.temps, null);
+        }
+    }
+
+    /**
+     * Run the body of a user function with the count values from
+     * {@code params[offset]} on as arguments.
+     */
+    private BigDecimal call(UserFunction f, BigDecimal[] params, int offset, int count, BigDecimal[][] variables,
+                            MathContextWithMin context, FunctionMemo memo, EvaluationTraceListener listener) {
+        UserFunction.Definition definition = f.getDefinition();
+        if (definition.parameters.length != count) {
+            throw new IllegalArgumentException("Invalid expression: invalid number of parameters");
+        }
+        if (arguments.length < count) {
+            arguments = new BigDecimal[count];
+        }
+        System.arraycopy(params, offset, arguments, 0, count);
+        try {
+            return evaluate(definition.body, variables, arguments, context, memo, listener);
+        } finally {
+            Arrays.fill(arguments, 0, count, null);
+        }
+    }
+
+    private double callFast(UserFunction f, double[] params, int offset, int count, double[][] variables,
+                            MathContextWithMin context) {
+        UserFunction.Definition definition = f.getDefinition();
+        if (definition.parameters.length != count) {
+            return Double.NaN;
+        }
+        if (fastArguments.length < count) {
+            fastArguments = new double[count];
+        }
+        System.arraycopy(params, offset, fastArguments, 0, count);
+        return evaluateFast(definition.body, variables, fastArguments, context);
+    }
+
+    /**
+     * @return the Evaluator running the user functions called by this one.
+     * @throws IllegalArgumentException if calls are nested too deep.
+     */
+    private Evaluator callee() {
+        if (callee == null) {
+            if (depth + 1 >= UserFunction.MAX_DEPTH) {
+                throw new IllegalArgumentException(String.format(
+                        "Invalid expression: more than %d nested function calls", UserFunction.MAX_DEPTH));
+            }
+            callee = new Evaluator(depth + 1);
+        }
+        return callee;
+    }
+
+    /**
+     * @throws CancellationException if the thread is interrupted.
+     */
+    private static void checkInterrupted() {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancellationException("Evaluation cancelled");
+        }
+    }
+
+    private static int maxPrecision(BigDecimal[] params, int offset, int count) {
+        int precision = 0;
+        for (int i = offset; i < offset + count; i++) {
+            precision = Math.max(precision, params[i].precision());
+        }
+        return precision;
+    }
+
+    /**
+     * @return true if {@code sum}, the double sum or difference of left and
+     *         right, lost more than {@link #MAX_CANCELLED_BITS} leading bits
+     *         of the larger operand, like {@code (x + 0.001) - x} for large x,
+     *         so that the rounding errors of the operands become significant
+     *         digits of the result. Sums of integers are exact and never
+     *         cancel.
+     */
+    private static boolean cancels(double left, double right, double sum) {
+        if (Math.rint(left) == left && Math.rint(right) == right) {
+            return false;
+        }
+        int exponent = Math.max(Math.getExponent(left), Math.getExponent(right));
+        return exponent - Math.getExponent(sum) > MAX_CANCELLED_BITS;
+    }
+
+    /**
+     * Evaluate in double precision.
+     *
+     * @param program    the program to run
+     * @param variables  the chunks of variable values as doubles
+     * @param parameters the parameter values as doubles
+     * @param context    the math context
+     * @return the result, or NaN if the program has to be evaluated in
+     *         BigDecimal: a result overflowed, was not a number, reached 2^53
+     *         where doubles stop being exact integers, an addition or
+     *         subtraction cancelled leading digits, a function has no
+     *         double precision version, or the program, or a user function
+     *         it calls, draws random numbers. Random programs are left to
+     *         BigDecimal before they draw any number, so that falling back
+     *         does not draw the same numbers twice.
+     * @throws CancellationException if the thread is interrupted.
+     * @throws ArithmeticException   if the evaluation is over budget.
+     */
+    double evaluateFast(Program program, double[][] variables, double[] parameters, MathContextWithMin context) {
+        if (program.random) {
+            return Double.NaN;
+        }
+        if (fastStack.length < program.maxStack) {
+            fastStack = new double[Math.max(program.maxStack, fastStack.length * 2)];
+        }
+        if (fastTemps.length < program.temps) {
+            fastTemps = new double[Math.max(program.temps, fastTemps.length * 2)];
+        }
+        final double[] stack = this.fastStack;
+        final double[] temps = this.fastTemps;
+        final int[] code = program.code;
+        int top = -1;
+        int pc = 0;
+        while (pc < code.length) {
+            switch (code[pc]) {
+                case Program.CONSTANT:
+                    stack[++top] = program.fastConstants[code[pc + 1]];
+                    pc += 2;
+                    break;
+                case Program.LOAD:
+                    int slot = code[pc + 1];
+                    stack[++top] = variables[slot >>> Variables.CHUNK_BITS][slot & Variables.CHUNK_MASK];
+                    pc += 2;
+                    break;
+                case Program.NEGATE:
+                    stack[top] = -stack[top];
+                    pc += 1;
+                    break;
+                case Program.NOT:
+                    stack[top] = stack[top] == 0 ? 1 : 0;
+                    pc += 1;
+                    break;
+                case Program.BINARY:
+                    context.checkpoint();
+                    top--;
+                    BinaryOperators operator = OPERATORS[code[pc + 1]];
+                    double left = stack[top];
+                    stack[top] = operator.fastCall(left, stack[top + 1], context);
+                    if ((operator == BinaryOperators.PLUS || operator == BinaryOperators.MINUS)
+                            && cancels(left, stack[top + 1], stack[top])) {
+                        return Double.NaN;
+                    }
+                    pc += 2;
+                    break;
+                case Program.CALL:
+                    context.checkpoint();
+                    int count = code[pc + 2];
+                    top -= count - 1;
+                    try {
+                        stack[top] = FUNCTIONS[code[pc + 1]].fastCall(stack, top, count, context);
+                    } catch (UnsupportedOperationException e) {
+                        return Double.NaN;
+                    }
+                    pc += 3;
+                    break;
+                case Program.STORE_TEMP:
+                    temps[code[pc + 1]] = stack[top];
+                    pc += 2;
+                    break;
+                case Program.LOAD_PARAM:
+                    stack[++top] = parameters[code[pc + 1]];
+                    pc += 2;
+                    break;
+                case Program.LOAD_TEMP:
+                    stack[++top] = temps[code[pc + 1]];
+                    pc += 2;
+                    break;
+                case Program.CALL_USER:
+                    context.checkpoint();
+                    int n = code[pc + 2];
+                    top -= n - 1;
+                    if (depth + 1 >= UserFunction.MAX_DEPTH) {
+                        return Double.NaN;
+                    }
+                    checkInterrupted();
+                    stack[top] = callee().callFast(program.functions[code[pc + 1]], stack, top, n, variables,
+                            context);
+                    if (Double.isNaN(stack[top])) {
+                        return Double.NaN;
+                    }
+                    pc += 3;
+                    break;
+                // jumps leave no new value to check
+                case Program.JUMP:
+                    pc = code[pc + 1];
+                    continue;
+                case Program.JUMP_IF_ZERO:
+                    pc = stack[top--] == 0 ? code[pc + 1] : pc + 2;
+                    continue;
+                case Program.AND_JUMP:
+                    if (stack[top] == 0) {
+                        stack[top] = 0;
+                        pc = code[pc + 1];
+                    } else {
+                        top--;
+                        pc += 2;
+                    }
+                    continue;
+                case Program.OR_JUMP:
+                    if (stack[top] != 0) {
+                        stack[top] = 1;
+                        pc = code[pc + 1];
+                    } else {
+                        top--;
+                        pc += 2;
+                    }
+                    continue;
+                case Program.TRUTH:
+                    stack[top] = stack[top] == 0 ? 0 : 1;
+                    pc += 1;
+                    break;
+                default:
+                    throw new IllegalStateException("unknown opcode " + code[pc]);
+            }
+            if (!(Math.abs(stack[top]) < EXACT_LIMIT)) {
+                return Double.NaN;
+            }
+        }
+        return stack[0];
+    }
+}
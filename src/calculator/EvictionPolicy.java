@@ -0,0 +1,20 @@
+package calculator;
+
+/**
+ * EvictionPolicy selects which entry a full stripe of a {@link FunctionMemo}
+ * drops, among the entries of that stripe.
+ */
+public enum EvictionPolicy {
+
+    /**
+     * Drop the entry used least recently, which keeps arguments that are
+     * repeated throughout a workload.
+     */
+    LRU,
+
+    /**
+     * Drop the entry stored first. Lookups do not reorder entries, so they
+     * are cheaper than for {@link #LRU}.
+     */
+    FIFO
+}
@@ -0,0 +1,241 @@
+package calculator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Formulas is the dependency graph of the formula bindings of a session, like
+ * {@code total := a * rate + fee}. Each formula is a node with edges from its
+ * inputs, and the graph is kept free of cycles, so the formulas affected by a
+ * change can be computed again in topological order, each one once and after
+ * every formula it reads.
+ * <p>
+ * The inputs of a formula are the variables it reads, and for each user
+ * function it calls, directly or through other functions, the name of the
+ * function and the variables its body reads. They are taken again from the
+ * current definitions whenever a function is defined again.
+ * </p>
+ * <p>
+ * Formulas is not thread-safe, {@link CalculatorProcessor} locks it while
+ * binding or recomputing. {@link #isEmpty()} can be read without the lock by
+ * a writer that has already published its value, as long as a formula is
+ * bound before the snapshot its value is computed from is taken.
+ * </p>
+ */
+final class Formulas {
+
+    /** The formula of each bound variable. */
+    private final Map<String, CompiledExpression> formulas = new HashMap<>();
+    /** The inputs of the formula of each bound variable. */
+    private final Map<String, Set<String>> inputs = new HashMap<>();
+    /** The formulas reading each variable or function. */
+    private final Map<String, Set<String>> dependents = new HashMap<>();
+    private volatile boolean empty = true;
+
+    /**
+     * @return true if no variable is bound to a formula, so assignments need
+     *         not take the lock.
+     */
+    boolean isEmpty() {
+        return empty;
+    }
+
+    CompiledExpression get(String target) {
+        return formulas.get(target);
+    }
+
+    /**
+     * @return the formulas of all bound variables.
+     */
+    List<CompiledExpression> all() {
+        return new ArrayList<>(formulas.values());
+    }
+
+    /**
+     * Unbind all variables.
+     */
+    void clear() {
+        formulas.clear();
+        inputs.clear();
+        dependents.clear();
+        empty = true;
+    }
+
+    /**
+     * Bind target to a formula, replacing its previous formula.
+     *
+     * @throws IllegalArgumentException if the formula reads target, directly
+     *                                  or through other formulas.
+     */
+    void bind(String target, CompiledExpression formula) {
+        Set<String> inputs = inputsOf(formula);
+        for (String input : inputs) {
+            if (reads(input, target, new HashSet<String>())) {
+                throw circular(target);
+            }
+        }
+        unbind(target);
+        formulas.put(target, formula);
+        connect(target, inputs);
+        empty = false;
+    }
+
+    /**
+     * Turn target back into a plain variable, if it is bound.
+     */
+    void unbind(String target) {
+        if (formulas.remove(target) == null) {
+            return;
+        }
+        disconnect(target);
+        empty = formulas.isEmpty();
+    }
+
+    /**
+     * Take the inputs of the formulas calling a function again, after it has
+     * been defined again. Leaves the graph unchanged if that would make it
+     * circular.
+     *
+     * @throws IllegalArgumentException if a formula would read itself through
+     *                                  the function.
+     */
+    void redefine(String function) {
+        Set<String> readers = dependents.get(function);
+        if (readers == null) {
+            return;
+        }
+        Map<String, Set<String>> previous = new HashMap<>();
+        for (String target : new ArrayList<>(readers)) {
+            previous.put(target, disconnect(target));
+            connect(target, inputsOf(formulas.get(target)));
+        }
+        for (String target : previous.keySet()) {
+            for (String input : inputs.get(target)) {
+                if (reads(input, target, new HashSet<String>())) {
+                    for (Map.Entry<String, Set<String>> entry : previous.entrySet()) {
+                        disconnect(entry.getKey());
+                        connect(entry.getKey(), entry.getValue());
+                    }
+                    throw circular(target);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replace the formula of a bound variable by its recompiled form, keeping
+     * the graph.
+     */
+    void replace(String target, CompiledExpression formula) {
+        formulas.put(target, formula);
+    }
+
+    /**
+     * @return the variables whose formulas read variable, directly or
+     *         through other formulas, in the order they have to be computed.
+     */
+    List<String> downstream(String variable) {
+        List<String> order = new ArrayList<>();
+        visit(variable, new HashSet<String>(), order);
+        order.remove(order.size() - 1);
+        Collections.reverse(order);
+        return order;
+    }
+
+    /**
+     * Depth first post-order over the dependents, whose reverse is a
+     * topological order.
+     */
+    private void visit(String variable, Set<String> visited, List<String> order) {
+        if (!visited.add(variable)) {
+            return;
+        }
+        Set<String> readers = dependents.get(variable);
+        if (readers != null) {
+            for (String reader : readers) {
+                visit(reader, visited, order);
+            }
+        }
+        order.add(variable);
+    }
+
+    /**
+     * @return true if variable is target, or is bound to a formula reading
+     *         target directly or through other formulas.
+     */
+    private boolean reads(String variable, String target, Set<String> visited) {
+        if (variable.equals(target)) {
+            return true;
+        }
+        Set<String> inputs = this.inputs.get(variable);
+        if (inputs == null || !visited.add(variable)) {
+            return false;
+        }
+        for (String input : inputs) {
+            if (reads(input, target, visited)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void connect(String target, Set<String> inputs) {
+        this.inputs.put(target, inputs);
+        for (String input : inputs) {
+            Set<String> readers = dependents.get(input);
+            if (readers == null) {
+                readers = new LinkedHashSet<>();
+                dependents.put(input, readers);
+            }
+            readers.add(target);
+        }
+    }
+
+    /**
+     * @return the inputs target had.
+     */
+    private Set<String> disconnect(String target) {
+        Set<String> inputs = this.inputs.remove(target);
+        for (String input : inputs) {
+            Set<String> readers = dependents.get(input);
+            readers.remove(target);
+            if (readers.isEmpty()) {
+                dependents.remove(input);
+            }
+        }
+        return inputs;
+    }
+
+    /**
+     * @return the variables formula reads, and the user functions it calls
+     *         with the variables they read, through the functions they call.
+     */
+    private static Set<String> inputsOf(CompiledExpression formula) {
+        Set<String> inputs = new LinkedHashSet<>(Arrays.asList(formula.getDependencies()));
+        Set<UserFunction> visited = new HashSet<>();
+        List<UserFunction> pending = new ArrayList<>(Arrays.asList(formula.getFunctions()));
+        while (!pending.isEmpty()) {
+            UserFunction function = pending.remove(pending.size() - 1);
+            UserFunction.Definition definition = function.getDefinition();
+            if (!visited.add(function) || definition == null) {
+                continue;
+            }
+            inputs.add(function.getName());
+            inputs.addAll(Arrays.asList(definition.dependencies));
+            pending.addAll(Arrays.asList(definition.functions));
+        }
+        return inputs;
+    }
+
+    private static IllegalArgumentException circular(String target) {
+        return new IllegalArgumentException(
+                String.format("Invalid expression: circular formula %s depends on itself", target));
+    }
+}
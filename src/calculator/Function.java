@@ -5,28 +5,57 @@ import java.math.BigDecimal;
 /**
  * The Function interface provides an interface for defining a function
  * supported by the calculator.
+ * <p>
+ * A function may implement {@code call} on {@code BigDecimal}, {@code fastCall}
+ * on primitive {@code double}, or both. Functions that only implement
+ * {@code fastCall} are computed in double precision, and their result is
+ * converted to {@code BigDecimal} for the {@code call} methods.
+ * </p>
  *
  * @throws UnsupportedOperationException if the default method is not overridden.
  */
 interface Function {
 
     default BigDecimal call(MathContextWithMin mathContext) {
-        throw new UnsupportedOperationException();
+        return new BigDecimal(fastCall(mathContext), mathContext.getMathContext());
     }
 
     default BigDecimal call(BigDecimal input, MathContextWithMin mathContext) {
-        throw new UnsupportedOperationException();
+        return new BigDecimal(fastCall(input.doubleValue(), mathContext), mathContext.getMathContext());
     }
 
     default BigDecimal call(BigDecimal input1, BigDecimal input2, MathContextWithMin mathContext) {
-        throw new UnsupportedOperationException();
+        return new BigDecimal(fastCall(input1.doubleValue(), input2.doubleValue(), mathContext),
+                mathContext.getMathContext());
     }
 
     default BigDecimal call(BigDecimal input1, BigDecimal input2, BigDecimal input3, MathContextWithMin mathContext) {
-        throw new UnsupportedOperationException();
+        return new BigDecimal(fastCall(input1.doubleValue(), input2.doubleValue(), input3.doubleValue(), mathContext),
+                mathContext.getMathContext());
     }
 
     default BigDecimal call(BigDecimal input1, BigDecimal input2, BigDecimal input3, BigDecimal input4, MathContextWithMin mathContext) {
+        return new BigDecimal(fastCall(input1.doubleValue(), input2.doubleValue(), input3.doubleValue(),
+                input4.doubleValue(), mathContext), mathContext.getMathContext());
+    }
+
+    default double fastCall(MathContextWithMin mathContext) {
+        throw new UnsupportedOperationException();
+    }
+
+    default double fastCall(double input, MathContextWithMin mathContext) {
+        throw new UnsupportedOperationException();
+    }
+
+    default double fastCall(double input1, double input2, MathContextWithMin mathContext) {
+        throw new UnsupportedOperationException();
+    }
+
+    default double fastCall(double input1, double input2, double input3, MathContextWithMin mathContext) {
+        throw new UnsupportedOperationException();
+    }
+
+    default double fastCall(double input1, double input2, double input3, double input4, MathContextWithMin mathContext) {
         throw new UnsupportedOperationException();
     }
 
@@ -0,0 +1,30 @@
+package calculator;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event for one call of a {@link Functions} entry.
+ */
+@Name("calculator.FunctionCall")
+@Label("Function Call")
+@Category("Calculator")
+@Description("Calling a calculator function")
+class FunctionCallEvent extends Event {
+
+    @Label("Function")
+    String function;
+
+    @Label("Arguments")
+    int arguments;
+
+    @Label("Argument Precision")
+    @Description("The largest number of significant digits among the arguments")
+    int argumentPrecision;
+
+    @Label("Precision")
+    int precision;
+}
@@ -0,0 +1,196 @@
+package calculator;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * FunctionMemo remembers the results of pure {@link Functions} by function,
+ * arguments and context, so functions like {@code gamma}, {@code factorial}
+ * or {@code qgamma} are computed once for arguments that repeat. Random
+ * functions and aggregates over any number of arguments are never
+ * remembered.
+ * <p>
+ * Arguments are compared with {@code BigDecimal.equals}, so {@code 2} and
+ * {@code 2.0} are remembered apart. Results are computed outside the lock,
+ * two threads missing the same entry at once both compute it.
+ * </p>
+ * <p>
+ * Entries are spread by hash over stripes, about four per processor, each
+ * with its own lock and an equal share of the capacity, so that threads
+ * calling different functions or arguments rarely wait for each other. The
+ * eviction policy applies within each stripe.
+ * </p>
+ * <p>
+ * A FunctionMemo can be shared by any number of threads and sessions.
+ * </p>
+ */
+public final class FunctionMemo {
+
+    private static final int STRIPES_PER_PROCESSOR = 4;
+
+    private final int capacity;
+    private final EvictionPolicy policy;
+    /** Each guarded by itself, a power of two of them. */
+    private final Stripe[] stripes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param capacity the maximum number of results kept
+     * @param policy   the entry dropped when full
+     * @throws IllegalArgumentException if capacity is not positive or policy
+     *                                  is null.
+     */
+    public FunctionMemo(int capacity, EvictionPolicy policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("memo capacity must be positive");
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("eviction policy must not be null");
+        }
+        this.capacity = capacity;
+        this.policy = policy;
+        int count = Integer.highestOneBit(Math.min(capacity,
+                Runtime.getRuntime().availableProcessors() * STRIPES_PER_PROCESSOR));
+        this.stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe(capacity / count + (i < capacity % count ? 1 : 0), policy);
+        }
+    }
+
+    /**
+     * Call the function with {@code count} parameters stored from
+     * {@code params[offset]} on, or return the result remembered for them.
+     */
+    BigDecimal call(Functions f, BigDecimal[] params, int offset, int count, MathContextWithMin m) {
+        if (!f.isPure() || count == 0 || f.isVariadic()) {
+            return f.call(params, offset, count, m);
+        }
+        Key key = new Key(f, Arrays.copyOfRange(params, offset, offset + count), m);
+        Stripe stripe = stripeOf(key);
+        BigDecimal result;
+        synchronized (stripe) {
+            result = stripe.get(key);
+        }
+        if (result != null) {
+            hits.increment();
+            return result;
+        }
+        misses.increment();
+        result = f.call(params, offset, count, m);
+        synchronized (stripe) {
+            stripe.put(key, result);
+        }
+        return result;
+    }
+
+    private Stripe stripeOf(Key key) {
+        int hash = key.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the share of calls answered from memory, or 0 before any call.
+     */
+    public double getHitRatio() {
+        long hits = this.hits.sum();
+        long total = hits + misses.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public int getSize() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public EvictionPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Forget every result and reset the statistics.
+     */
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+        hits.reset();
+        misses.reset();
+    }
+
+    /**
+     * Stripe holds the results of one range of hashes, and drops an entry by
+     * the policy once it holds more than its capacity.
+     */
+    private static final class Stripe extends LinkedHashMap<Key, BigDecimal> {
+
+        private static final long serialVersionUID = 2650370934916370415L;
+
+        private final int capacity;
+
+        Stripe(int capacity, EvictionPolicy policy) {
+            super(16, 0.75f, policy == EvictionPolicy.LRU);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, BigDecimal> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    private static final class Key {
+
+        private final Functions function;
+        private final BigDecimal[] arguments;
+        private final MathContext mathContext;
+        private final BigDecimal minimum;
+        private final int hash;
+
+        Key(Functions function, BigDecimal[] arguments, MathContextWithMin context) {
+            this.function = function;
+            this.arguments = arguments;
+            this.mathContext = context.getMathContext();
+            this.minimum = context.getMinimum();
+            this.hash = (31 * function.hashCode() + Arrays.hashCode(arguments)) * 31 + mathContext.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return function == k.function && hash == k.hash && mathContext.equals(k.mathContext)
+                    && minimum.equals(k.minimum) && Arrays.equals(arguments, k.arguments);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
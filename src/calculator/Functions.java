@@ -1,25 +1,22 @@
 package calculator;
 
+import java.util.Arrays;
 import java.util.Map;
 import java.math.BigDecimal;
+import java.math.MathContext;
 import java.util.HashMap;
-import java.util.Deque;
 import ch.obermuhlner.math.big.BigDecimalMath;
+import org.apache.commons.math3.special.Beta;
+import org.apache.commons.math3.special.Gamma;
 import org.apache.commons.math3.random.RandomGenerator;
-import org.apache.commons.math3.random.Well19937a;
-import org.apache.commons.math3.distribution.BetaDistribution;
-import org.apache.commons.math3.distribution.GammaDistribution;
-import org.apache.commons.math3.distribution.NormalDistribution;
-import org.apache.commons.math3.distribution.BinomialDistribution;
-import org.apache.commons.math3.distribution.TDistribution;
-import org.apache.commons.math3.distribution.ChiSquaredDistribution;
-import org.apache.commons.math3.distribution.CauchyDistribution;
-import org.apache.commons.math3.distribution.ExponentialDistribution;
-import org.apache.commons.math3.distribution.FDistribution;
-import org.apache.commons.math3.distribution.HypergeometricDistribution;
 
 /**
  * Define functions supported by the calculator here.
+ * <p>
+ * Functions are pure unless declared otherwise: they always return the same
+ * result for the same arguments, so calls on constants may be computed ahead
+ * of time and identical calls shared. Random sampling functions are impure.
+ * </p>
  *
  * @throws UnsupportedOperationException if input parameters has unsupported length
  * @throws ArithmeticException if argument does not meet arithmetic requirements
@@ -32,106 +29,180 @@ enum Functions {
         public BigDecimal call(BigDecimal input, MathContextWithMin context) {
             return BigDecimalMath.sqrt(input, context.getMathContext());
         }
+        @Override
+        public double fastCall(double input, MathContextWithMin context) {
+            return Math.sqrt(input);
+        }
     }), NATURAL_LOG("log", new Function() {
         @Override
         public BigDecimal call(BigDecimal input, MathContextWithMin context) {
             return BigDecimalMath.log(input, context.getMathContext());
         }
+        @Override
+        public double fastCall(double input, MathContextWithMin context) {
+            return Math.log(input);
+        }
     }), LOG_TEN("log10", new Function() {
         @Override
         public BigDecimal call(BigDecimal input, MathContextWithMin context) {
-            return BigDecimalMath.log10(input, context.getMathContext());
+            return log(input, Constants.LN10, context.getMathContext());
+        }
+        @Override
+        public double fastCall(double input, MathContextWithMin context) {
+            return Math.log10(input);
         }
     }), LOG_TWO("log2", new Function() {
         @Override
         public BigDecimal call(BigDecimal input, MathContextWithMin context) {
-            return BigDecimalMath.log2(input, context.getMathContext());
+            return log(input, Constants.LN2, context.getMathContext());
+        }
+        @Override
+        public double fastCall(double input, MathContextWithMin context) {
+            return Math.log(input) / LN_2;
         }
     }), FLOOR("floor", new Function() {
         @Override
         public BigDecimal call(BigDecimal input, MathContextWithMin context) {
             return input.subtract(BigDecimalMath.fractionalPart(input));
         }
-    }), EXPONENT("exp", new Function() {
         @Override
-        public BigDecimal call(BigDecimal input, MathContextWithMin context) {
-            return BigDecimalMath.exp(input, context.getMathContext());
+        public double fastCall(double input, MathContextWithMin context) {
+            return truncate(input);
         }
-    }), LOGICAL_NOT("b-", new Function() {
+    }), EXPONENT("exp", new Function() {
         @Override
         public BigDecimal call(BigDecimal input, MathContextWithMin context) {
-            return input.compareTo(BigDecimal.ZERO) == 0 ? BigDecimal.ONE : BigDecimal.ZERO;
+            return BigDecimalMath.exp(input, context.getMathContext());
         }
-    }), NEGATE("!", new Function() {
         @Override
-        public BigDecimal call(BigDecimal input, MathContextWithMin context) {
-            return input.negate();
+        public double fastCall(double input, MathContextWithMin context) {
+            return Math.exp(input);
         }
     }), SINE("sin", new Function() {
         @Override
         public BigDecimal call(BigDecimal input, MathContextWithMin context) {
             return BigDecimalMath.sin(input, context.getMathContext());
         }
+        @Override
+        public double fastCall(double input, MathContextWithMin context) {
+            return Math.sin(input);
+        }
     }), COSINE("cos", new Function() {
         @Override
         public BigDecimal call(BigDecimal input, MathContextWithMin context) {
             return BigDecimalMath.cos(input, context.getMathContext());
         }
+        @Override
+        public double fastCall(double input, MathContextWithMin context) {
+            return Math.cos(input);
+        }
     }), TANGENT("tan", new Function() {
         @Override
         public BigDecimal call(BigDecimal input, MathContextWithMin context) {
             return BigDecimalMath.tan(input, context.getMathContext());
         }
+        @Override
+        public double fastCall(double input, MathContextWithMin context) {
+            return Math.tan(input);
+        }
     }), ARCSINE("asin", new Function() {
         @Override
         public BigDecimal call(BigDecimal input, MathContextWithMin context) {
             return BigDecimalMath.asin(input, context.getMathContext());
         }
+        @Override
+        public double fastCall(double input, MathContextWithMin context) {
+            return Math.asin(input);
+        }
     }), ARCCOSINE("acos", new Function() {
         @Override
         public BigDecimal call(BigDecimal input, MathContextWithMin context) {
             return BigDecimalMath.acos(input, context.getMathContext());
         }
+        @Override
+        public double fastCall(double input, MathContextWithMin context) {
+            return Math.acos(input);
+        }
     }), ARCTANGENT("atan", new Function() {
         @Override
         public BigDecimal call(BigDecimal input, MathContextWithMin context) {
             return BigDecimalMath.atan(input, context.getMathContext());
         }
+        @Override
+        public double fastCall(double input, MathContextWithMin context) {
+            return Math.atan(input);
+        }
     }), H_SINE("sinh", new Function() {
         @Override
         public BigDecimal call(BigDecimal input, MathContextWithMin context) {
             return BigDecimalMath.sinh(input, context.getMathContext());
         }
+        @Override
+        public double fastCall(double input, MathContextWithMin context) {
+            return Math.sinh(input);
+        }
     }), H_COSINE("cosh", new Function() {
         @Override
         public BigDecimal call(BigDecimal input, MathContextWithMin context) {
             return BigDecimalMath.cosh(input, context.getMathContext());
         }
+        @Override
+        public double fastCall(double input, MathContextWithMin context) {
+            return Math.cosh(input);
+        }
     }), H_TANGENT("tanh", new Function() {
         @Override
         public BigDecimal call(BigDecimal input, MathContextWithMin context) {
             return BigDecimalMath.tanh(input, context.getMathContext());
         }
+        @Override
+        public double fastCall(double input, MathContextWithMin context) {
+            return Math.tanh(input);
+        }
     }), GAMMA("gamma", new Function() {
         @Override
         public BigDecimal call(BigDecimal input, MathContextWithMin context) {
+            chargeFactorial(input.doubleValue() - 1, context);
             return BigDecimalMath.gamma(input, context.getMathContext());
         }
+        @Override
+        public double fastCall(double input, MathContextWithMin context) {
+            return Gamma.gamma(input);
+        }
     }), FACTORIAL("factorial", new Function() {
         @Override
         public BigDecimal call(BigDecimal input, MathContextWithMin context) {
+            chargeFactorial(input.doubleValue(), context);
             return BigDecimalMath.factorial(input, context.getMathContext());
         }
+        @Override
+        public double fastCall(double input, MathContextWithMin context) {
+            return Gamma.gamma(input + 1);
+        }
     }), ROOT("root", new Function() {
         @Override
         public BigDecimal call(BigDecimal x, BigDecimal n, MathContextWithMin context) {
+            // Newton's method takes about n steps from its first guess
+            context.charge(n.doubleValue());
             return BigDecimalMath.root(x, n, context.getMathContext());
         }
+        @Override
+        public double fastCall(double x, double n, MathContextWithMin context) {
+            if (x < 0) {
+                // root rejects negative input, cbrt would answer it
+                return Double.NaN;
+            }
+            return n == 2 ? Math.sqrt(x) : n == 3 ? Math.cbrt(x) : Math.pow(x, 1 / n);
+        }
     }), POWER("pow", new Function() {
         @Override
         public BigDecimal call(BigDecimal x, BigDecimal n, MathContextWithMin context) {
             return BigDecimalMath.pow(x, n, context.getMathContext());
         }
+        @Override
+        public double fastCall(double x, double n, MathContextWithMin context) {
+            return Math.pow(x, n);
+        }
     }), BETA("beta", new Function() {
         @Override
         public BigDecimal call(BigDecimal p, BigDecimal q, MathContextWithMin context) {
@@ -140,6 +211,10 @@ enum Functions {
                             context.getMathContext())
                     .multiply(BigDecimalMath.gamma(q, context.getMathContext()), context.getMathContext());
         }
+        @Override
+        public double fastCall(double p, double q, MathContextWithMin context) {
+            return Math.exp(Beta.logBeta(p, q));
+        }
     }), SIGMOID("sigmoid", new Function() {
         @Override
         public BigDecimal call(BigDecimal input, MathContextWithMin context) {
@@ -147,237 +222,278 @@ enum Functions {
                     .add(BigDecimalMath.exp(input.negate(), context.getMathContext()), context.getMathContext()),
                     context.getMathContext());
         }
+        @Override
+        public double fastCall(double input, MathContextWithMin context) {
+            return 1 / (1 + Math.exp(-input));
+        }
     }),
 
-    // probability distribution functions
+    // aggregate functions, taking any number of arguments
 
-    P_BETA("pbeta", new Function() {
+    SUM("sum", new Aggregate(0) {
         @Override
-        public BigDecimal call(BigDecimal q, BigDecimal alpha, BigDecimal beta, MathContextWithMin context) {
-            BetaDistribution betaDistribution = new BetaDistribution(alpha.doubleValue(), beta.doubleValue(), ACCURACY);
-            return new BigDecimal(betaDistribution.cumulativeProbability(q.doubleValue()), context.getMathContext());
+        BigDecimal aggregate(BigDecimal[] values, int offset, int count, MathContextWithMin context) {
+            return exactSum(values, offset, count).round(context.getMathContext());
         }
-    }), P_GAMMA("pgamma", new Function() {
         @Override
-        public BigDecimal call(BigDecimal q, BigDecimal shape, BigDecimal scale, MathContextWithMin context) {
-            GammaDistribution gammaDistribution = new GammaDistribution(shape.doubleValue(), scale.doubleValue(), ACCURACY);
-            return new BigDecimal(gammaDistribution.cumulativeProbability(q.doubleValue()), context.getMathContext());
+        double fastAggregate(double[] values, int offset, int count, MathContextWithMin context) {
+            return compensatedSum(values, offset, count);
         }
-    }), P_NORMAL("pnorm", new Function() {
+    }), MEAN("mean", new Aggregate(1) {
         @Override
-        public BigDecimal call(BigDecimal q, MathContextWithMin context) {
-            NormalDistribution normalDistribution = new NormalDistribution(0.0, 1.0, ACCURACY);
-            return new BigDecimal(normalDistribution.cumulativeProbability(q.doubleValue()), context.getMathContext());
+        BigDecimal aggregate(BigDecimal[] values, int offset, int count, MathContextWithMin context) {
+            return exactSum(values, offset, count).divide(BigDecimal.valueOf(count), context.getMathContext());
         }
         @Override
-        public BigDecimal call(BigDecimal q, BigDecimal mean, BigDecimal sd, MathContextWithMin context) {
-            NormalDistribution normalDistribution = new NormalDistribution(mean.doubleValue(), sd.doubleValue(), ACCURACY);
-            return new BigDecimal(normalDistribution.cumulativeProbability(q.doubleValue()), context.getMathContext());
+        double fastAggregate(double[] values, int offset, int count, MathContextWithMin context) {
+            return compensatedSum(values, offset, count) / count;
         }
-    }), P_BINOMIAL("pbinom", new Function() {
+    }), VARIANCE("var", new Aggregate(2) {
         @Override
-        public BigDecimal call(BigDecimal q, BigDecimal trials, BigDecimal p, MathContextWithMin context) {
-            BinomialDistribution binomialDistribution = new BinomialDistribution(trials.intValueExact(), p.doubleValue());
-            return new BigDecimal(binomialDistribution.cumulativeProbability(q.subtract(BigDecimalMath.fractionalPart(q)).intValueExact()), context.getMathContext());
+        BigDecimal aggregate(BigDecimal[] values, int offset, int count, MathContextWithMin context) {
+            return variance(values, offset, count, context.getMathContext());
         }
-    }), P_T("pt", new Function() {
         @Override
-        public BigDecimal call(BigDecimal q, BigDecimal degreeOfFreedom, MathContextWithMin context) {
-            TDistribution tDistribution = new TDistribution(degreeOfFreedom.intValueExact(), ACCURACY);
-            return new BigDecimal(tDistribution.cumulativeProbability(q.doubleValue()), context.getMathContext());
+        double fastAggregate(double[] values, int offset, int count, MathContextWithMin context) {
+            return variance(values, offset, count);
         }
-    }), P_CHI_SQUARED("pchisq", new Function() {
+    }), STANDARD_DEVIATION("sd", new Aggregate(2) {
         @Override
-        public BigDecimal call(BigDecimal q, BigDecimal degreeOfFreedom, MathContextWithMin context) {
-            ChiSquaredDistribution chiSquaredDistribution = new ChiSquaredDistribution(degreeOfFreedom.intValueExact(), ACCURACY);
-            return new BigDecimal(chiSquaredDistribution.cumulativeProbability(q.doubleValue()), context.getMathContext());
+        BigDecimal aggregate(BigDecimal[] values, int offset, int count, MathContextWithMin context) {
+            return BigDecimalMath.sqrt(variance(values, offset, count, context.getMathContext()),
+                    context.getMathContext());
         }
-    }), P_CAUCHY("pcauchy", new Function() {
         @Override
-        public BigDecimal call(BigDecimal q, MathContextWithMin context) {
-            CauchyDistribution cauchyDistribution = new CauchyDistribution(0.0, 1.0, ACCURACY);
-            return new BigDecimal(cauchyDistribution.cumulativeProbability(q.doubleValue()), context.getMathContext());
+        double fastAggregate(double[] values, int offset, int count, MathContextWithMin context) {
+            return Math.sqrt(variance(values, offset, count));
         }
+    }), MIN("min", new Aggregate(1) {
         @Override
-        public BigDecimal call(BigDecimal q, BigDecimal median, BigDecimal scale, MathContextWithMin context) {
-            CauchyDistribution cauchyDistribution = new CauchyDistribution(median.doubleValue(), scale.doubleValue(), ACCURACY);
-            return new BigDecimal(cauchyDistribution.cumulativeProbability(q.doubleValue()), context.getMathContext());
+        BigDecimal aggregate(BigDecimal[] values, int offset, int count, MathContextWithMin context) {
+            BigDecimal min = values[offset];
+            for (int i = offset + 1; i < offset + count; i++) {
+                if (values[i].compareTo(min) < 0) {
+                    min = values[i];
+                }
+            }
+            return min;
         }
-    }), P_EXPONENTIAL("pexp", new Function() {
         @Override
-        public BigDecimal call(BigDecimal q, BigDecimal mean, MathContextWithMin context) {
-            ExponentialDistribution exponentialDistribution = new ExponentialDistribution(mean.doubleValue(), ACCURACY);
-            return new BigDecimal(exponentialDistribution.cumulativeProbability(q.doubleValue()), context.getMathContext());
+        double fastAggregate(double[] values, int offset, int count, MathContextWithMin context) {
+            double min = values[offset];
+            for (int i = offset + 1; i < offset + count; i++) {
+                min = Math.min(min, values[i]);
+            }
+            return min;
         }
-    }), P_F("pf", new Function() {
+    }), MAX("max", new Aggregate(1) {
         @Override
-        public BigDecimal call(BigDecimal q, BigDecimal numeratorDegreeOfFreedom, BigDecimal denominatorDegreeOfFreedom, MathContextWithMin context) {
-            FDistribution fDistribution = new FDistribution(numeratorDegreeOfFreedom.doubleValue(), denominatorDegreeOfFreedom.doubleValue(), ACCURACY);
-            return new BigDecimal(fDistribution.cumulativeProbability(q.doubleValue()), context.getMathContext());
+        BigDecimal aggregate(BigDecimal[] values, int offset, int count, MathContextWithMin context) {
+            BigDecimal max = values[offset];
+            for (int i = offset + 1; i < offset + count; i++) {
+                if (values[i].compareTo(max) > 0) {
+                    max = values[i];
+                }
+            }
+            return max;
         }
-    }), P_HYPER_GEOMETRIC("phyper", new Function() {
         @Override
-        public BigDecimal call(BigDecimal q, BigDecimal populationSize, BigDecimal numberOfSuccesses, BigDecimal sampleSize, MathContextWithMin context) {
-            HypergeometricDistribution hyperGeometricDistribution = new HypergeometricDistribution(populationSize.intValueExact(), numberOfSuccesses.intValueExact(), sampleSize.intValueExact());
-            return new BigDecimal(hyperGeometricDistribution.cumulativeProbability(q.subtract(BigDecimalMath.fractionalPart(q)).intValueExact()), context.getMathContext());
+        double fastAggregate(double[] values, int offset, int count, MathContextWithMin context) {
+            double max = values[offset];
+            for (int i = offset + 1; i < offset + count; i++) {
+                max = Math.max(max, values[i]);
+            }
+            return max;
         }
-    }),
-
-    // probability density functions
-
-    D_BETA("dbeta", new Function() {
+    }), MEDIAN("median", new Aggregate(1) {
+        @Override
+        BigDecimal aggregate(BigDecimal[] values, int offset, int count, MathContextWithMin context) {
+            return quantile(values, offset, count, HALF, context.getMathContext());
+        }
+        @Override
+        double fastAggregate(double[] values, int offset, int count, MathContextWithMin context) {
+            return quantile(values, offset, count, 0.5);
+        }
+    }), QUANTILE("quantile", new Aggregate(2) {
         @Override
-        public BigDecimal call(BigDecimal x, BigDecimal alpha, BigDecimal beta, MathContextWithMin context) {
-            BetaDistribution betaDistribution = new BetaDistribution(alpha.doubleValue(), beta.doubleValue(), ACCURACY);
-            return new BigDecimal(betaDistribution.density(x.doubleValue()), context.getMathContext());
+        BigDecimal aggregate(BigDecimal[] values, int offset, int count, MathContextWithMin context) {
+            return quantile(values, offset + 1, count - 1, values[offset], context.getMathContext());
         }
-    }), D_GAMMA("dgamma", new Function() {
         @Override
-        public BigDecimal call(BigDecimal x, BigDecimal shape, BigDecimal scale, MathContextWithMin context) {
-            GammaDistribution gammaDistribution = new GammaDistribution(shape.doubleValue(), scale.doubleValue(), ACCURACY);
-            return new BigDecimal(gammaDistribution.density(x.doubleValue()), context.getMathContext());
+        double fastAggregate(double[] values, int offset, int count, MathContextWithMin context) {
+            return quantile(values, offset + 1, count - 1, values[offset]);
         }
-    }), D_NORMAL("dnorm", new Function() {
+    }),
+
+    // probability distribution functions
+
+    P_BETA("pbeta", new DistributionFunction(Distributions.BETA) {
         @Override
-        public BigDecimal call(BigDecimal x, MathContextWithMin context) {
-            NormalDistribution normalDistribution = new NormalDistribution(0.0, 1.0, ACCURACY);
-            return new BigDecimal(normalDistribution.density(x.doubleValue()), context.getMathContext());
+        double apply(Distributions.Instance distribution, double q) {
+            return distribution.cumulativeProbability(q);
         }
+    }), P_GAMMA("pgamma", new DistributionFunction(Distributions.GAMMA) {
         @Override
-        public BigDecimal call(BigDecimal x, BigDecimal mean, BigDecimal sd, MathContextWithMin context) {
-            NormalDistribution normalDistribution = new NormalDistribution(mean.doubleValue(), sd.doubleValue(), ACCURACY);
-            return new BigDecimal(normalDistribution.density(x.doubleValue()), context.getMathContext());
+        double apply(Distributions.Instance distribution, double q) {
+            return distribution.cumulativeProbability(q);
         }
-    }), D_BINOMIAL("dbinom", new Function() {
+    }), P_NORMAL("pnorm", new DistributionFunction(Distributions.NORMAL) {
         @Override
-        public BigDecimal call(BigDecimal x, BigDecimal trials, BigDecimal p, MathContextWithMin context) {
-            BinomialDistribution binomialDistribution = new BinomialDistribution(trials.intValueExact(), p.doubleValue());
-            return new BigDecimal(binomialDistribution.probability(x.intValueExact()), context.getMathContext());
+        double apply(Distributions.Instance distribution, double q) {
+            return distribution.cumulativeProbability(q);
         }
-    }), D_T("dt", new Function() {
+    }), P_BINOMIAL("pbinom", new DistributionFunction(Distributions.BINOMIAL) {
         @Override
-        public BigDecimal call(BigDecimal x, BigDecimal degreeOfFreedom, MathContextWithMin context) {
-            TDistribution tDistribution = new TDistribution(degreeOfFreedom.intValueExact(), ACCURACY);
-            return new BigDecimal(tDistribution.density(x.doubleValue()), context.getMathContext());
+        double apply(Distributions.Instance distribution, double q) {
+            return distribution.cumulativeProbability(q);
         }
-    }), D_CHI_SQUARED("dchisq", new Function() {
+    }), P_T("pt", new DistributionFunction(Distributions.T) {
         @Override
-        public BigDecimal call(BigDecimal x, BigDecimal degreeOfFreedom, MathContextWithMin context) {
-            ChiSquaredDistribution chiSquaredDistribution = new ChiSquaredDistribution(degreeOfFreedom.intValueExact(), ACCURACY);
-            return new BigDecimal(chiSquaredDistribution.density(x.doubleValue()), context.getMathContext());
+        double apply(Distributions.Instance distribution, double q) {
+            return distribution.cumulativeProbability(q);
         }
-    }), D_CAUCHY("dcauchy", new Function() {
+    }), P_CHI_SQUARED("pchisq", new DistributionFunction(Distributions.CHI_SQUARED) {
         @Override
-        public BigDecimal call(BigDecimal x, MathContextWithMin context) {
-            CauchyDistribution cauchyDistribution = new CauchyDistribution(0.0, 1.0, ACCURACY);
-            return new BigDecimal(cauchyDistribution.density(x.doubleValue()), context.getMathContext());
+        double apply(Distributions.Instance distribution, double q) {
+            return distribution.cumulativeProbability(q);
         }
+    }), P_CAUCHY("pcauchy", new DistributionFunction(Distributions.CAUCHY) {
         @Override
-        public BigDecimal call(BigDecimal x, BigDecimal median, BigDecimal scale, MathContextWithMin context) {
-            CauchyDistribution cauchyDistribution = new CauchyDistribution(median.doubleValue(), scale.doubleValue(), ACCURACY);
-            return new BigDecimal(cauchyDistribution.density(x.doubleValue()), context.getMathContext());
+        double apply(Distributions.Instance distribution, double q) {
+            return distribution.cumulativeProbability(q);
         }
-    }), D_EXPONENTIAL("dexp", new Function() {
+    }), P_EXPONENTIAL("pexp", new DistributionFunction(Distributions.EXPONENTIAL) {
         @Override
-        public BigDecimal call(BigDecimal x, BigDecimal mean, MathContextWithMin context) {
-            ExponentialDistribution exponentialDistribution = new ExponentialDistribution(mean.doubleValue(), ACCURACY);
-            return new BigDecimal(exponentialDistribution.density(x.doubleValue()), context.getMathContext());
+        double apply(Distributions.Instance distribution, double q) {
+            return distribution.cumulativeProbability(q);
         }
-    }), D_F("df", new Function() {
+    }), P_F("pf", new DistributionFunction(Distributions.F) {
         @Override
-        public BigDecimal call(BigDecimal x, BigDecimal numeratorDegreeOfFreedom, BigDecimal denominatorDegreeOfFreedom, MathContextWithMin context) {
-            FDistribution fDistribution = new FDistribution(numeratorDegreeOfFreedom.doubleValue(), denominatorDegreeOfFreedom.doubleValue(), ACCURACY);
-            return new BigDecimal(fDistribution.density(x.doubleValue()), context.getMathContext());
+        double apply(Distributions.Instance distribution, double q) {
+            return distribution.cumulativeProbability(q);
         }
-    }), D_HYPER_GEOMETRIC("dhyper", new Function() {
+    }), P_HYPER_GEOMETRIC("phyper", new DistributionFunction(Distributions.HYPER_GEOMETRIC) {
         @Override
-        public BigDecimal call(BigDecimal x, BigDecimal populationSize, BigDecimal numberOfSuccesses, BigDecimal sampleSize, MathContextWithMin context) {
-            HypergeometricDistribution hyperGeometricDistribution = new HypergeometricDistribution(populationSize.intValueExact(), numberOfSuccesses.intValueExact(), sampleSize.intValueExact());
-            return new BigDecimal(hyperGeometricDistribution.probability(x.intValueExact()), context.getMathContext());
+        double apply(Distributions.Instance distribution, double q) {
+            return distribution.cumulativeProbability(q);
         }
     }),
 
-    // inverse probability distribution functions
+    // probability density functions
 
-    Q_BETA("qbeta", new Function() {
+    D_BETA("dbeta", new DistributionFunction(Distributions.BETA) {
+        @Override
+        double apply(Distributions.Instance distribution, double x) {
+            return distribution.density(x);
+        }
+    }), D_GAMMA("dgamma", new DistributionFunction(Distributions.GAMMA) {
+        @Override
+        double apply(Distributions.Instance distribution, double x) {
+            return distribution.density(x);
+        }
+    }), D_NORMAL("dnorm", new DistributionFunction(Distributions.NORMAL) {
+        @Override
+        double apply(Distributions.Instance distribution, double x) {
+            return distribution.density(x);
+        }
+    }), D_BINOMIAL("dbinom", new DistributionFunction(Distributions.BINOMIAL) {
+        @Override
+        double apply(Distributions.Instance distribution, double x) {
+            return distribution.density(x);
+        }
+    }), D_T("dt", new DistributionFunction(Distributions.T) {
+        @Override
+        double apply(Distributions.Instance distribution, double x) {
+            return distribution.density(x);
+        }
+    }), D_CHI_SQUARED("dchisq", new DistributionFunction(Distributions.CHI_SQUARED) {
+        @Override
+        double apply(Distributions.Instance distribution, double x) {
+            return distribution.density(x);
+        }
+    }), D_CAUCHY("dcauchy", new DistributionFunction(Distributions.CAUCHY) {
         @Override
-        public BigDecimal call(BigDecimal p, BigDecimal alpha, BigDecimal beta, MathContextWithMin context) {
-            BetaDistribution betaDistribution = new BetaDistribution(alpha.doubleValue(), beta.doubleValue(), ACCURACY);
-            return new BigDecimal(betaDistribution.inverseCumulativeProbability(p.doubleValue()), context.getMathContext());
+        double apply(Distributions.Instance distribution, double x) {
+            return distribution.density(x);
         }
-    }), Q_GAMMA("qgamma", new Function() {
+    }), D_EXPONENTIAL("dexp", new DistributionFunction(Distributions.EXPONENTIAL) {
         @Override
-        public BigDecimal call(BigDecimal p, BigDecimal shape, BigDecimal scale, MathContextWithMin context) {
-            GammaDistribution gammaDistribution = new GammaDistribution(shape.doubleValue(), scale.doubleValue(), ACCURACY);
-            return new BigDecimal(gammaDistribution.inverseCumulativeProbability(p.doubleValue()), context.getMathContext());
+        double apply(Distributions.Instance distribution, double x) {
+            return distribution.density(x);
         }
-    }), Q_NORMAL("qnorm", new Function() {
+    }), D_F("df", new DistributionFunction(Distributions.F) {
         @Override
-        public BigDecimal call(BigDecimal p, MathContextWithMin context) {
-            NormalDistribution normalDistribution = new NormalDistribution(0.0, 1.0, ACCURACY);
-            return new BigDecimal(normalDistribution.inverseCumulativeProbability(p.doubleValue()), context.getMathContext());
+        double apply(Distributions.Instance distribution, double x) {
+            return distribution.density(x);
         }
+    }), D_HYPER_GEOMETRIC("dhyper", new DistributionFunction(Distributions.HYPER_GEOMETRIC) {
         @Override
-        public BigDecimal call(BigDecimal p, BigDecimal mean, BigDecimal sd, MathContextWithMin context) {
-            NormalDistribution normalDistribution = new NormalDistribution(mean.doubleValue(), sd.doubleValue(), ACCURACY);
-            return new BigDecimal(normalDistribution.inverseCumulativeProbability(p.doubleValue()), context.getMathContext());
+        double apply(Distributions.Instance distribution, double x) {
+            return distribution.density(x);
         }
-    }), Q_BINOMIAL("qbinom", new Function() {
+    }),
+
+    // inverse probability distribution functions
+
+    Q_BETA("qbeta", new DistributionFunction(Distributions.BETA) {
         @Override
-        public BigDecimal call(BigDecimal P, BigDecimal trials, BigDecimal p, MathContextWithMin context) {
-            BinomialDistribution binomialDistribution = new BinomialDistribution(trials.intValueExact(), p.doubleValue());
-            return new BigDecimal(binomialDistribution.inverseCumulativeProbability(P.doubleValue()), context.getMathContext());
+        double apply(Distributions.Instance distribution, double p) {
+            return distribution.inverseCumulativeProbability(p);
         }
-    }), Q_T("qt", new Function() {
+    }), Q_GAMMA("qgamma", new DistributionFunction(Distributions.GAMMA) {
         @Override
-        public BigDecimal call(BigDecimal p, BigDecimal degreeOfFreedom, MathContextWithMin context) {
-            TDistribution tDistribution = new TDistribution(degreeOfFreedom.intValueExact(), ACCURACY);
-            return new BigDecimal(tDistribution.inverseCumulativeProbability(p.doubleValue()), context.getMathContext());
+        double apply(Distributions.Instance distribution, double p) {
+            return distribution.inverseCumulativeProbability(p);
         }
-    }), Q_CHI_SQUARED("qchisq", new Function() {
+    }), Q_NORMAL("qnorm", new DistributionFunction(Distributions.NORMAL) {
         @Override
-        public BigDecimal call(BigDecimal p, BigDecimal degreeOfFreedom, MathContextWithMin context) {
-            ChiSquaredDistribution chiSquaredDistribution = new ChiSquaredDistribution(degreeOfFreedom.intValueExact(), ACCURACY);
-            return new BigDecimal(chiSquaredDistribution.inverseCumulativeProbability(p.doubleValue()), context.getMathContext());
+        double apply(Distributions.Instance distribution, double p) {
+            return distribution.inverseCumulativeProbability(p);
         }
-    }), Q_CAUCHY("qcauchy", new Function() {
+    }), Q_BINOMIAL("qbinom", new DistributionFunction(Distributions.BINOMIAL) {
         @Override
-        public BigDecimal call(BigDecimal p, MathContextWithMin context) {
-            CauchyDistribution cauchyDistribution = new CauchyDistribution(0.0, 1.0, ACCURACY);
-            return new BigDecimal(cauchyDistribution.inverseCumulativeProbability(p.doubleValue()), context.getMathContext());
+        double apply(Distributions.Instance distribution, double p) {
+            return distribution.inverseCumulativeProbability(p);
         }
+    }), Q_T("qt", new DistributionFunction(Distributions.T) {
         @Override
-        public BigDecimal call(BigDecimal p, BigDecimal median, BigDecimal scale, MathContextWithMin context) {
-            CauchyDistribution cauchyDistribution = new CauchyDistribution(median.doubleValue(), scale.doubleValue(), ACCURACY);
-            return new BigDecimal(cauchyDistribution.inverseCumulativeProbability(p.doubleValue()), context.getMathContext());
+        double apply(Distributions.Instance distribution, double p) {
+            return distribution.inverseCumulativeProbability(p);
         }
-    }), Q_EXPONENTIAL("qexp", new Function() {
+    }), Q_CHI_SQUARED("qchisq", new DistributionFunction(Distributions.CHI_SQUARED) {
         @Override
-        public BigDecimal call(BigDecimal p, BigDecimal mean, MathContextWithMin context) {
-            ExponentialDistribution exponentialDistribution = new ExponentialDistribution(mean.doubleValue(), ACCURACY);
-            return new BigDecimal(exponentialDistribution.inverseCumulativeProbability(p.doubleValue()), context.getMathContext());
+        double apply(Distributions.Instance distribution, double p) {
+            return distribution.inverseCumulativeProbability(p);
         }
-    }), Q_F("qf", new Function() {
+    }), Q_CAUCHY("qcauchy", new DistributionFunction(Distributions.CAUCHY) {
         @Override
-        public BigDecimal call(BigDecimal p, BigDecimal numeratorDegreeOfFreedom, BigDecimal denominatorDegreeOfFreedom, MathContextWithMin context) {
-            FDistribution fDistribution = new FDistribution(numeratorDegreeOfFreedom.doubleValue(), denominatorDegreeOfFreedom.doubleValue(), ACCURACY);
-            return new BigDecimal(fDistribution.inverseCumulativeProbability(p.doubleValue()), context.getMathContext());
+        double apply(Distributions.Instance distribution, double p) {
+            return distribution.inverseCumulativeProbability(p);
         }
-    }), Q_HYPER_GEOMETRIC("qhyper", new Function() {
+    }), Q_EXPONENTIAL("qexp", new DistributionFunction(Distributions.EXPONENTIAL) {
         @Override
-        public BigDecimal call(BigDecimal p, BigDecimal populationSize, BigDecimal numberOfSuccesses, BigDecimal sampleSize, MathContextWithMin context) {
-            HypergeometricDistribution hyperGeometricDistribution = new HypergeometricDistribution(populationSize.intValueExact(), numberOfSuccesses.intValueExact(), sampleSize.intValueExact());
-            return new BigDecimal(hyperGeometricDistribution.inverseCumulativeProbability(p.doubleValue()), context.getMathContext());
+        double apply(Distributions.Instance distribution, double p) {
+            return distribution.inverseCumulativeProbability(p);
+        }
+    }), Q_F("qf", new DistributionFunction(Distributions.F) {
+        @Override
+        double apply(Distributions.Instance distribution, double p) {
+            return distribution.inverseCumulativeProbability(p);
+        }
+    }), Q_HYPER_GEOMETRIC("qhyper", new DistributionFunction(Distributions.HYPER_GEOMETRIC) {
+        @Override
+        double apply(Distributions.Instance distribution, double p) {
+            return distribution.inverseCumulativeProbability(p);
         }
     }),
 
     // distributions random sampling
 
-    R_UNIFORM("runif", new Function() {
+    R_UNIFORM("runif", false, new Sampler(null) {
 
         @Override
         public BigDecimal call(MathContextWithMin context) {
-            return new BigDecimal(RANDOM.nextDouble(), context.getMathContext());
+            return new BigDecimal(context.getRandom().nextDouble(), context.getMathContext());
         }
 
         @Override
@@ -386,7 +502,7 @@ enum Functions {
                 throw new ArithmeticException("high must be greater than zero");
             }
             return high.multiply(
-                            new BigDecimal(RANDOM.nextDouble(), context.getMathContext()), context.getMathContext());
+                            new BigDecimal(context.getRandom().nextDouble(), context.getMathContext()), context.getMathContext());
         }
 
         @Override
@@ -396,88 +512,66 @@ enum Functions {
             }
             return low.add(
                     high.subtract(low, context.getMathContext()).multiply(
-                            new BigDecimal(RANDOM.nextDouble(), context.getMathContext()), context.getMathContext()),
+                            new BigDecimal(context.getRandom().nextDouble(), context.getMathContext()), context.getMathContext()),
                     context.getMathContext());
         }
 
-    }), R_BETA("rbeta", new Function() {
-        @Override
-        public BigDecimal call(BigDecimal alpha, BigDecimal beta, MathContextWithMin context) {
-            BetaDistribution betaDistribution = new BetaDistribution(RANDOM, alpha.doubleValue(), beta.doubleValue(), ACCURACY);
-            return new BigDecimal(betaDistribution.sample(), context.getMathContext());
-        }
-    }), R_GAMMA("rgamma", new Function() {
-        @Override
-        public BigDecimal call(BigDecimal shape, BigDecimal scale, MathContextWithMin context) {
-            GammaDistribution gammaDistribution = new GammaDistribution(RANDOM, shape.doubleValue(), scale.doubleValue(), ACCURACY);
-            return new BigDecimal(gammaDistribution.sample(), context.getMathContext());
-        }
-    }), R_NORMAL("rnorm", new Function() {
         @Override
-        public BigDecimal call(MathContextWithMin context) {
-            NormalDistribution normalDistribution = new NormalDistribution(RANDOM, 0.0, 1.0, ACCURACY);
-            return new BigDecimal(normalDistribution.sample(), context.getMathContext());
-        }
-        @Override
-        public BigDecimal call(BigDecimal mean, BigDecimal sd, MathContextWithMin context) {
-            NormalDistribution normalDistribution = new NormalDistribution(RANDOM, mean.doubleValue(), sd.doubleValue(), ACCURACY);
-            return new BigDecimal(normalDistribution.sample(), context.getMathContext());
-        }
-    }), R_BINOMIAL("rbinom", new Function() {
-        @Override
-        public BigDecimal call(BigDecimal trials, BigDecimal p, MathContextWithMin context) {
-            BinomialDistribution binomialDistribution = new BinomialDistribution(RANDOM, trials.intValueExact(), p.doubleValue());
-            return new BigDecimal(binomialDistribution.sample(), context.getMathContext());
-        }
-    }), R_T("rt", new Function() {
-        @Override
-        public BigDecimal call(BigDecimal degreeOfFreedom, MathContextWithMin context) {
-            TDistribution tDistribution = new TDistribution(RANDOM, degreeOfFreedom.intValueExact(), ACCURACY);
-            return new BigDecimal(tDistribution.sample(), context.getMathContext());
-        }
-    }), R_CHI_SQUARED("rchisq", new Function() {
-        @Override
-        public BigDecimal call(BigDecimal degreeOfFreedom, MathContextWithMin context) {
-            ChiSquaredDistribution chiSquaredDistribution = new ChiSquaredDistribution(RANDOM,
-                    degreeOfFreedom.intValueExact(), ACCURACY);
-            return new BigDecimal(chiSquaredDistribution.sample(), context.getMathContext());
-        }
-    }), R_CAUCHY("rcauchy", new Function() {
-        @Override
-        public BigDecimal call(MathContextWithMin context) {
-            CauchyDistribution cauchyDistribution = new CauchyDistribution(RANDOM, 0.0, 1.0, ACCURACY);
-            return new BigDecimal(cauchyDistribution.sample(), context.getMathContext());
-        }
-        @Override
-        public BigDecimal call(BigDecimal median, BigDecimal scale, MathContextWithMin context) {
-            CauchyDistribution cauchyDistribution = new CauchyDistribution(RANDOM, median.doubleValue(), scale.doubleValue(), ACCURACY);
-            return new BigDecimal(cauchyDistribution.sample(), context.getMathContext());
-        }
-    }), R_EXPONENTIAL("rexp", new Function() {
-        @Override
-        public BigDecimal call(BigDecimal mean, MathContextWithMin context) {
-            ExponentialDistribution exponentialDistribution = new ExponentialDistribution(RANDOM, mean.doubleValue(), ACCURACY);
-            return new BigDecimal(exponentialDistribution.sample(), context.getMathContext());
-        }
-    }), R_F("rf", new Function() {
-        @Override
-        public BigDecimal call(BigDecimal numeratorDegreeOfFreedom, BigDecimal denominatorDegreeOfFreedom,
-                MathContextWithMin context) {
-            FDistribution fDistribution = new FDistribution(RANDOM, numeratorDegreeOfFreedom.doubleValue(),
-                    denominatorDegreeOfFreedom.doubleValue(), ACCURACY);
-            return new BigDecimal(fDistribution.sample(), context.getMathContext());
+        double[] sample(RandomGenerator random, int n, double... params) {
+            double low;
+            double high;
+            switch (params.length) {
+                case 0:
+                    low = 0;
+                    high = 1;
+                    break;
+                case 1:
+                    if (params[0] <= 0) {
+                        throw new ArithmeticException("high must be greater than zero");
+                    }
+                    low = 0;
+                    high = params[0];
+                    break;
+                case 2:
+                    if (params[0] >= params[1]) {
+                        throw new ArithmeticException("high must be greater than low");
+                    }
+                    low = params[0];
+                    high = params[1];
+                    break;
+                default:
+                    throw new UnsupportedOperationException();
+            }
+            double[] samples = new double[n];
+            for (int i = 0; i < n; i++) {
+                samples[i] = low + (high - low) * random.nextDouble();
+            }
+            return samples;
         }
-    }), R_HYPER_GEOMETRIC("rhyper", new Function() {
+
+    }), R_BETA("rbeta", false, new Sampler(Distributions.BETA)),
+    R_GAMMA("rgamma", false, new Sampler(Distributions.GAMMA)),
+    R_NORMAL("rnorm", false, new Sampler(Distributions.NORMAL)),
+    R_BINOMIAL("rbinom", false, new Sampler(Distributions.BINOMIAL)),
+    R_T("rt", false, new Sampler(Distributions.T)),
+    R_CHI_SQUARED("rchisq", false, new Sampler(Distributions.CHI_SQUARED)),
+    R_CAUCHY("rcauchy", false, new Sampler(Distributions.CAUCHY)),
+    R_EXPONENTIAL("rexp", false, new Sampler(Distributions.EXPONENTIAL)),
+    R_F("rf", false, new Sampler(Distributions.F)),
+    R_HYPER_GEOMETRIC("rhyper", false, new Sampler(Distributions.HYPER_GEOMETRIC)),
+
+    // random seed
+
+    SEED("seed", false, new Function() {
         @Override
-        public BigDecimal call(BigDecimal populationSize, BigDecimal numberOfSuccesses, BigDecimal sampleSize,
-                MathContextWithMin context) {
-            HypergeometricDistribution hyperGeometricDistribution = new HypergeometricDistribution(RANDOM,
-                    populationSize.intValueExact(), numberOfSuccesses.intValueExact(), sampleSize.intValueExact());
-            return new BigDecimal(hyperGeometricDistribution.sample(), context.getMathContext());
+        public BigDecimal call(BigDecimal seed, MathContextWithMin context) {
+            context.getRandomStreams().seed(seed.longValueExact());
+            return seed;
         }
     });
 
     private final String name;
+    private final boolean pure;
     private final Function function;
     private static final int numberOfFunctions = Functions.values().length;
     private static final Map<String, Functions> functionNames = new HashMap<String, Functions>(numberOfFunctions){
@@ -488,11 +582,17 @@ enum Functions {
             }
         }
     };
-    private static final RandomGenerator RANDOM = new Well19937a();
-    private static final double ACCURACY = 1e-16;
+    private static final double LN_2 = Math.log(2);
+    private static final double LN_10 = Math.log(10);
+    private static final BigDecimal HALF = new BigDecimal("0.5");
 
     private Functions(String name, Function function) {
+        this(name, true, function);
+    }
+
+    private Functions(String name, boolean pure, Function function) {
         this.name = name;
+        this.pure = pure;
         this.function = function;
     }
 
@@ -504,25 +604,481 @@ enum Functions {
         return functionNames.get(c);
     }
 
+    final String getName() {
+        return name;
+    }
+
+    /**
+     * @return true if the function always returns the same result for the
+     *         same arguments.
+     */
+    final boolean isPure() {
+        return pure;
+    }
+
+    /**
+     * @return true if the function takes any number of arguments.
+     */
+    final boolean isVariadic() {
+        return function instanceof Aggregate;
+    }
+
     public final BigDecimal call(MathContextWithMin m) {
         return function.call(m);
     }
 
-    public final BigDecimal call(Deque<BigDecimal> params, MathContextWithMin m) {
-        switch(params.size()) {
+    /**
+     * Call the function in double precision with {@code count} parameters
+     * stored from {@code params[offset]} on.
+     *
+     * @throws UnsupportedOperationException if the function has no double
+     *                                       precision version for count.
+     */
+    final double fastCall(double[] params, int offset, int count, MathContextWithMin m) {
+        if (function instanceof Aggregate) {
+            return ((Aggregate) function).fastCall(params, offset, count, m);
+        }
+        switch(count) {
+            case 0:
+                return function.fastCall(m);
+            case 1:
+                return function.fastCall(params[offset], m);
+            case 2:
+                return function.fastCall(params[offset], params[offset + 1], m);
+            case 3:
+                return function.fastCall(params[offset], params[offset + 1], params[offset + 2], m);
+            case 4:
+                return function.fastCall(params[offset], params[offset + 1], params[offset + 2], params[offset + 3], m);
+            default:
+                throw new UnsupportedOperationException("wrong number of arguments");
+        }
+    }
+
+    /**
+     * Call the function with {@code count} parameters stored from
+     * {@code params[offset]} on.
+     */
+    public final BigDecimal call(BigDecimal[] params, int offset, int count, MathContextWithMin m) {
+        if (function instanceof Aggregate) {
+            return ((Aggregate) function).call(params, offset, count, m);
+        }
+        switch(count) {
             case 0:
                 return function.call(m);
             case 1:
-                return function.call(params.pop(), m);
+                return function.call(params[offset], m);
             case 2:
-                return function.call(params.pop(), params.pop(), m);
+                return function.call(params[offset], params[offset + 1], m);
             case 3:
-                return function.call(params.pop(), params.pop(), params.pop(), m);
+                return function.call(params[offset], params[offset + 1], params[offset + 2], m);
             case 4:
-                return function.call(params.pop(), params.pop(), params.pop(), params.pop(), m);
+                return function.call(params[offset], params[offset + 1], params[offset + 2], params[offset + 3], m);
             default:
                 throw new UnsupportedOperationException("wrong number of arguments");
         }
     }
 
+    /**
+     * Evaluate a distribution function at every point with one distribution.
+     *
+     * @throws UnsupportedOperationException if the function is not a
+     *                                       distribution function or does not
+     *                                       take params.length parameters.
+     */
+    final double[] apply(double[] points, double[] params) {
+        if (!(function instanceof DistributionFunction)) {
+            throw new UnsupportedOperationException(name + " is not a distribution function");
+        }
+        return ((DistributionFunction) function).apply(points, params);
+    }
+
+    /**
+     * Draw {@code n} samples in one call with the random generator of the
+     * current thread.
+     *
+     * @throws UnsupportedOperationException if the function does not sample
+     *                                       with params.length parameters.
+     */
+    final double[] sample(int n, double[] params, MathContextWithMin m) {
+        if (!(function instanceof Sampler)) {
+            throw new UnsupportedOperationException(name + " is not a random sampling function");
+        }
+        return ((Sampler) function).sample(m.getRandom(), n, params);
+    }
+
+    /**
+     * A random sampling function, which creates its distribution once to
+     * draw any number of samples.
+     */
+    static class Sampler implements Function {
+
+        private final Distributions distribution;
+
+        /**
+         * @param distribution the distribution to sample, or null if
+         *                     {@link #sample} is overridden
+         */
+        Sampler(Distributions distribution) {
+            this.distribution = distribution;
+        }
+
+        /**
+         * @throws UnsupportedOperationException if params has the wrong length.
+         */
+        double[] sample(RandomGenerator random, int n, double... params) {
+            return distribution.sample(random, n, params);
+        }
+
+        @Override
+        public double fastCall(MathContextWithMin context) {
+            return sample(context.getRandom(), 1)[0];
+        }
+
+        @Override
+        public double fastCall(double input, MathContextWithMin context) {
+            return sample(context.getRandom(), 1, input)[0];
+        }
+
+        @Override
+        public double fastCall(double input1, double input2, MathContextWithMin context) {
+            return sample(context.getRandom(), 1, input1, input2)[0];
+        }
+
+        @Override
+        public double fastCall(double input1, double input2, double input3, MathContextWithMin context) {
+            return sample(context.getRandom(), 1, input1, input2, input3)[0];
+        }
+
+    }
+
+    /**
+     * A probability, density or quantile function of a distribution, taking
+     * the point first and the parameters of the distribution after it.
+     */
+    abstract static class DistributionFunction implements Function {
+
+        private final Distributions distribution;
+
+        DistributionFunction(Distributions distribution) {
+            this.distribution = distribution;
+        }
+
+        abstract double apply(Distributions.Instance distribution, double x);
+
+        /**
+         * Apply the function to every point with one distribution.
+         */
+        final double[] apply(double[] points, double... params) {
+            Distributions.Instance instance = distribution.get(params);
+            double[] values = new double[points.length];
+            for (int i = 0; i < points.length; i++) {
+                values[i] = apply(instance, points[i]);
+            }
+            return values;
+        }
+
+        @Override
+        public double fastCall(double x, MathContextWithMin context) {
+            return apply(distribution.get(), x);
+        }
+
+        @Override
+        public double fastCall(double x, double param, MathContextWithMin context) {
+            return apply(distribution.get(param), x);
+        }
+
+        @Override
+        public double fastCall(double x, double param1, double param2, MathContextWithMin context) {
+            return apply(distribution.get(param1, param2), x);
+        }
+
+        @Override
+        public double fastCall(double x, double param1, double param2, double param3, MathContextWithMin context) {
+            return apply(distribution.get(param1, param2, param3), x);
+        }
+    }
+
+    /**
+     * An aggregate over any number of arguments, computed in a single pass
+     * except for the quantiles. The arguments are read in place and never
+     * modified.
+     */
+    abstract static class Aggregate implements Function {
+
+        private final int minimum;
+
+        /**
+         * @param minimum the minimum number of arguments
+         */
+        Aggregate(int minimum) {
+            this.minimum = minimum;
+        }
+
+        abstract BigDecimal aggregate(BigDecimal[] values, int offset, int count, MathContextWithMin context);
+
+        abstract double fastAggregate(double[] values, int offset, int count, MathContextWithMin context);
+
+        /**
+         * @throws UnsupportedOperationException if there are too few arguments.
+         */
+        final BigDecimal call(BigDecimal[] values, int offset, int count, MathContextWithMin context) {
+            if (count < minimum) {
+                throw new UnsupportedOperationException();
+            }
+            return aggregate(values, offset, count, context);
+        }
+
+        /**
+         * @throws UnsupportedOperationException if there are too few arguments.
+         */
+        final double fastCall(double[] values, int offset, int count, MathContextWithMin context) {
+            if (count < minimum) {
+                throw new UnsupportedOperationException();
+            }
+            return fastAggregate(values, offset, count, context);
+        }
+
+        @Override
+        public BigDecimal call(MathContextWithMin context) {
+            return call(new BigDecimal[0], 0, 0, context);
+        }
+    }
+
+    /**
+     * @return the sum without rounding, as BigDecimal addition is exact.
+     */
+    private static BigDecimal exactSum(BigDecimal[] values, int offset, int count) {
+        BigDecimal sum = BigDecimal.ZERO;
+        for (int i = offset; i < offset + count; i++) {
+            sum = sum.add(values[i]);
+        }
+        return sum;
+    }
+
+    /**
+     * Neumaier's compensated summation, which carries the low-order bits lost
+     * by each addition and adds them back at the end.
+     */
+    private static double compensatedSum(double[] values, int offset, int count) {
+        double sum = 0;
+        double compensation = 0;
+        for (int i = offset; i < offset + count; i++) {
+            double x = values[i];
+            double t = sum + x;
+            if (Math.abs(sum) >= Math.abs(x)) {
+                compensation += (sum - t) + x;
+            } else {
+                compensation += (x - t) + sum;
+            }
+            sum = t;
+        }
+        return sum + compensation;
+    }
+
+    /**
+     * The sample variance from the exact sums of the values and of their
+     * squares, in one pass. The sums are not rounded, so their difference
+     * cancels nothing.
+     */
+    private static BigDecimal variance(BigDecimal[] values, int offset, int count, MathContext mathContext) {
+        BigDecimal sum = BigDecimal.ZERO;
+        BigDecimal squares = BigDecimal.ZERO;
+        for (int i = offset; i < offset + count; i++) {
+            sum = sum.add(values[i]);
+            squares = squares.add(values[i].multiply(values[i]));
+        }
+        BigDecimal n = BigDecimal.valueOf(count);
+        return n.multiply(squares).subtract(sum.multiply(sum))
+                .divide(n.multiply(BigDecimal.valueOf(count - 1)), mathContext);
+    }
+
+    /**
+     * The sample variance by Welford's online algorithm, which updates the
+     * mean and the sum of squared deviations from it for each value.
+     */
+    private static double variance(double[] values, int offset, int count) {
+        double mean = 0;
+        double deviations = 0;
+        for (int i = 0; i < count; i++) {
+            double x = values[offset + i];
+            double delta = x - mean;
+            mean += delta / (i + 1);
+            deviations += delta * (x - mean);
+        }
+        return deviations / (count - 1);
+    }
+
+    /**
+     * The quantile interpolated between the closest ranks, as R's default
+     * type 7, found by selection in linear expected time on a copy.
+     *
+     * @throws ArithmeticException if p is not between 0 and 1.
+     */
+    private static BigDecimal quantile(BigDecimal[] values, int offset, int count, BigDecimal p,
+                                       MathContext mathContext) {
+        if (p.signum() < 0 || p.compareTo(BigDecimal.ONE) > 0) {
+            throw new ArithmeticException("quantile probability must be between 0 and 1");
+        }
+        BigDecimal[] copy = Arrays.copyOfRange(values, offset, offset + count);
+        BigDecimal h = p.multiply(BigDecimal.valueOf(count - 1));
+        int rank = h.intValue();
+        BigDecimal fraction = h.subtract(BigDecimal.valueOf(rank));
+        BigDecimal low = select(copy, rank);
+        if (fraction.signum() == 0) {
+            return low.round(mathContext);
+        }
+        BigDecimal high = copy[rank + 1];
+        for (int i = rank + 2; i < count; i++) {
+            if (copy[i].compareTo(high) < 0) {
+                high = copy[i];
+            }
+        }
+        return low.add(fraction.multiply(high.subtract(low)), mathContext);
+    }
+
+    private static double quantile(double[] values, int offset, int count, double p) {
+        if (!(p >= 0 && p <= 1)) {
+            throw new ArithmeticException("quantile probability must be between 0 and 1");
+        }
+        double[] copy = Arrays.copyOfRange(values, offset, offset + count);
+        double h = p * (count - 1);
+        int rank = (int) h;
+        double fraction = h - rank;
+        double low = select(copy, rank);
+        if (fraction == 0) {
+            return low;
+        }
+        double high = copy[rank + 1];
+        for (int i = rank + 2; i < count; i++) {
+            high = Math.min(high, copy[i]);
+        }
+        return low + fraction * (high - low);
+    }
+
+    /**
+     * Hoare's quickselect with a median of three pivot: reorder a so that
+     * a[k] is the k-th smallest value, no value before it is greater and no
+     * value after it is smaller.
+     *
+     * @return a[k]
+     */
+    private static BigDecimal select(BigDecimal[] a, int k) {
+        int left = 0;
+        int right = a.length - 1;
+        while (right > left) {
+            int middle = (left + right) >>> 1;
+            if (a[middle].compareTo(a[left]) < 0) {
+                swap(a, left, middle);
+            }
+            if (a[right].compareTo(a[left]) < 0) {
+                swap(a, left, right);
+            }
+            if (a[right].compareTo(a[middle]) < 0) {
+                swap(a, middle, right);
+            }
+            BigDecimal pivot = a[middle];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (a[i].compareTo(pivot) < 0) {
+                    i++;
+                }
+                while (a[j].compareTo(pivot) > 0) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(a, i++, j--);
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                break;
+            }
+        }
+        return a[k];
+    }
+
+    private static double select(double[] a, int k) {
+        int left = 0;
+        int right = a.length - 1;
+        while (right > left) {
+            int middle = (left + right) >>> 1;
+            if (a[middle] < a[left]) {
+                swap(a, left, middle);
+            }
+            if (a[right] < a[left]) {
+                swap(a, left, right);
+            }
+            if (a[right] < a[middle]) {
+                swap(a, middle, right);
+            }
+            double pivot = a[middle];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (a[i] < pivot) {
+                    i++;
+                }
+                while (a[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(a, i++, j--);
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                break;
+            }
+        }
+        return a[k];
+    }
+
+    private static void swap(BigDecimal[] a, int i, int j) {
+        BigDecimal t = a[i];
+        a[i] = a[j];
+        a[j] = t;
+    }
+
+    private static void swap(double[] a, int i, int j) {
+        double t = a[i];
+        a[i] = a[j];
+        a[j] = t;
+    }
+
+    /**
+     * @return the logarithm of x to the base whose natural logarithm is ln,
+     *         computed with guard digits and the shared cached constant.
+     */
+    private static BigDecimal log(BigDecimal x, Constants ln, MathContext mathContext) {
+        MathContext guarded = new MathContext(mathContext.getPrecision() + 4, mathContext.getRoundingMode());
+        return BigDecimalMath.log(x, guarded).divide(ln.get(guarded), guarded).round(mathContext);
+    }
+
+    /**
+     * Account for computing n!, which takes about n multiplications and has
+     * about log10(n!) digits, before big-math starts on it.
+     *
+     * @throws ArithmeticException if the evaluation would be over budget.
+     */
+    private static void chargeFactorial(double n, MathContextWithMin context) {
+        if (n > 1) {
+            context.checkDigits(Gamma.logGamma(n + 1) / LN_10);
+            context.charge(n);
+        }
+    }
+
+    /**
+     * @return x without its fractional part, rounded towards zero.
+     */
+    private static double truncate(double x) {
+        return x < 0 ? Math.ceil(x) : Math.floor(x);
+    }
+
 }
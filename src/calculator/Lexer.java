@@ -0,0 +1,245 @@
+package calculator;
+
+/**
+ * Lexer splits an input line into tokens in a single pass over its
+ * characters, without regular expressions.
+ * <p>
+ * Numbers follow {@code ([1-9]\d*|0)(\.\d*)?|\.\d+}, identifiers follow
+ * {@code [a-zA-Z][a-zA-Z0-9_]*}. Directives are identifiers preceded by
+ * {@code @}, like {@code @prec}. Formulas are bound with {@code :=}.
+ * </p>
+ *
+ * @throws IllegalArgumentException if the input contains illegal characters.
+ */
+final class Lexer {
+
+    enum Token {
+        START, NUMBER, IDENTIFIER, OPERATOR, NOT, OPEN, CLOSE, PERIOD, ASSIGN, BIND, DIRECTIVE, END
+    }
+
+    private final String input;
+    private final int length;
+    private int position;
+    private Token token = Token.START;
+    private Token previous = Token.START;
+    private int start;
+    private int end;
+    private BinaryOperators operator;
+
+    Lexer(String input) {
+        this.input = input;
+        this.length = input.length();
+    }
+
+    /**
+     * Move to the next token.
+     *
+     * @return the type of the new current token
+     */
+    Token next() {
+        previous = token;
+        operator = null;
+        while (position < length && Character.isWhitespace(input.charAt(position))) {
+            position++;
+        }
+        start = position;
+        if (position == length) {
+            end = position;
+            return token = Token.END;
+        }
+        char c = input.charAt(position++);
+        if (isDigit(c) || c == '.' && position < length && isDigit(input.charAt(position))) {
+            while (position < length && isDigit(input.charAt(position))) {
+                position++;
+            }
+            if (c != '.' && position < length && input.charAt(position) == '.') {
+                position++;
+                while (position < length && isDigit(input.charAt(position))) {
+                    position++;
+                }
+            }
+            end = position;
+            return token = Token.NUMBER;
+        }
+        if (isLetter(c)) {
+            while (position < length && isIdentifierPart(input.charAt(position))) {
+                position++;
+            }
+            end = position;
+            return token = Token.IDENTIFIER;
+        }
+        if (c == '@' && position < length && isLetter(input.charAt(position))) {
+            start = position;
+            while (position < length && isIdentifierPart(input.charAt(position))) {
+                position++;
+            }
+            end = position;
+            return token = Token.DIRECTIVE;
+        }
+        char n = position < length ? input.charAt(position) : 0;
+        switch (c) {
+            case '(':
+                token = Token.OPEN;
+                break;
+            case ')':
+                token = Token.CLOSE;
+                break;
+            case ',':
+                token = Token.PERIOD;
+                break;
+            case '|':
+                token = operator(BinaryOperators.OR);
+                break;
+            case '&':
+                token = operator(BinaryOperators.AND);
+                break;
+            case '+':
+                token = n == '=' ? assignment(BinaryOperators.PLUS) : operator(BinaryOperators.PLUS);
+                break;
+            case '-':
+                token = n == '=' ? assignment(BinaryOperators.MINUS) : operator(BinaryOperators.MINUS);
+                break;
+            case '*':
+                token = n == '=' ? assignment(BinaryOperators.MULTIPLY) : operator(BinaryOperators.MULTIPLY);
+                break;
+            case '/':
+                token = n == '=' ? assignment(BinaryOperators.DIVIDE) : operator(BinaryOperators.DIVIDE);
+                break;
+            case '%':
+                token = n == '=' ? assignment(BinaryOperators.REMAINDER) : operator(BinaryOperators.REMAINDER);
+                break;
+            case '^':
+                token = n == '=' ? assignment(BinaryOperators.POWER) : operator(BinaryOperators.POWER);
+                break;
+            case '=':
+                token = n == '=' ? operator(BinaryOperators.EQUAL) : Token.ASSIGN;
+                break;
+            case '!':
+                token = n == '=' ? operator(BinaryOperators.NOT_EQUAL) : Token.NOT;
+                break;
+            case ':':
+                if (n != '=') {
+                    throw new IllegalArgumentException("Invalid expression: illegal operators or input");
+                }
+                position++;
+                token = Token.BIND;
+                break;
+            case '>':
+                token = n == '=' ? operator(BinaryOperators.GREATER_EQUAL) : operator(BinaryOperators.GREATER);
+                break;
+            case '<':
+                token = n == '=' ? operator(BinaryOperators.LESS_EQUAL) : operator(BinaryOperators.LESS);
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid expression: illegal operators or input");
+        }
+        end = position;
+        return token;
+    }
+
+    /**
+     * @return true if the next token is an assignment or a formula binding,
+     *         which does not move the lexer.
+     */
+    boolean isAssignmentAhead() {
+        int i = position;
+        while (i < length && Character.isWhitespace(input.charAt(i))) {
+            i++;
+        }
+        if (i < length && "+-*/%^:".indexOf(input.charAt(i)) >= 0) {
+            i++;
+        } else if (i + 1 < length && input.charAt(i) == '=' && input.charAt(i + 1) == '=') {
+            return false;
+        }
+        return i < length && input.charAt(i) == '=';
+    }
+
+    /**
+     * @return true if a function definition head like {@code (x, y) =}
+     *         follows, which does not move the lexer.
+     */
+    boolean isDefinitionAhead() {
+        int i = skipWhitespace(position);
+        if (i == length || input.charAt(i) != '(') {
+            return false;
+        }
+        i = skipWhitespace(i + 1);
+        if (i < length && input.charAt(i) != ')') {
+            while (true) {
+                if (i == length || !isLetter(input.charAt(i))) {
+                    return false;
+                }
+                while (i < length && isIdentifierPart(input.charAt(i))) {
+                    i++;
+                }
+                i = skipWhitespace(i);
+                if (i == length || input.charAt(i) != ',') {
+                    break;
+                }
+                i = skipWhitespace(i + 1);
+            }
+        }
+        if (i == length || input.charAt(i) != ')') {
+            return false;
+        }
+        i = skipWhitespace(i + 1);
+        return i < length && input.charAt(i) == '=' && (i + 1 == length || input.charAt(i + 1) != '=');
+    }
+
+    Token getToken() {
+        return token;
+    }
+
+    Token getPrevious() {
+        return previous;
+    }
+
+    /**
+     * @return the operator of an OPERATOR token, or of a compound ASSIGN token
+     *         (null for plain assignment).
+     */
+    BinaryOperators getOperator() {
+        return operator;
+    }
+
+    /**
+     * @return the text of the current token, without the {@code @} of a
+     *         directive.
+     */
+    String getText() {
+        return input.substring(start, end);
+    }
+
+    private Token operator(BinaryOperators o) {
+        operator = o;
+        if (o.getName().length() == 2) {
+            position++;
+        }
+        return Token.OPERATOR;
+    }
+
+    private Token assignment(BinaryOperators o) {
+        operator = o;
+        position++;
+        return Token.ASSIGN;
+    }
+
+    private int skipWhitespace(int i) {
+        while (i < length && Character.isWhitespace(input.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLetter(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return isLetter(c) || isDigit(c) || c == '_';
+    }
+}
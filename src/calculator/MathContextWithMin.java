@@ -2,19 +2,129 @@ package calculator;
 
 import java.math.BigDecimal;
 import java.math.MathContext;
+import org.apache.commons.math3.random.RandomGenerator;
 
 /**
  * MathContextWithMin adds a minimum value to the original MathContext.
  * The minimum value represents the smallest positive decimal for the system.
+ * <p>
+ * Results are displayed with one more significant digit than the number of
+ * decimal places of the minimum, so that digits below the minimum, which may
+ * carry rounding errors, are not shown.
+ * </p>
+ * <p>
+ * The context also carries the random streams of the session for the random
+ * functions, and the meter of the {@link EvaluationBudget} of an evaluation.
+ * </p>
  */
 class MathContextWithMin {
 
+    static final int MAX_PRECISION = 10000;
+
     private final MathContext mathContext;
     private final BigDecimal minimum;
+    private final double fastMinimum;
+    private final MathContext displayContext;
+    private final RandomStreams randomStreams;
+    /** Null while evaluations are not metered. */
+    private final EvaluationBudget.Meter meter;
 
-    MathContextWithMin(MathContext mathContext, BigDecimal minimum) {
+    MathContextWithMin(MathContext mathContext, int minimumDigits, RandomStreams randomStreams) {
         this.mathContext = mathContext;
-        this.minimum = minimum;
+        this.randomStreams = randomStreams;
+        this.minimum = BigDecimal.ONE.movePointLeft(minimumDigits);
+        this.fastMinimum = minimum.doubleValue();
+        this.displayContext = new MathContext(minimumDigits + 1, mathContext.getRoundingMode());
+        this.meter = null;
+    }
+
+    private MathContextWithMin(MathContextWithMin context, EvaluationBudget.Meter meter) {
+        this.mathContext = context.mathContext;
+        this.randomStreams = context.randomStreams;
+        this.minimum = context.minimum;
+        this.fastMinimum = context.fastMinimum;
+        this.displayContext = context.displayContext;
+        this.meter = meter;
+    }
+
+    /**
+     * Create a context computing with {@code precision} significant digits.
+     * The minimum scales with the precision the same way as for the default
+     * DECIMAL128 context, which has 34 digits and a minimum of 1e-15.
+     *
+     * @param precision     the number of significant digits
+     * @param randomStreams the random streams of the session
+     * @throws IllegalArgumentException if precision is not between 1 and
+     *                                  {@value #MAX_PRECISION}.
+     */
+    static MathContextWithMin of(int precision, RandomStreams randomStreams) {
+        if (precision < 1 || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException(
+                    String.format("Invalid precision: must be between 1 and %d", MAX_PRECISION));
+        }
+        if (precision == MathContext.DECIMAL128.getPrecision()) {
+            return new MathContextWithMin(MathContext.DECIMAL128, 15, randomStreams);
+        }
+        return new MathContextWithMin(new MathContext(precision), Math.max(1, precision * 15 / 34), randomStreams);
+    }
+
+    /**
+     * @return a context of the same session with another precision.
+     */
+    MathContextWithMin withPrecision(int precision) {
+        return of(precision, randomStreams);
+    }
+
+    /**
+     * @return a copy of this context metering one evaluation against budget,
+     *         or this context if budget is null.
+     */
+    MathContextWithMin withBudget(EvaluationBudget budget) {
+        return budget == null ? this : new MathContextWithMin(this, budget.start());
+    }
+
+    /**
+     * Account for one operation of the evaluation.
+     *
+     * @throws ArithmeticException if the evaluation is over budget.
+     */
+    void checkpoint() {
+        if (meter != null) {
+            meter.charge(1);
+        }
+    }
+
+    /**
+     * Account for the steps an expensive function is about to take.
+     *
+     * @throws ArithmeticException if the evaluation would be over budget.
+     */
+    void charge(double operations) {
+        if (meter != null) {
+            meter.charge(operations);
+        }
+    }
+
+    /**
+     * @param digits the estimated number of integer digits of a result
+     * @throws ArithmeticException if such a result is over budget.
+     */
+    void checkDigits(double digits) {
+        if (meter != null) {
+            meter.checkDigits(digits);
+        }
+    }
+
+    /**
+     * @return value
+     * @throws ArithmeticException if value has more integer digits than the
+     *                             budget allows.
+     */
+    BigDecimal checkResult(BigDecimal value) {
+        if (meter != null) {
+            meter.checkDigits(value.precision() - value.scale());
+        }
+        return value;
     }
 
     public MathContext getMathContext() {
@@ -24,4 +134,30 @@ class MathContextWithMin {
     public BigDecimal getMinimum() {
         return minimum;
     }
+
+    /**
+     * @return the minimum as a double, for double precision evaluation.
+     */
+    public double getFastMinimum() {
+        return fastMinimum;
+    }
+
+    RandomStreams getRandomStreams() {
+        return randomStreams;
+    }
+
+    /**
+     * @return the random number generator of the session for the current
+     *         thread.
+     */
+    public RandomGenerator getRandom() {
+        return randomStreams.current();
+    }
+
+    /**
+     * @return the context results are rounded to for display.
+     */
+    public MathContext getDisplayContext() {
+        return displayContext;
+    }
 }
@@ -0,0 +1,447 @@
+package calculator;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Node is the syntax tree produced by the {@link Parser}. Nodes are immutable
+ * and compare structurally, so identical subexpressions are equal.
+ */
+abstract class Node {
+
+    /** The number of nodes on the longest path from this node to a leaf. */
+    final int depth;
+
+    Node(Node... children) {
+        int depth = 0;
+        for (Node child : children) {
+            depth = Math.max(depth, child.depth);
+        }
+        this.depth = depth + 1;
+    }
+
+    /**
+     * Append the instructions evaluating this node to the program.
+     */
+    abstract void compile(Program.Builder program);
+
+    /**
+     * @return true if the node gives the same result every time it is
+     *         evaluated against the same variables.
+     */
+    abstract boolean isPure();
+
+    static Node negate(Node operand) {
+        if (operand instanceof Literal) {
+            return new Literal(((Literal) operand).value.negate());
+        }
+        if (operand instanceof Negate) {
+            return ((Negate) operand).operand;
+        }
+        return new Negate(operand);
+    }
+
+    static Node not(Node operand) {
+        if (operand instanceof Literal) {
+            return new Literal(((Literal) operand).value.compareTo(BigDecimal.ZERO) == 0 ? BigDecimal.ONE : BigDecimal.ZERO);
+        }
+        return new Not(operand);
+    }
+
+    static final class Literal extends Node {
+
+        final BigDecimal value;
+
+        Literal(BigDecimal value) {
+            this.value = value;
+        }
+
+        @Override
+        void compile(Program.Builder program) {
+            program.constant(value);
+        }
+
+        @Override
+        boolean isPure() {
+            return true;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Literal && value.equals(((Literal) o).value);
+        }
+
+        @Override
+        public int hashCode() {
+            return value.hashCode();
+        }
+    }
+
+    static final class Variable extends Node {
+
+        final String name;
+        final int slot;
+
+        Variable(String name, int slot) {
+            this.name = name;
+            this.slot = slot;
+        }
+
+        @Override
+        void compile(Program.Builder program) {
+            program.load(slot);
+        }
+
+        @Override
+        boolean isPure() {
+            return true;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Variable && slot == ((Variable) o).slot;
+        }
+
+        @Override
+        public int hashCode() {
+            return slot;
+        }
+    }
+
+    /**
+     * A parameter bound for each evaluation, see
+     * {@link CalculatorProcessor#compile(String, String...)}.
+     */
+    static final class Parameter extends Node {
+
+        final String name;
+        final int index;
+
+        Parameter(String name, int index) {
+            this.name = name;
+            this.index = index;
+        }
+
+        @Override
+        void compile(Program.Builder program) {
+            program.loadParam(index);
+        }
+
+        @Override
+        boolean isPure() {
+            return true;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Parameter && index == ((Parameter) o).index;
+        }
+
+        @Override
+        public int hashCode() {
+            return ~index;
+        }
+    }
+
+    static final class Negate extends Node {
+
+        final Node operand;
+
+        Negate(Node operand) {
+            super(operand);
+            this.operand = operand;
+        }
+
+        @Override
+        void compile(Program.Builder program) {
+            operand.compile(program);
+            program.negate();
+        }
+
+        @Override
+        boolean isPure() {
+            return operand.isPure();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Negate && operand.equals(((Negate) o).operand);
+        }
+
+        @Override
+        public int hashCode() {
+            return -operand.hashCode();
+        }
+    }
+
+    static final class Not extends Node {
+
+        final Node operand;
+
+        Not(Node operand) {
+            super(operand);
+            this.operand = operand;
+        }
+
+        @Override
+        void compile(Program.Builder program) {
+            operand.compile(program);
+            program.not();
+        }
+
+        @Override
+        boolean isPure() {
+            return operand.isPure();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Not && operand.equals(((Not) o).operand);
+        }
+
+        @Override
+        public int hashCode() {
+            return ~operand.hashCode();
+        }
+    }
+
+    static final class Binary extends Node {
+
+        final BinaryOperators operator;
+        final Node left;
+        final Node right;
+
+        Binary(BinaryOperators operator, Node left, Node right) {
+            super(left, right);
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        /**
+         * @return true if the right operand is evaluated only when the left
+         *         one does not decide the result.
+         */
+        boolean isShortCircuit() {
+            return operator == BinaryOperators.AND || operator == BinaryOperators.OR;
+        }
+
+        @Override
+        void compile(Program.Builder program) {
+            left.compile(program);
+            if (isShortCircuit()) {
+                int end = program.shortCircuit(operator);
+                right.compile(program);
+                program.truth();
+                program.land(end);
+                return;
+            }
+            right.compile(program);
+            program.binary(operator);
+        }
+
+        @Override
+        boolean isPure() {
+            return left.isPure() && right.isPure();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Binary)) {
+                return false;
+            }
+            Binary b = (Binary) o;
+            return operator == b.operator && left.equals(b.left) && right.equals(b.right);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(operator, left, right);
+        }
+    }
+
+    static final class Call extends Node {
+
+        final Functions function;
+        final Node[] arguments;
+
+        Call(Functions function, Node[] arguments) {
+            super(arguments);
+            this.function = function;
+            this.arguments = arguments;
+        }
+
+        @Override
+        void compile(Program.Builder program) {
+            for (Node argument : arguments) {
+                argument.compile(program);
+            }
+            program.call(function, arguments.length);
+        }
+
+        @Override
+        boolean isPure() {
+            if (!function.isPure()) {
+                return false;
+            }
+            for (Node argument : arguments) {
+                if (!argument.isPure()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Call)) {
+                return false;
+            }
+            Call c = (Call) o;
+            return function == c.function && Arrays.equals(arguments, c.arguments);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * function.hashCode() + Arrays.hashCode(arguments);
+        }
+    }
+
+    /**
+     * {@code if(condition, then, otherwise)}, which evaluates only the branch
+     * the condition selects.
+     */
+    static final class Conditional extends Node {
+
+        final Node condition;
+        final Node then;
+        final Node otherwise;
+
+        Conditional(Node condition, Node then, Node otherwise) {
+            super(condition, then, otherwise);
+            this.condition = condition;
+            this.then = then;
+            this.otherwise = otherwise;
+        }
+
+        @Override
+        void compile(Program.Builder program) {
+            condition.compile(program);
+            int skipThen = program.jumpIfZero();
+            then.compile(program);
+            int end = program.jumpOver();
+            program.land(skipThen);
+            otherwise.compile(program);
+            program.land(end);
+        }
+
+        @Override
+        boolean isPure() {
+            return condition.isPure() && then.isPure() && otherwise.isPure();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Conditional)) {
+                return false;
+            }
+            Conditional c = (Conditional) o;
+            return condition.equals(c.condition) && then.equals(c.then) && otherwise.equals(c.otherwise);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(condition, then, otherwise);
+        }
+    }
+
+    /**
+     * A call of a {@link UserFunction}.
+     */
+    static final class UserCall extends Node {
+
+        final UserFunction function;
+        final Node[] arguments;
+
+        UserCall(UserFunction function, Node[] arguments) {
+            super(arguments);
+            this.function = function;
+            this.arguments = arguments;
+        }
+
+        @Override
+        void compile(Program.Builder program) {
+            for (Node argument : arguments) {
+                argument.compile(program);
+            }
+            program.callUser(function, arguments.length);
+        }
+
+        /**
+         * @return false, as the function may be defined again to call a
+         *         random function after this call is compiled, and programs
+         *         calling it are not compiled again.
+         */
+        @Override
+        boolean isPure() {
+            return false;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof UserCall)) {
+                return false;
+            }
+            UserCall c = (UserCall) o;
+            return function == c.function && Arrays.equals(arguments, c.arguments);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(function) + Arrays.hashCode(arguments);
+        }
+    }
+
+    /**
+     * A pure subexpression occurring several times in a tree. The first
+     * occurrence evaluated computes it and keeps the result in a temporary,
+     * the others load the temporary.
+     */
+    static final class Shared extends Node {
+
+        final Node node;
+        final int temp;
+
+        Shared(Node node, int temp) {
+            super(node);
+            this.node = node;
+            this.temp = temp;
+        }
+
+        @Override
+        void compile(Program.Builder program) {
+            if (program.isStored(temp)) {
+                program.loadTemp(temp);
+            } else {
+                node.compile(program);
+                program.storeTemp(temp);
+            }
+        }
+
+        @Override
+        boolean isPure() {
+            return true;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Shared && node.equals(((Shared) o).node);
+        }
+
+        @Override
+        public int hashCode() {
+            return node.hashCode();
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package calculator;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Optimizer rewrites the syntax tree of a statement before it is compiled.
+ * <ul>
+ * <li>Pure operations on constants are computed once, like
+ * {@code 2 ^ root(8, 3) * cos(0)}.</li>
+ * <li>Identities {@code x * 1, 1 * x, x / 1, x ^ 1, x + 0, 0 + x, x - 0} are
+ * reduced to {@code x}, and {@code 0 - x} to {@code -x}.</li>
+ * <li>{@code 0 & x} is reduced to {@code 0}, {@code 1 | x} to {@code 1}, and
+ * {@code if} with a constant condition to the branch it selects.</li>
+ * <li>Pure operations occurring several times, like {@code exp(-x^2/2)}, are
+ * computed once per evaluation and shared. An operation is shared only if its
+ * first occurrence is always evaluated, not in the right operand of
+ * {@code &} or {@code |} or a branch of {@code if}.</li>
+ * </ul>
+ * Calls of user functions are never computed ahead or shared, as the function
+ * may be defined again. Random functions are never computed ahead or shared.
+ * Constant operations that fail, like {@code 1 / 0}, or are over the
+ * evaluation budget, are left to fail when evaluated.
+ */
+final class Optimizer {
+
+    private final MathContextWithMin context;
+
+    /**
+     * @param context the context constants are computed with
+     */
+    Optimizer(MathContextWithMin context) {
+        this.context = context;
+    }
+
+    Node optimize(Node node) {
+        Node simplified = simplify(node);
+        Map<Node, Integer> occurrences = new HashMap<>();
+        count(simplified, occurrences, false);
+        return share(simplified, occurrences, new HashMap<Node, Node.Shared>(), false);
+    }
+
+    /**
+     * Fold constants and reduce identities bottom up.
+     */
+    private Node simplify(Node node) {
+        if (node instanceof Node.Negate) {
+            return Node.negate(simplify(((Node.Negate) node).operand));
+        }
+        if (node instanceof Node.Not) {
+            return Node.not(simplify(((Node.Not) node).operand));
+        }
+        if (node instanceof Node.Binary) {
+            Node.Binary b = (Node.Binary) node;
+            Node left = simplify(b.left);
+            Node right = simplify(b.right);
+            if (left instanceof Node.Literal && right instanceof Node.Literal) {
+                try {
+                    return new Node.Literal(context.checkResult(b.operator.call(value(left), value(right), context)));
+                } catch (RuntimeException e) {
+                    return new Node.Binary(b.operator, left, right);
+                }
+            }
+            switch (b.operator) {
+                case AND:
+                    if (is(left, BigDecimal.ZERO)) {
+                        return new Node.Literal(BigDecimal.ZERO);
+                    }
+                    break;
+                case OR:
+                    if (left instanceof Node.Literal && !is(left, BigDecimal.ZERO)) {
+                        return new Node.Literal(BigDecimal.ONE);
+                    }
+                    break;
+                case MULTIPLY:
+                    if (is(right, BigDecimal.ONE)) {
+                        return left;
+                    }
+                    if (is(left, BigDecimal.ONE)) {
+                        return right;
+                    }
+                    break;
+                case DIVIDE: case POWER:
+                    if (is(right, BigDecimal.ONE)) {
+                        return left;
+                    }
+                    break;
+                case PLUS:
+                    if (is(right, BigDecimal.ZERO)) {
+                        return left;
+                    }
+                    if (is(left, BigDecimal.ZERO)) {
+                        return right;
+                    }
+                    break;
+                case MINUS:
+                    if (is(right, BigDecimal.ZERO)) {
+                        return left;
+                    }
+                    if (is(left, BigDecimal.ZERO)) {
+                        return Node.negate(right);
+                    }
+                    break;
+                default:
+                    break;
+            }
+            return new Node.Binary(b.operator, left, right);
+        }
+        if (node instanceof Node.Call) {
+            Node.Call c = (Node.Call) node;
+            Node[] arguments = new Node[c.arguments.length];
+            boolean constant = c.function.isPure();
+            for (int i = 0; i < arguments.length; i++) {
+                arguments[i] = simplify(c.arguments[i]);
+                constant &= arguments[i] instanceof Node.Literal;
+            }
+            if (constant) {
+                BigDecimal[] values = new BigDecimal[arguments.length];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = value(arguments[i]);
+                }
+                try {
+                    return new Node.Literal(context.checkResult(c.function.call(values, 0, values.length, context)));
+                } catch (RuntimeException e) {
+                    return new Node.Call(c.function, arguments);
+                }
+            }
+            return new Node.Call(c.function, arguments);
+        }
+        if (node instanceof Node.UserCall) {
+            Node.UserCall c = (Node.UserCall) node;
+            Node[] arguments = new Node[c.arguments.length];
+            for (int i = 0; i < arguments.length; i++) {
+                arguments[i] = simplify(c.arguments[i]);
+            }
+            return new Node.UserCall(c.function, arguments);
+        }
+        if (node instanceof Node.Conditional) {
+            Node.Conditional c = (Node.Conditional) node;
+            Node condition = simplify(c.condition);
+            if (condition instanceof Node.Literal) {
+                return simplify(is(condition, BigDecimal.ZERO) ? c.otherwise : c.then);
+            }
+            return new Node.Conditional(condition, simplify(c.then), simplify(c.otherwise));
+        }
+        return node;
+    }
+
+    /**
+     * Count the occurrences of operations, not descending into repeated ones,
+     * whose operands are counted at their first occurrence already. In code
+     * that may be skipped, only operations already counted are counted again,
+     * since they can load the temporary their first occurrence stored.
+     *
+     * @param conditional true if node is not evaluated every time
+     */
+    private static void count(Node node, Map<Node, Integer> occurrences, boolean conditional) {
+        if (isShareable(node)) {
+            Integer n = occurrences.get(node);
+            if (n != null) {
+                occurrences.put(node, n + 1);
+                return;
+            }
+            if (!conditional) {
+                occurrences.put(node, 1);
+            }
+        }
+        Node[] operands = operands(node);
+        for (int i = 0; i < operands.length; i++) {
+            count(operands[i], occurrences, conditional || isConditional(node, i));
+        }
+    }
+
+    private static Node share(Node node, Map<Node, Integer> occurrences, Map<Node, Node.Shared> shared,
+                              boolean conditional) {
+        if (isShareable(node)) {
+            Node.Shared s = shared.get(node);
+            if (s != null) {
+                return s;
+            }
+            Integer n = occurrences.get(node);
+            if (!conditional && n != null && n > 1) {
+                s = new Node.Shared(rebuild(node, occurrences, shared, false), shared.size());
+                shared.put(node, s);
+                return s;
+            }
+        }
+        return rebuild(node, occurrences, shared, conditional);
+    }
+
+    private static Node rebuild(Node node, Map<Node, Integer> occurrences, Map<Node, Node.Shared> shared,
+                                boolean conditional) {
+        if (node instanceof Node.Negate) {
+            return new Node.Negate(share(((Node.Negate) node).operand, occurrences, shared, conditional));
+        }
+        if (node instanceof Node.Not) {
+            return new Node.Not(share(((Node.Not) node).operand, occurrences, shared, conditional));
+        }
+        if (node instanceof Node.Binary) {
+            Node.Binary b = (Node.Binary) node;
+            return new Node.Binary(b.operator, share(b.left, occurrences, shared, conditional),
+                    share(b.right, occurrences, shared, conditional || b.isShortCircuit()));
+        }
+        if (node instanceof Node.Call) {
+            Node.Call c = (Node.Call) node;
+            Node[] arguments = new Node[c.arguments.length];
+            for (int i = 0; i < arguments.length; i++) {
+                arguments[i] = share(c.arguments[i], occurrences, shared, conditional);
+            }
+            return new Node.Call(c.function, arguments);
+        }
+        if (node instanceof Node.UserCall) {
+            Node.UserCall c = (Node.UserCall) node;
+            Node[] arguments = new Node[c.arguments.length];
+            for (int i = 0; i < arguments.length; i++) {
+                arguments[i] = share(c.arguments[i], occurrences, shared, conditional);
+            }
+            return new Node.UserCall(c.function, arguments);
+        }
+        if (node instanceof Node.Conditional) {
+            Node.Conditional c = (Node.Conditional) node;
+            return new Node.Conditional(share(c.condition, occurrences, shared, conditional),
+                    share(c.then, occurrences, shared, true), share(c.otherwise, occurrences, shared, true));
+        }
+        return node;
+    }
+
+    /**
+     * Only operations are worth a temporary, loading a literal or a variable
+     * costs the same as loading the temporary.
+     */
+    private static boolean isShareable(Node node) {
+        return (node instanceof Node.Binary || node instanceof Node.Call || node instanceof Node.UserCall)
+                && node.isPure();
+    }
+
+    private static Node[] operands(Node node) {
+        if (node instanceof Node.Negate) {
+            return new Node[] {((Node.Negate) node).operand};
+        }
+        if (node instanceof Node.Not) {
+            return new Node[] {((Node.Not) node).operand};
+        }
+        if (node instanceof Node.Binary) {
+            return new Node[] {((Node.Binary) node).left, ((Node.Binary) node).right};
+        }
+        if (node instanceof Node.Call) {
+            return ((Node.Call) node).arguments;
+        }
+        if (node instanceof Node.UserCall) {
+            return ((Node.UserCall) node).arguments;
+        }
+        if (node instanceof Node.Conditional) {
+            Node.Conditional c = (Node.Conditional) node;
+            return new Node[] {c.condition, c.then, c.otherwise};
+        }
+        return new Node[0];
+    }
+
+    /**
+     * @return true if operand index of node is evaluated only for some
+     *         values of the others.
+     */
+    private static boolean isConditional(Node node, int index) {
+        if (node instanceof Node.Binary) {
+            return index == 1 && ((Node.Binary) node).isShortCircuit();
+        }
+        return node instanceof Node.Conditional && index > 0;
+    }
+
+    private static BigDecimal value(Node literal) {
+        return ((Node.Literal) literal).value;
+    }
+
+    private static boolean is(Node node, BigDecimal value) {
+        return node instanceof Node.Literal && value(node).compareTo(value) == 0;
+    }
+}
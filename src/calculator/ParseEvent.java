@@ -0,0 +1,23 @@
+package calculator;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event for parsing and compiling one input line.
+ */
+@Name("calculator.Parse")
+@Label("Parse")
+@Category("Calculator")
+@Description("Parsing and compiling an input line")
+class ParseEvent extends Event {
+
+    @Label("Input")
+    String input;
+
+    @Label("Instructions")
+    int instructions;
+}
@@ -0,0 +1,459 @@
+package calculator;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import calculator.Lexer.Token;
+
+/**
+ * Parser is a precedence-climbing (Pratt) parser driven by the priorities of
+ * {@link BinaryOperators}. It parses one statement, either an expression or
+ * an assignment like {@code a += 2 * b}, into a {@link Node} tree.
+ * <p>
+ * Unary operators {@code !, +, -} bind tighter than any binary operator, and
+ * binary operators of the same priority are left associative.
+ * </p>
+ * <p>
+ * A statement may start with {@code @prec N} to be computed with N significant
+ * digits instead of the session precision. Such a statement reads the
+ * predefined constants {@code e} and {@code pi} at precision N, as long as
+ * they have not been reassigned.
+ * </p>
+ * <p>
+ * Names given as parameters are resolved to parameters before variables.
+ * </p>
+ * <p>
+ * A formula binding like {@code total := a * rate} is an assignment that
+ * records the variables it reads, so it can be computed again when they
+ * change.
+ * </p>
+ * <p>
+ * A definition like {@code f(x, y) = x^2 + sin(y)} parses the body of a user
+ * function, reading its arguments as parameters. The body may call the
+ * function itself.
+ * </p>
+ * <p>
+ * {@code if(condition, then, otherwise)} looks like a call but evaluates only
+ * the branch the condition selects, see {@link Node.Conditional}.
+ * </p>
+ * <p>
+ * Statements nested more than {@link #MAX_NESTING} levels deep in
+ * parentheses, calls and unary operators, or whose tree is more than
+ * {@link #MAX_DEPTH} nodes deep, like a chain of a thousand additions, are
+ * rejected, so that parsing and the passes over the tree cannot overflow the
+ * stack.
+ * </p>
+ *
+ * @throws IllegalArgumentException if the expression is invalid.
+ * @throws PreservedKeywordException if a function name or {@code if} is
+ *                                   assigned.
+ */
+final class Parser {
+
+    /**
+     * The construct a sub-expression is nested in, used to report the token
+     * that ends it.
+     */
+    private enum Group {
+        NONE, PARENTHESIS, FUNCTION
+    }
+
+    /** The maximum nesting of operands in a statement. */
+    static final int MAX_NESTING = 256;
+    /** The maximum depth of the tree of a statement. */
+    static final int MAX_DEPTH = 1000;
+    private static final int LOWEST_PRIORITY = Integer.MIN_VALUE;
+    private static final String IF = "if";
+
+    private final Lexer lexer;
+    private final Variables variables;
+    private List<String> parameters;
+    private final MathContextWithMin sessionContext;
+    private MathContext mathContext;
+    private MathContextWithMin context;
+    private final List<Integer> constantSlots = new ArrayList<>();
+    private final Set<String> dependencies = new LinkedHashSet<>();
+    private final List<UserFunction> functions = new ArrayList<>();
+    private UserFunction definition;
+    private String[] definitionParameters;
+    private String target;
+    private BinaryOperators assignment;
+    private boolean binding;
+    private Node expression;
+    /** The number of operands being parsed, each nested in the previous. */
+    private int nesting;
+
+    /**
+     * @param input          the statement to parse
+     * @param variables      the snapshot names are resolved against
+     * @param sessionContext the session context literals are rounded to,
+     *                       unless the statement overrides the precision
+     */
+    Parser(String input, Variables variables, MathContextWithMin sessionContext) {
+        this(input, variables, sessionContext, new String[0]);
+    }
+
+    /**
+     * @param input          the statement to parse
+     * @param variables      the snapshot names are resolved against
+     * @param sessionContext the session context literals are rounded to,
+     *                       unless the statement overrides the precision
+     * @param parameters     the parameter names, in the order they are bound
+     */
+    Parser(String input, Variables variables, MathContextWithMin sessionContext, String[] parameters) {
+        this.lexer = new Lexer(input);
+        this.variables = variables;
+        this.sessionContext = sessionContext;
+        this.mathContext = sessionContext.getMathContext();
+        this.parameters = Arrays.asList(parameters);
+    }
+
+    void parse() {
+        if (lexer.next() == Token.DIRECTIVE) {
+            parseDirective();
+        }
+        if (lexer.getToken() == Token.IDENTIFIER && lexer.isDefinitionAhead()) {
+            parseDefinition();
+        } else if (lexer.getToken() == Token.IDENTIFIER && lexer.isAssignmentAhead()) {
+            target = lexer.getText();
+            if (isPreserved(target)) {
+                throw new PreservedKeywordException(String.format("%s is preserved", target));
+            }
+            if (variables.function(target) != null) {
+                throw new IllegalArgumentException(String.format("Invalid expression: %s is a function", target));
+            }
+            binding = lexer.next() == Token.BIND;
+            assignment = lexer.getOperator();
+            lexer.next();
+        }
+        expression = parseExpression(LOWEST_PRIORITY);
+        if (lexer.getToken() != Token.END) {
+            throw unexpected(Group.NONE);
+        }
+    }
+
+    /**
+     * @return the context of a {@code @prec} statement, or null if it uses the
+     *         session context.
+     */
+    MathContextWithMin getContext() {
+        return context;
+    }
+
+    /**
+     * @return the slots of the predefined constants read as literals.
+     */
+    int[] getConstantSlots() {
+        int[] slots = new int[constantSlots.size()];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = constantSlots.get(i);
+        }
+        return slots;
+    }
+
+    /**
+     * @return the assigned variable, or null if this is not an assignment.
+     */
+    String getTarget() {
+        return target;
+    }
+
+    /**
+     * @return the operator of a compound assignment, or null.
+     */
+    BinaryOperators getAssignment() {
+        return assignment;
+    }
+
+    /**
+     * @return true if this is a formula binding.
+     */
+    boolean isBinding() {
+        return binding;
+    }
+
+    /**
+     * @return the names of the variables read, in order of appearance.
+     */
+    String[] getDependencies() {
+        return dependencies.toArray(new String[0]);
+    }
+
+    Node getExpression() {
+        return expression;
+    }
+
+    /**
+     * @return the function defined, whose body is the expression, or null if
+     *         this is not a definition.
+     */
+    UserFunction getDefinition() {
+        return definition;
+    }
+
+    /**
+     * @return the parameters of the function defined.
+     */
+    String[] getDefinitionParameters() {
+        return definitionParameters;
+    }
+
+    /**
+     * @return the user functions called, besides the one defined.
+     */
+    UserFunction[] getFunctions() {
+        return functions.toArray(new UserFunction[0]);
+    }
+
+    /**
+     * @return true if name is a built-in function or {@code if}, which cannot
+     *         name variables, parameters or user functions.
+     */
+    static boolean isPreserved(String name) {
+        return Functions.isFunctionName(name) || IF.equals(name);
+    }
+
+    /**
+     * Parse the head of a definition up to the body, which the lexer
+     * ensured is well-formed.
+     */
+    private void parseDefinition() {
+        String name = lexer.getText();
+        if (isPreserved(name)) {
+            throw new PreservedKeywordException(String.format("%s is preserved", name));
+        }
+        if (variables.contains(name)) {
+            throw new IllegalArgumentException(String.format("Invalid expression: %s is a variable", name));
+        }
+        List<String> names = new ArrayList<>();
+        lexer.next();
+        while (lexer.next() == Token.IDENTIFIER) {
+            String parameter = lexer.getText();
+            if (isPreserved(parameter)) {
+                throw new PreservedKeywordException(String.format("%s is preserved", parameter));
+            }
+            if (names.contains(parameter)) {
+                throw new IllegalArgumentException(String.format("Invalid parameter name %s", parameter));
+            }
+            names.add(parameter);
+            if (lexer.next() != Token.PERIOD) {
+                break;
+            }
+        }
+        lexer.next();
+        lexer.next();
+        parameters = names;
+        definitionParameters = names.toArray(new String[0]);
+        definition = variables.function(name);
+        if (definition == null) {
+            definition = new UserFunction(name);
+        }
+    }
+
+    private void parseDirective() {
+        if (!"prec".equals(lexer.getText())) {
+            throw new IllegalArgumentException(String.format("Invalid expression: unknown directive @%s", lexer.getText()));
+        }
+        if (lexer.next() != Token.NUMBER || lexer.getText().indexOf('.') >= 0) {
+            throw new IllegalArgumentException("Invalid expression: @prec requires a number of digits");
+        }
+        int precision;
+        try {
+            precision = Integer.parseInt(lexer.getText());
+        } catch (NumberFormatException e) {
+            precision = Integer.MAX_VALUE;
+        }
+        context = sessionContext.withPrecision(precision);
+        mathContext = context.getMathContext();
+        lexer.next();
+    }
+
+    private Node parseExpression(int minimumPriority) {
+        Node left = parseOperand();
+        while (lexer.getToken() == Token.OPERATOR && lexer.getOperator().getPriority() >= minimumPriority) {
+            BinaryOperators o = lexer.getOperator();
+            lexer.next();
+            left = checkDepth(new Node.Binary(o, left, parseExpression(o.getPriority() + 1)));
+        }
+        return left;
+    }
+
+    private Node parseOperand() {
+        if (++nesting > MAX_NESTING) {
+            throw new IllegalArgumentException(
+                    String.format("Invalid expression: nested more than %d levels deep", MAX_NESTING));
+        }
+        try {
+            return checkDepth(parsePrimary());
+        } finally {
+            nesting--;
+        }
+    }
+
+    private Node parsePrimary() {
+        switch (lexer.getToken()) {
+            case NOT:
+                lexer.next();
+                return Node.not(parseOperand());
+            case OPERATOR:
+                BinaryOperators o = lexer.getOperator();
+                if (o == BinaryOperators.PLUS) {
+                    lexer.next();
+                    return parseOperand();
+                }
+                if (o == BinaryOperators.MINUS) {
+                    lexer.next();
+                    return Node.negate(parseOperand());
+                }
+                throw new IllegalArgumentException(String.format("Invalid expression: no operand preceding %s", o.getName()));
+            case NUMBER:
+                Node literal = new Node.Literal(new BigDecimal(lexer.getText(), mathContext));
+                lexer.next();
+                return literal;
+            case IDENTIFIER:
+                String name = lexer.getText();
+                if (IF.equals(name)) {
+                    Node[] arguments = parseArguments(name);
+                    if (arguments.length != 3) {
+                        throw new IllegalArgumentException("Invalid expression: invalid number of parameters");
+                    }
+                    return new Node.Conditional(arguments[0], arguments[1], arguments[2]);
+                }
+                Functions f = Functions.of(name);
+                if (f != null) {
+                    return new Node.Call(f, parseArguments(name));
+                }
+                UserFunction u = definition != null && definition.getName().equals(name)
+                        ? definition : variables.function(name);
+                if (u != null) {
+                    Node[] arguments = parseArguments(name);
+                    UserFunction.Definition d = u.getDefinition();
+                    int count = u == definition ? definitionParameters.length : d.parameters.length;
+                    if (arguments.length != count) {
+                        throw new IllegalArgumentException("Invalid expression: invalid number of parameters");
+                    }
+                    if (u != definition && !functions.contains(u)) {
+                        functions.add(u);
+                    }
+                    return new Node.UserCall(u, arguments);
+                }
+                int index = parameters.indexOf(name);
+                if (index >= 0) {
+                    lexer.next();
+                    return new Node.Parameter(name, index);
+                }
+                int slot = variables.slotOf(name);
+                if (slot < 0) {
+                    throw new IllegalArgumentException(String.format("Invalid expression: unknown variable %s", name));
+                }
+                lexer.next();
+                Constants constant = variables.predefined(slot);
+                if (context != null && constant != null) {
+                    constantSlots.add(slot);
+                    return new Node.Literal(constant.get(mathContext));
+                }
+                dependencies.add(name);
+                return new Node.Variable(name, slot);
+            case OPEN:
+                lexer.next();
+                Node inner = parseExpression(LOWEST_PRIORITY);
+                if (lexer.getToken() != Token.CLOSE) {
+                    throw unexpected(Group.PARENTHESIS);
+                }
+                lexer.next();
+                return inner;
+            case CLOSE:
+                throw new IllegalArgumentException("Invalid expression: incomplete expression");
+            case PERIOD:
+                throw new IllegalArgumentException("Invalid Expression: invalid period ',' position");
+            case END:
+                switch (lexer.getPrevious()) {
+                    case START: case ASSIGN: case BIND:
+                        throw new IllegalArgumentException("Invalid expression: empty expression");
+                    case OPERATOR:
+                        throw new IllegalArgumentException("Invalid expression: fail to evaluate operator");
+                    case OPEN: case PERIOD:
+                        throw new IllegalArgumentException("Invalid expression: cannot find matching right parenthesis - missing )?");
+                    default:
+                        throw new IllegalArgumentException("Invalid expression: error");
+                }
+            default:
+                throw new IllegalArgumentException("Invalid expression: illegal operators or input");
+        }
+    }
+
+    /**
+     * @return the arguments of a call of the function named name.
+     */
+    private Node[] parseArguments(String name) {
+        switch (lexer.next()) {
+            case OPEN:
+                break;
+            case OPERATOR: case NOT:
+                throw new IllegalArgumentException("Invalid expression: invalid function call");
+            case IDENTIFIER:
+                throw new IllegalArgumentException("Invalid expression: misplaced function or variable name");
+            case CLOSE:
+                throw new IllegalArgumentException("Invalid expression: incomplete expression");
+            case PERIOD:
+                throw new IllegalArgumentException("Invalid Expression: invalid period ',' position");
+            case ASSIGN: case BIND:
+                throw new IllegalArgumentException("Invalid expression: illegal operators or input");
+            default:
+                throw new IllegalArgumentException(String.format("Invalid expression: missing ( after %s", name));
+        }
+        List<Node> arguments = new ArrayList<>(4);
+        if (lexer.next() != Token.CLOSE) {
+            while (true) {
+                arguments.add(parseExpression(LOWEST_PRIORITY));
+                if (lexer.getToken() == Token.CLOSE) {
+                    break;
+                }
+                if (lexer.getToken() != Token.PERIOD) {
+                    throw unexpected(Group.FUNCTION);
+                }
+                lexer.next();
+            }
+        }
+        lexer.next();
+        return arguments.toArray(new Node[0]);
+    }
+
+    private static Node checkDepth(Node node) {
+        if (node.depth > MAX_DEPTH) {
+            throw new IllegalArgumentException(
+                    String.format("Invalid expression: more than %d nested operations", MAX_DEPTH));
+        }
+        return node;
+    }
+
+    /**
+     * @return the error for a token that cannot follow a complete operand.
+     */
+    private IllegalArgumentException unexpected(Group group) {
+        switch (lexer.getToken()) {
+            case NOT:
+                return new IllegalArgumentException("Invalid expression: misplaced logical_not");
+            case OPEN:
+                return new IllegalArgumentException("Invalid expression: incomplete expression");
+            case IDENTIFIER:
+                return new IllegalArgumentException("Invalid expression: misplaced function or variable name");
+            case CLOSE:
+                return new IllegalArgumentException("Invalid expression: cannot find matching left parenthesis");
+            case PERIOD:
+                return group == Group.PARENTHESIS
+                        ? new IllegalArgumentException("Invalid Expression: period ',' only allowed function")
+                        : new IllegalArgumentException("Invalid Expression: invalid period ',' position");
+            case END:
+                return new IllegalArgumentException("Invalid expression: cannot find matching right parenthesis - missing )?");
+            case ASSIGN: case BIND:
+                return new IllegalArgumentException("Invalid expression: illegal operators or input");
+            default:
+                return new IllegalArgumentException("Invalid expression: error");
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package calculator;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Program is the compiled form of an expression: a compact stream of typed
+ * instructions for the {@link Evaluator}.
+ * <p>
+ * Each instruction is an opcode followed by its operands in {@code code}.
+ * Literals are parsed once into {@code constants}, variables are loaded by
+ * their {@link Variables} slot, and operators and functions are referenced by
+ * ordinal, user functions by their index in {@code functions}. Constants are
+ * also kept as doubles for double precision evaluation. Subexpressions used
+ * several times are kept in temporaries.
+ * </p>
+ * <p>
+ * The right operand of {@code &} and {@code |} and the branches of
+ * {@code if} are jumped over when they are not needed, so an untaken branch
+ * is never evaluated. Jump targets are absolute offsets in {@code code}.
+ * </p>
+ */
+final class Program {
+
+    /** {@code CONSTANT index}: push constants[index]. */
+    static final int CONSTANT = 0;
+    /** {@code LOAD slot}: push the variable in slot. */
+    static final int LOAD = 1;
+    /** {@code NEGATE}: negate the top of the stack. */
+    static final int NEGATE = 2;
+    /** {@code NOT}: logical not of the top of the stack. */
+    static final int NOT = 3;
+    /** {@code BINARY ordinal}: apply a binary operator to the two topmost values. */
+    static final int BINARY = 4;
+    /** {@code CALL ordinal count}: call a function with the count topmost values. */
+    static final int CALL = 5;
+    /** {@code STORE_TEMP index}: copy the top of the stack to temporary index. */
+    static final int STORE_TEMP = 6;
+    /** {@code LOAD_TEMP index}: push temporary index. */
+    static final int LOAD_TEMP = 7;
+    /** {@code LOAD_PARAM index}: push the parameter index. */
+    static final int LOAD_PARAM = 8;
+    /** {@code CALL_USER index count}: call functions[index] with the count topmost values. */
+    static final int CALL_USER = 9;
+    /** {@code JUMP target}: continue at target. */
+    static final int JUMP = 10;
+    /** {@code JUMP_IF_ZERO target}: pop the top of the stack, continue at target if it is zero. */
+    static final int JUMP_IF_ZERO = 11;
+    /** {@code AND_JUMP target}: if the top of the stack is zero, make it 0 and continue at target, else pop it. */
+    static final int AND_JUMP = 12;
+    /** {@code OR_JUMP target}: if the top of the stack is not zero, make it 1 and continue at target, else pop it. */
+    static final int OR_JUMP = 13;
+    /** {@code TRUTH}: make the top of the stack 1 if it is not zero, 0 otherwise. */
+    static final int TRUTH = 14;
+
+    final int[] code;
+    final BigDecimal[] constants;
+    final double[] fastConstants;
+    final UserFunction[] functions;
+    final int maxStack;
+    final int temps;
+    /**
+     * True if the program calls a random function. The user functions it
+     * calls are not included, as they may be defined again.
+     */
+    final boolean random;
+
+    private Program(int[] code, BigDecimal[] constants, UserFunction[] functions, int maxStack, int temps,
+                    boolean random) {
+        this.code = code;
+        this.constants = constants;
+        this.functions = functions;
+        this.fastConstants = new double[constants.length];
+        for (int i = 0; i < constants.length; i++) {
+            fastConstants[i] = constants[i].doubleValue();
+        }
+        this.maxStack = maxStack;
+        this.temps = temps;
+        this.random = random;
+    }
+
+    /**
+     * @return the instruction starting at {@code pc}, like {@code CALL sin 1}.
+     */
+    String describe(int pc) {
+        switch (code[pc]) {
+            case CONSTANT:
+                return "CONSTANT " + constants[code[pc + 1]];
+            case LOAD:
+                return "LOAD " + code[pc + 1];
+            case NEGATE:
+                return "NEGATE";
+            case NOT:
+                return "NOT";
+            case BINARY:
+                return "BINARY " + BinaryOperators.values()[code[pc + 1]].getName();
+            case CALL:
+                return "CALL " + Functions.values()[code[pc + 1]].getName() + " " + code[pc + 2];
+            case STORE_TEMP:
+                return "STORE_TEMP " + code[pc + 1];
+            case LOAD_TEMP:
+                return "LOAD_TEMP " + code[pc + 1];
+            case LOAD_PARAM:
+                return "LOAD_PARAM " + code[pc + 1];
+            case CALL_USER:
+                return "CALL_USER " + functions[code[pc + 1]].getName() + " " + code[pc + 2];
+            case JUMP:
+                return "JUMP " + code[pc + 1];
+            case JUMP_IF_ZERO:
+                return "JUMP_IF_ZERO " + code[pc + 1];
+            case AND_JUMP:
+                return "AND_JUMP " + code[pc + 1];
+            case OR_JUMP:
+                return "OR_JUMP " + code[pc + 1];
+            case TRUTH:
+                return "TRUTH";
+            default:
+                return "UNKNOWN " + code[pc];
+        }
+    }
+
+    /**
+     * @return the number of ints the instruction starting at {@code pc} takes.
+     */
+    int length(int pc) {
+        switch (code[pc]) {
+            case NEGATE: case NOT: case TRUTH:
+                return 1;
+            case CALL: case CALL_USER:
+                return 3;
+            default:
+                return 2;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder listing = new StringBuilder();
+        for (int pc = 0; pc < code.length; pc += length(pc)) {
+            if (pc > 0) {
+                listing.append("; ");
+            }
+            listing.append(describe(pc));
+        }
+        return listing.toString();
+    }
+
+    /**
+     * Builder appends instructions and tracks the stack depth they need.
+     */
+    static final class Builder {
+
+        private int[] code = new int[16];
+        private int length;
+        private final List<BigDecimal> constants = new ArrayList<>();
+        private final List<UserFunction> functions = new ArrayList<>();
+        private int depth;
+        private int maxStack;
+        private boolean[] stored = new boolean[0];
+        private boolean random;
+
+        void constant(BigDecimal value) {
+            emit(CONSTANT, constants.size());
+            constants.add(value);
+            push(1);
+        }
+
+        void load(int slot) {
+            emit(LOAD, slot);
+            push(1);
+        }
+
+        void loadParam(int index) {
+            emit(LOAD_PARAM, index);
+            push(1);
+        }
+
+        void negate() {
+            emit(NEGATE);
+        }
+
+        void not() {
+            emit(NOT);
+        }
+
+        void binary(BinaryOperators o) {
+            emit(BINARY, o.ordinal());
+            depth--;
+        }
+
+        void call(Functions f, int count) {
+            emit(CALL, f.ordinal(), count);
+            random |= !f.isPure();
+            depth -= count;
+            push(1);
+        }
+
+        void callUser(UserFunction f, int count) {
+            int index = functions.indexOf(f);
+            if (index < 0) {
+                index = functions.size();
+                functions.add(f);
+            }
+            emit(CALL_USER, index, count);
+            depth -= count;
+            push(1);
+        }
+
+        void truth() {
+            emit(TRUTH);
+        }
+
+        /**
+         * Emit the jump over the second operand of {@code &} or {@code |},
+         * which leaves either the result or the second operand on the stack.
+         *
+         * @return the position of the target, see {@link #land(int)}.
+         */
+        int shortCircuit(BinaryOperators o) {
+            emit(o == BinaryOperators.AND ? AND_JUMP : OR_JUMP, -1);
+            depth--;
+            return length - 1;
+        }
+
+        /**
+         * Emit the jump over the first branch of {@code if}, which pops the
+         * condition.
+         *
+         * @return the position of the target, see {@link #land(int)}.
+         */
+        int jumpIfZero() {
+            emit(JUMP_IF_ZERO, -1);
+            depth--;
+            return length - 1;
+        }
+
+        /**
+         * Emit the jump at the end of the first branch of {@code if} over
+         * the second one. The result of the first branch is on the stack at
+         * the target, where the second branch leaves its own result.
+         *
+         * @return the position of the target, see {@link #land(int)}.
+         */
+        int jumpOver() {
+            emit(JUMP, -1);
+            depth--;
+            return length - 1;
+        }
+
+        /**
+         * Point a jump emitted before to the next instruction.
+         */
+        void land(int target) {
+            code[target] = length;
+        }
+
+        void storeTemp(int temp) {
+            emit(STORE_TEMP, temp);
+            if (temp >= stored.length) {
+                stored = Arrays.copyOf(stored, temp + 1);
+            }
+            stored[temp] = true;
+        }
+
+        void loadTemp(int temp) {
+            emit(LOAD_TEMP, temp);
+            push(1);
+        }
+
+        /**
+         * @return true if a STORE_TEMP for temp has been emitted.
+         */
+        boolean isStored(int temp) {
+            return temp < stored.length && stored[temp];
+        }
+
+        Program build() {
+            return new Program(Arrays.copyOf(code, length), constants.toArray(new BigDecimal[0]),
+                    functions.toArray(new UserFunction[0]), maxStack, stored.length, random);
+        }
+
+        private void push(int n) {
+            depth += n;
+            if (depth > maxStack) {
+                maxStack = depth;
+            }
+        }
+
+        private void emit(int... instruction) {
+            if (length + instruction.length > code.length) {
+                code = Arrays.copyOf(code, Math.max(code.length * 2, length + instruction.length));
+            }
+            System.arraycopy(instruction, 0, code, length, instruction.length);
+            length += instruction.length;
+        }
+    }
+}
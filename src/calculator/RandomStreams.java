@@ -0,0 +1,106 @@
+package calculator;
+
+import java.util.SplittableRandom;
+import org.apache.commons.math3.random.AbstractRandomGenerator;
+import org.apache.commons.math3.random.RandomGenerator;
+
+/**
+ * RandomStreams gives every thread of a session its own random number
+ * generator, split from one root generator, so random functions neither race
+ * nor contend on a shared generator.
+ * <p>
+ * Streams are split from the root in the order threads first use them after
+ * {@link #seed(long)}, so a seeded session evaluated by one thread is
+ * reproducible.
+ * </p>
+ */
+final class RandomStreams {
+
+    private SplittableRandom root = new SplittableRandom();
+    /** Read by every call, written under the lock. */
+    private volatile int generation;
+    private final ThreadLocal<Stream> streams = new ThreadLocal<>();
+
+    /**
+     * @return the random number generator of the current thread.
+     */
+    RandomGenerator current() {
+        Stream stream = streams.get();
+        if (stream == null || stream.generation != generation) {
+            stream = split();
+            streams.set(stream);
+        }
+        return stream.generator;
+    }
+
+    /**
+     * Restart all streams from a seed. Every thread splits a new stream at
+     * its next use.
+     */
+    synchronized void seed(long seed) {
+        root = new SplittableRandom(seed);
+        generation++;
+    }
+
+    private synchronized Stream split() {
+        return new Stream(new SplittableGenerator(root.split()), generation);
+    }
+
+    private static final class Stream {
+
+        final RandomGenerator generator;
+        final int generation;
+
+        Stream(RandomGenerator generator, int generation) {
+            this.generator = generator;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Adapt a {@code SplittableRandom} to the generator interface of the
+     * commons-math distributions.
+     */
+    private static final class SplittableGenerator extends AbstractRandomGenerator {
+
+        private SplittableRandom random;
+
+        SplittableGenerator(SplittableRandom random) {
+            this.random = random;
+        }
+
+        @Override
+        public void setSeed(long seed) {
+            random = new SplittableRandom(seed);
+            clear();
+        }
+
+        @Override
+        public double nextDouble() {
+            return random.nextDouble();
+        }
+
+        @Override
+        public int nextInt() {
+            return random.nextInt();
+        }
+
+        @Override
+        public int nextInt(int n) {
+            if (n <= 0) {
+                throw new IllegalArgumentException("n must be positive");
+            }
+            return random.nextInt(n);
+        }
+
+        @Override
+        public long nextLong() {
+            return random.nextLong();
+        }
+
+        @Override
+        public boolean nextBoolean() {
+            return random.nextBoolean();
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package calculator;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * SessionSnapshot is the saved state of a session: the precision, the
+ * variables, the user functions, the formula bindings and the input history.
+ * <p>
+ * The file is binary. Values are stored as the bytes of their unscaled value
+ * and their scale, so they are restored exactly without formatting or
+ * parsing, together with the double used by fast evaluation, which is costly
+ * to compute from them. Functions and formulas are stored as their input and
+ * compiled again when loaded. Files are read through a memory mapping, and
+ * every variable costs one pass over its own bytes.
+ * </p>
+ * <pre>
+ * int magic, int version, int precision
+ * int count, count times: string name, byte constant, int scale, int length, length bytes unscaled value,
+ *     double value
+ * int count, count times: string name, int count, count times string parameter, string input
+ * int count, count times: string formula input
+ * int count, count times: string history entry
+ * </pre>
+ * Strings are an int length followed by that many bytes of UTF-8, constant is
+ * the ordinal of the predefined {@link Constants} the variable holds, or -1.
+ */
+final class SessionSnapshot {
+
+    /** "CALC" */
+    private static final int MAGIC = 0x43414c43;
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final Constants[] CONSTANTS = Constants.values();
+    /** The smallest encoding of a string: its length. */
+    private static final int STRING_BYTES = 4;
+    /** The smallest encoding of a variable: name, constant, scale, digits, double. */
+    private static final int VARIABLE_BYTES = STRING_BYTES + 1 + 4 + 4 + 8;
+    /** The smallest encoding of a function: name, parameter count, input. */
+    private static final int FUNCTION_BYTES = STRING_BYTES + 4 + STRING_BYTES;
+
+    final int precision;
+    final String[] names;
+    final BigDecimal[] values;
+    final double[] fastValues;
+    final Constants[] predefined;
+    final List<Declaration> functions;
+    final List<String> formulas;
+    final List<String> history;
+
+    SessionSnapshot(int precision, String[] names, BigDecimal[] values, double[] fastValues,
+                    Constants[] predefined, List<Declaration> functions, List<String> formulas,
+                    List<String> history) {
+        this.precision = precision;
+        this.names = names;
+        this.values = values;
+        this.fastValues = fastValues;
+        this.predefined = predefined;
+        this.functions = functions;
+        this.formulas = formulas;
+        this.history = history;
+    }
+
+    /**
+     * @return the snapshot of variables, with the functions they hold.
+     */
+    static SessionSnapshot of(int precision, Variables variables, List<String> formulas, List<String> history) {
+        String[] slots = variables.names();
+        int count = 0;
+        for (String name : slots) {
+            if (name != null) {
+                count++;
+            }
+        }
+        String[] names = new String[count];
+        BigDecimal[] values = new BigDecimal[count];
+        double[] fastValues = new double[count];
+        Constants[] predefined = new Constants[count];
+        int i = 0;
+        for (int slot = 0; slot < slots.length; slot++) {
+            if (slots[slot] != null) {
+                names[i] = slots[slot];
+                values[i] = variables.value(slot);
+                fastValues[i] = variables.fastValue(slot);
+                predefined[i] = variables.predefined(slot);
+                i++;
+            }
+        }
+        Collection<UserFunction> defined = variables.functions();
+        List<Declaration> functions = new ArrayList<>(defined.size());
+        for (UserFunction function : defined) {
+            UserFunction.Definition definition = function.getDefinition();
+            if (definition != null) {
+                functions.add(new Declaration(function.getName(), definition.parameters, definition.input));
+            }
+        }
+        return new SessionSnapshot(precision, names, values, fastValues, predefined,
+                functions, formulas, history);
+    }
+
+    void write(Path file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(precision);
+            out.writeInt(names.length);
+            for (int slot = 0; slot < names.length; slot++) {
+                writeString(out, names[slot]);
+                out.writeByte(predefined[slot] == null ? -1 : predefined[slot].ordinal());
+                out.writeInt(values[slot].scale());
+                byte[] unscaled = values[slot].unscaledValue().toByteArray();
+                out.writeInt(unscaled.length);
+                out.write(unscaled);
+                out.writeDouble(fastValues[slot]);
+            }
+            out.writeInt(functions.size());
+            for (Declaration function : functions) {
+                writeString(out, function.name);
+                out.writeInt(function.parameters.length);
+                for (String parameter : function.parameters) {
+                    writeString(out, parameter);
+                }
+                writeString(out, function.input);
+            }
+            writeStrings(out, formulas);
+            writeStrings(out, history);
+        }
+    }
+
+    /**
+     * @throws IOException if the file cannot be read or is not a session
+     *                     file.
+     */
+    static SessionSnapshot read(Path file) throws IOException {
+        ByteBuffer in;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            if (in.getInt() != MAGIC) {
+                throw new IOException(String.format("%s is not a session file", file));
+            }
+            if (in.getInt() != VERSION) {
+                throw new IOException(String.format("%s is from another version", file));
+            }
+            int precision = in.getInt();
+            int count = readCount(in, VARIABLE_BYTES);
+            String[] names = new String[count];
+            BigDecimal[] values = new BigDecimal[count];
+            double[] fastValues = new double[count];
+            Constants[] predefined = new Constants[count];
+            for (int slot = 0; slot < count; slot++) {
+                names[slot] = readString(in);
+                int constant = in.get();
+                predefined[slot] = constant < 0 ? null : CONSTANTS[constant];
+                int scale = in.getInt();
+                byte[] unscaled = new byte[readCount(in, 1)];
+                in.get(unscaled);
+                values[slot] = new BigDecimal(new BigInteger(unscaled), scale);
+                fastValues[slot] = in.getDouble();
+            }
+            count = readCount(in, FUNCTION_BYTES);
+            List<Declaration> functions = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String name = readString(in);
+                String[] parameters = new String[readCount(in, STRING_BYTES)];
+                for (int j = 0; j < parameters.length; j++) {
+                    parameters[j] = readString(in);
+                }
+                functions.add(new Declaration(name, parameters, readString(in)));
+            }
+            List<String> formulas = readStrings(in);
+            List<String> history = readStrings(in);
+            return new SessionSnapshot(precision, names, values, fastValues, predefined, functions, formulas,
+                    history);
+        } catch (RuntimeException e) {
+            throw new IOException(String.format("%s is not a valid session file", file), e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+        out.writeInt(strings.size());
+        for (String s : strings) {
+            writeString(out, s);
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[readCount(in, 1)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static List<String> readStrings(ByteBuffer in) {
+        int count = readCount(in, STRING_BYTES);
+        List<String> strings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            strings.add(readString(in));
+        }
+        return strings;
+    }
+
+    /**
+     * Read the number of entries that follow, each taking at least
+     * minimumBytes, so that a corrupt count cannot allocate more than the
+     * file holds.
+     *
+     * @throws IllegalArgumentException if the count is negative or the
+     *                                  entries cannot fit in the rest of the
+     *                                  file.
+     */
+    private static int readCount(ByteBuffer in, int minimumBytes) {
+        int count = in.getInt();
+        if (count < 0 || count > in.remaining() / minimumBytes) {
+            throw new IllegalArgumentException(String.format("invalid count %d", count));
+        }
+        return count;
+    }
+
+    /**
+     * A user function as saved: its name, its parameters, and the input
+     * defining it.
+     */
+    static final class Declaration {
+
+        final String name;
+        final String[] parameters;
+        final String input;
+
+        Declaration(String name, String[] parameters, String input) {
+            this.name = name;
+            this.parameters = parameters;
+            this.input = input;
+        }
+    }
+}
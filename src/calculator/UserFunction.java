@@ -0,0 +1,71 @@
+package calculator;
+
+/**
+ * UserFunction is a function defined in a session, like
+ * {@code f(x, y) = x^2 + sin(y)}. Its body is parsed and compiled once into a
+ * {@link Program} reading its arguments as parameters, and calls run that
+ * program directly.
+ * <p>
+ * A name keeps the same UserFunction when defined again, and only its
+ * {@link Definition} is replaced, so every caller, including the bodies of
+ * other functions, calls the latest definition. A function may call itself,
+ * up to {@link #MAX_DEPTH} nested calls.
+ * </p>
+ */
+final class UserFunction {
+
+    /** The maximum number of nested user function calls. */
+    static final int MAX_DEPTH = 256;
+
+    private final String name;
+    private volatile Definition definition;
+
+    UserFunction(String name) {
+        this.name = name;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * @return the current definition, or null while the first one is being
+     *         compiled.
+     */
+    Definition getDefinition() {
+        return definition;
+    }
+
+    void define(Definition definition) {
+        this.definition = definition;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * The parameters and compiled body of one definition, the input it was
+     * compiled from, and what the body reads.
+     */
+    static final class Definition {
+
+        final String input;
+        final String[] parameters;
+        final Program body;
+        /** The names of the variables the body reads. */
+        final String[] dependencies;
+        /** The user functions the body calls, besides this one. */
+        final UserFunction[] functions;
+
+        Definition(String input, String[] parameters, Program body, String[] dependencies,
+                   UserFunction[] functions) {
+            this.input = input;
+            this.parameters = parameters;
+            this.body = body;
+            this.dependencies = dependencies;
+            this.functions = functions;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package calculator;
+
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * VariableStore holds the current {@link Variables} snapshot of a session.
+ * <p>
+ * Readers take the current snapshot without locking. Writers build a new
+ * snapshot and publish it with compare-and-set, retrying if another writer
+ * published first, so every update is atomic and no update is lost. Writes
+ * happen-before the reads of any snapshot containing them.
+ * </p>
+ */
+final class VariableStore {
+
+    private final AtomicReference<Variables> current = new AtomicReference<>(Variables.empty());
+
+    Variables snapshot() {
+        return current.get();
+    }
+
+    /**
+     * Replace all variables and functions by those of a snapshot.
+     */
+    void replace(Variables variables) {
+        current.set(variables);
+    }
+
+    void put(String name, BigDecimal value) {
+        Variables variables;
+        do {
+            variables = current.get();
+        } while (!current.compareAndSet(variables, variables.with(name, value)));
+    }
+
+    void putPredefined(Constants constant, BigDecimal value) {
+        Variables variables;
+        do {
+            variables = current.get();
+        } while (!current.compareAndSet(variables, variables.withPredefined(constant, value)));
+    }
+
+    /**
+     * Install a definition of a user function, adding the function if it is
+     * not defined yet.
+     *
+     * @throws IllegalArgumentException if a variable has its name.
+     */
+    void define(UserFunction function, UserFunction.Definition definition) {
+        Variables variables;
+        do {
+            variables = current.get();
+            if (variables.contains(function.getName())) {
+                throw new IllegalArgumentException(
+                        String.format("Invalid expression: %s is a variable", function.getName()));
+            }
+            function.define(definition);
+            if (variables.function(function.getName()) == function) {
+                return;
+            }
+        } while (!current.compareAndSet(variables, variables.withFunction(function)));
+    }
+
+    /**
+     * Set the variable of a predefined constant to value, unless it has been
+     * reassigned.
+     */
+    void resetPredefined(Constants constant, BigDecimal value) {
+        Variables variables;
+        do {
+            variables = current.get();
+            int slot = variables.slotOf(constant.getVariableName());
+            if (slot < 0 || variables.predefined(slot) != constant) {
+                return;
+            }
+        } while (!current.compareAndSet(variables, variables.withPredefined(constant, value)));
+    }
+
+    /**
+     * Atomically replace a variable by {@code operator.call(variable, right)}.
+     *
+     * @return the new value
+     * @throws IllegalArgumentException if the variable is not defined.
+     */
+    BigDecimal update(String name, BinaryOperators operator, BigDecimal right, MathContextWithMin context) {
+        Variables variables;
+        BigDecimal value;
+        do {
+            variables = current.get();
+            if (!variables.contains(name)) {
+                throw new IllegalArgumentException(String.format("Invalid expression: unknown variable %s", name));
+            }
+            value = operator.call(variables.get(name), right, context);
+        } while (!current.compareAndSet(variables, variables.with(name, value)));
+        return value;
+    }
+}
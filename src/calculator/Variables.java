@@ -0,0 +1,258 @@
+package calculator;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Variables is an immutable snapshot of a variable table. Every variable name
+ * is given a slot index the first time it is assigned, and keeps that slot in
+ * all later snapshots, so compiled programs can load variables by index.
+ * <p>
+ * The values are kept in chunks of {@link #CHUNK_SIZE} slots, which programs
+ * index with {@code values[slot >>> CHUNK_BITS][slot & CHUNK_MASK]}. An
+ * assignment copies only the chunk of its slot and the array of chunks, and
+ * the snapshots of a session share one directory of slots, which only grows,
+ * so that assignments stay cheap however many variables there are. A name is
+ * defined in a snapshot if its slot holds a value there.
+ * </p>
+ * <p>
+ * Variables holding a predefined {@link Constants} remember it until they are
+ * reassigned.
+ * </p>
+ * <p>
+ * The snapshot also holds the {@link UserFunction}s defined in the session,
+ * which share the namespace of the variables.
+ * </p>
+ * <p>
+ * Snapshots are never modified once created and can be read by any number of
+ * threads without locking. {@link VariableStore} publishes new snapshots.
+ * </p>
+ */
+final class Variables {
+
+    static final int CHUNK_BITS = 6;
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final Directory slots;
+    /** One more than the highest slot holding a value. */
+    private final int size;
+    private final BigDecimal[][] values;
+    private final double[][] fastValues;
+    private final Constants[][] predefined;
+    private final Map<String, UserFunction> functions;
+
+    private Variables(Directory slots, int size, BigDecimal[][] values, double[][] fastValues,
+                      Constants[][] predefined, Map<String, UserFunction> functions) {
+        this.slots = slots;
+        this.size = size;
+        this.values = values;
+        this.fastValues = fastValues;
+        this.predefined = predefined;
+        this.functions = functions;
+    }
+
+    /**
+     * @return a snapshot without variables or functions, starting a directory
+     *         of slots of its own.
+     */
+    static Variables empty() {
+        return new Variables(new Directory(), 0, new BigDecimal[0][], new double[0][], new Constants[0][],
+                Collections.<String, UserFunction>emptyMap());
+    }
+
+    /**
+     * @param names      the variable names indexed by slot
+     * @param values     the values indexed by slot
+     * @param fastValues the values as doubles indexed by slot
+     * @param predefined the constant each variable holds, or null, indexed by
+     *                   slot
+     * @return a snapshot of those variables without user functions.
+     */
+    static Variables of(String[] names, BigDecimal[] values, double[] fastValues, Constants[] predefined) {
+        Directory slots = new Directory();
+        int chunks = (names.length + CHUNK_MASK) >>> CHUNK_BITS;
+        BigDecimal[][] chunkedValues = new BigDecimal[chunks][CHUNK_SIZE];
+        double[][] chunkedFastValues = new double[chunks][CHUNK_SIZE];
+        Constants[][] chunkedPredefined = new Constants[chunks][CHUNK_SIZE];
+        for (int slot = 0; slot < names.length; slot++) {
+            slots.slotOf(names[slot], true);
+            chunkedValues[slot >>> CHUNK_BITS][slot & CHUNK_MASK] = values[slot];
+            chunkedFastValues[slot >>> CHUNK_BITS][slot & CHUNK_MASK] = fastValues[slot];
+            chunkedPredefined[slot >>> CHUNK_BITS][slot & CHUNK_MASK] = predefined[slot];
+        }
+        return new Variables(slots, names.length, chunkedValues, chunkedFastValues, chunkedPredefined,
+                Collections.<String, UserFunction>emptyMap());
+    }
+
+    /**
+     * @return the number of slots, some of which may be empty.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the variable names indexed by slot, null for the empty slots.
+     */
+    String[] names() {
+        String[] names = new String[size];
+        for (Map.Entry<String, Integer> slot : slots.entrySet()) {
+            int index = slot.getValue();
+            if (index < size && value(index) != null) {
+                names[index] = slot.getKey();
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return the user functions defined.
+     */
+    Collection<UserFunction> functions() {
+        return functions.values();
+    }
+
+    /**
+     * @return the slot of the variable, or -1 if it is not defined.
+     */
+    int slotOf(String name) {
+        int slot = slots.slotOf(name, false);
+        return slot >= 0 && value(slot) != null ? slot : -1;
+    }
+
+    boolean contains(String name) {
+        return slotOf(name) >= 0;
+    }
+
+    BigDecimal get(String name) {
+        int slot = slots.slotOf(name, false);
+        return slot < 0 ? null : value(slot);
+    }
+
+    /**
+     * @return the value in slot, or null if it is empty.
+     */
+    BigDecimal value(int slot) {
+        int chunk = slot >>> CHUNK_BITS;
+        return chunk < values.length ? values[chunk][slot & CHUNK_MASK] : null;
+    }
+
+    /**
+     * @return the value in slot as a double.
+     */
+    double fastValue(int slot) {
+        return fastValues[slot >>> CHUNK_BITS][slot & CHUNK_MASK];
+    }
+
+    /**
+     * @return the constant the variable in slot holds, or null if it has been
+     *         assigned by the user.
+     */
+    Constants predefined(int slot) {
+        int chunk = slot >>> CHUNK_BITS;
+        return chunk < predefined.length ? predefined[chunk][slot & CHUNK_MASK] : null;
+    }
+
+    /**
+     * @return the user function, or null if it is not defined.
+     */
+    UserFunction function(String name) {
+        return functions.get(name);
+    }
+
+    /**
+     * @return a snapshot with the user function defined or replaced.
+     */
+    Variables withFunction(UserFunction function) {
+        Map<String, UserFunction> functions = new HashMap<>(this.functions);
+        functions.put(function.getName(), function);
+        return new Variables(slots, size, values, fastValues, predefined, functions);
+    }
+
+    /**
+     * @return a snapshot with the variable assigned.
+     */
+    Variables with(String name, BigDecimal value) {
+        return with(name, value, null);
+    }
+
+    /**
+     * @return a snapshot with the variable of a predefined constant defined or
+     *         reset.
+     */
+    Variables withPredefined(Constants constant, BigDecimal value) {
+        return with(constant.getVariableName(), value, constant);
+    }
+
+    private Variables with(String name, BigDecimal value, Constants constant) {
+        int slot = slots.slotOf(name, true);
+        int chunk = slot >>> CHUNK_BITS;
+        int chunks = Math.max(values.length, chunk + 1);
+        BigDecimal[][] values = Arrays.copyOf(this.values, chunks);
+        double[][] fastValues = Arrays.copyOf(this.fastValues, chunks);
+        Constants[][] predefined = Arrays.copyOf(this.predefined, chunks);
+        if (chunk < this.values.length) {
+            values[chunk] = values[chunk].clone();
+            fastValues[chunk] = fastValues[chunk].clone();
+            predefined[chunk] = predefined[chunk].clone();
+        }
+        for (int i = this.values.length; i < chunks; i++) {
+            values[i] = new BigDecimal[CHUNK_SIZE];
+            fastValues[i] = new double[CHUNK_SIZE];
+            predefined[i] = new Constants[CHUNK_SIZE];
+        }
+        values[chunk][slot & CHUNK_MASK] = value;
+        fastValues[chunk][slot & CHUNK_MASK] = value.doubleValue();
+        predefined[chunk][slot & CHUNK_MASK] = constant;
+        return new Variables(slots, Math.max(size, slot + 1), values, fastValues, predefined, functions);
+    }
+
+    /**
+     * @return the chunks of values, which must not be modified.
+     */
+    BigDecimal[][] values() {
+        return values;
+    }
+
+    /**
+     * @return the chunks of values as doubles, which must not be modified.
+     */
+    double[][] fastValues() {
+        return fastValues;
+    }
+
+    /**
+     * Directory gives each name of a session its slot. Slots are given in
+     * order and never taken back, and the snapshots of the session share the
+     * directory, so a slot may be given but still empty in a snapshot.
+     */
+    private static final class Directory {
+
+        private final ConcurrentMap<String, Integer> slots = new ConcurrentHashMap<>();
+        private final AtomicInteger next = new AtomicInteger();
+
+        /**
+         * @param add true to give name a slot if it has none
+         * @return the slot of name, or -1 if it has none.
+         */
+        int slotOf(String name, boolean add) {
+            Integer slot = slots.get(name);
+            if (slot == null && add) {
+                slot = slots.computeIfAbsent(name, key -> next.getAndIncrement());
+            }
+            return slot == null ? -1 : slot;
+        }
+
+        Iterable<Map.Entry<String, Integer>> entrySet() {
+            return slots.entrySet();
+        }
+    }
+}
@@ -0,0 +1,16 @@
+#!/bin/bash
+
+# Usage: ./startup.sh [runs]
+# Measures the time to the first result of the command line and to the first
+# frame of the window, without and with a class data sharing archive. Build
+# out/calculator.jar with compile.sh first.
+
+BASEDIR=$(dirname "$0")
+
+cd "$BASEDIR" || exit
+
+mkdir -p out/bench/startup/
+
+javac -d out/bench/startup/ bench/StartupBenchmark.java || exit
+
+java -cp out/bench/startup/ StartupBenchmark out/calculator.jar "$@"